@@ -3,17 +3,26 @@
  */
 package de.unirostock.sems.bives.cellml.algorithm;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 
 import de.unirostock.sems.bives.algorithm.Connector;
 import de.unirostock.sems.bives.algorithm.NodeConnection;
 import de.unirostock.sems.bives.algorithm.general.IdConnector;
 import de.unirostock.sems.bives.cellml.parser.CellMLComponent;
 import de.unirostock.sems.bives.cellml.parser.CellMLDocument;
+import de.unirostock.sems.bives.cellml.parser.CellMLEntity;
 import de.unirostock.sems.bives.cellml.parser.CellMLModel;
 import de.unirostock.sems.bives.cellml.parser.CellMLUnitDictionary;
+import de.unirostock.sems.bives.cellml.parser.CellMLUnitDimension;
 import de.unirostock.sems.bives.cellml.parser.CellMLUserUnit;
 import de.unirostock.sems.bives.exception.BivesConnectionException;
+import de.unirostock.sems.xmlutils.comparison.Connection;
+import de.unirostock.sems.xmlutils.ds.DocumentNode;
 
 
 /**
@@ -128,21 +137,7 @@ public class CellMLConnectorPreprocessor
 		// units
 		CellMLUnitDictionary unitsA = modelA.getUnits ();
 		CellMLUnitDictionary unitsB = modelB.getUnits ();
-		HashMap<String, CellMLUserUnit> modelUnitsA = unitsA.getModelUnits ();
-		HashMap<String, CellMLUserUnit> modelUnitsB = unitsB.getModelUnits ();
-		for (String id : modelUnitsA.keySet ())
-		{
-			CellMLUserUnit cB = modelUnitsB.get (id);
-			if (cB == null)
-				continue;
-			CellMLUserUnit cA = modelUnitsA.get (id);
-			
-			// both still unconnected? -> connect
-			if (conMgmt.getConnectionForNode (cA.getDocumentNode ()) == null && conMgmt.getConnectionForNode (cB.getDocumentNode ()) == null)
-				conMgmt.addConnection (new NodeConnection (cA.getDocumentNode (), cB.getDocumentNode ()));
-			else continue;
-			
-		}
+		connectUnits (unitsA.getModelUnits (), unitsB.getModelUnits ());
 		
 		// components
 		HashMap<String, CellMLComponent> componentsA = modelA.getComponents ();
@@ -162,6 +157,89 @@ public class CellMLConnectorPreprocessor
 			
 		}
 		
+		// units of connected components
+		for (CellMLComponent cA : componentsA.values ())
+		{
+			Connection con = conMgmt.getConnectionForNode (cA.getDocumentNode ());
+			if (con == null)
+				continue;
+			CellMLEntity cB = modelB.getFromNode (con.getPartnerOf (cA.getDocumentNode ()));
+			if (cB instanceof CellMLComponent)
+				connectUnits (unitsA.getComponentUnits (cA), unitsB.getComponentUnits ((CellMLComponent) cB));
+		}
+		
+	}
+	
+	/**
+	 * Connects the units of two scopes. Units with the same name are connected
+	 * first. Remaining units are connected if they are equivalent, that is if
+	 * they have the same {@link CellMLUnitDimension#getSignature() signature},
+	 * which also pairs units defined on base units of the same name, so that a
+	 * renamed unit or a unit rewritten with equivalent prefixes is reported as a
+	 * modification rather than a deletion and an insertion. Equivalent units are
+	 * paired in the order of their names.
+	 *
+	 * @param unitsA the units of the original document, may be null
+	 * @param unitsB the units of the modified document, may be null
+	 */
+	private void connectUnits (HashMap<String, CellMLUserUnit> unitsA, HashMap<String, CellMLUserUnit> unitsB)
+	{
+		if (unitsA == null || unitsB == null)
+			return;
+		
+		// same names
+		for (String id : unitsA.keySet ())
+		{
+			CellMLUserUnit uB = unitsB.get (id);
+			if (uB != null)
+				connect (unitsA.get (id).getDocumentNode (), uB.getDocumentNode ());
+		}
+		
+		// equivalent units
+		List<String> namesB = new ArrayList<String> (unitsB.keySet ());
+		Collections.sort (namesB);
+		Map<String, List<CellMLUserUnit>> candidates = new HashMap<String, List<CellMLUserUnit>> ();
+		for (String id : namesB)
+		{
+			CellMLUserUnit uB = unitsB.get (id);
+			CellMLUnitDimension dim = uB.getDimension ();
+			if (dim == null || conMgmt.getConnectionForNode (uB.getDocumentNode ()) != null)
+				continue;
+			List<CellMLUserUnit> list = candidates.get (dim.getSignature ());
+			if (list == null)
+			{
+				list = new LinkedList<CellMLUserUnit> ();
+				candidates.put (dim.getSignature (), list);
+			}
+			list.add (uB);
+		}
+		if (candidates.isEmpty ())
+			return;
+		
+		List<String> namesA = new ArrayList<String> (unitsA.keySet ());
+		Collections.sort (namesA);
+		for (String id : namesA)
+		{
+			CellMLUserUnit uA = unitsA.get (id);
+			if (conMgmt.getConnectionForNode (uA.getDocumentNode ()) != null)
+				continue;
+			CellMLUnitDimension dim = uA.getDimension ();
+			List<CellMLUserUnit> list = dim == null ? null : candidates.get (dim.getSignature ());
+			if (list != null && !list.isEmpty ())
+				connect (uA.getDocumentNode (), list.remove (0).getDocumentNode ());
+		}
+	}
+	
+	/**
+	 * Connects two nodes if both are still unconnected.
+	 *
+	 * @param a the node of the original document
+	 * @param b the node of the modified document
+	 */
+	private void connect (DocumentNode a, DocumentNode b)
+	{
+		if (conMgmt.getConnectionForNode (a) == null && conMgmt.getConnectionForNode (b) == null)
+			conMgmt.addConnection (new NodeConnection (a, b));
 	}
 	
 }
@@ -11,8 +11,7 @@ import de.unirostock.sems.bives.algorithm.GraphProducer;
 import de.unirostock.sems.bives.algorithm.SimpleConnectionManager;
 import de.unirostock.sems.bives.cellml.parser.CellMLComponent;
 import de.unirostock.sems.bives.cellml.parser.CellMLDocument;
-import de.unirostock.sems.bives.cellml.parser.CellMLHierarchyNetwork;
-import de.unirostock.sems.bives.cellml.parser.CellMLHierarchyNode;
+import de.unirostock.sems.bives.cellml.parser.CellMLHierarchyIndex;
 import de.unirostock.sems.bives.cellml.parser.CellMLModel;
 import de.unirostock.sems.bives.cellml.parser.CellMLReaction;
 import de.unirostock.sems.bives.cellml.parser.CellMLReactionSubstance;
@@ -149,23 +148,18 @@ extends GraphProducer
 			
 		}
 		
-		CellMLHierarchyNetwork enc = cellmlDocA.getModel ().getHierarchy ().getHierarchyNetwork ("encapsulation", "");
-		//LOGGER.info ("found " + enc.getNodes ().size () + " enc nodes");
+		CellMLHierarchyIndex enc = cellmlDocA.getModel ().getHierarchy ().getEncapsulationIndex ();
+		//LOGGER.info ("found " + enc.size () + " enc nodes");
 		
 		// connect nodes
 		for (CellMLComponent component : components.values ())
 		{
 			//LOGGER.info ("check " + component.getName ());
-			CellMLHierarchyNode compNode = enc.getNode (component);
-			//LOGGER.info ("hierarchy node: " + compNode);
-			if (compNode != null)
+			CellMLComponent parent = enc.getParent (component);
+			if (parent != null)
 			{
-				CellMLHierarchyNode parent = compNode.getParent ();
-				if (parent != null)
-				{
-					//LOGGER.info ("create comp connection A: " + component.getName () + " -> " + parent.getComponent ().getName ());
-					componentMapper.get (component).setParentA (componentMapper.get (parent.getComponent ()));
-				}
+				//LOGGER.info ("create comp connection A: " + component.getName () + " -> " + parent.getName ());
+				componentMapper.get (component).setParentA (componentMapper.get (parent));
 			}
 			
 
@@ -268,21 +262,17 @@ extends GraphProducer
 			
 		}
 		
-		CellMLHierarchyNetwork enc = cellmlDocB.getModel ().getHierarchy ().getHierarchyNetwork ("encapsulation", "");
-		//LOGGER.info ("found " + enc.getNodes ().size () + " enc nodes");
+		CellMLHierarchyIndex enc = cellmlDocB.getModel ().getHierarchy ().getEncapsulationIndex ();
+		//LOGGER.info ("found " + enc.size () + " enc nodes");
 		
 		// connect nodes
 		for (CellMLComponent component : components.values ())
 		{
-			CellMLHierarchyNode compNode = enc.getNode (component);
-			if (compNode != null)
+			CellMLComponent parent = enc.getParent (component);
+			if (parent != null)
 			{
-				CellMLHierarchyNode parent = compNode.getParent ();
-				if (parent != null)
-				{
-					//LOGGER.info ("create comp connection B: " + component.getName () + " -> " + parent.getComponent ().getName ());
-					componentMapper.get (component).setParentB (componentMapper.get (parent.getComponent ()));
-				}
+				//LOGGER.info ("create comp connection B: " + component.getName () + " -> " + parent.getName ());
+				componentMapper.get (component).setParentB (componentMapper.get (parent));
 			}
 			
 
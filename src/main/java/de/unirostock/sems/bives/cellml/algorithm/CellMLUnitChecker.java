@@ -0,0 +1,587 @@
+/**
+ *
+ */
+package de.unirostock.sems.bives.cellml.algorithm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+import de.binfalse.bflog.LOGGER;
+import de.unirostock.sems.bives.cellml.parser.CellMLComponent;
+import de.unirostock.sems.bives.cellml.parser.CellMLModel;
+import de.unirostock.sems.bives.cellml.parser.CellMLTasks;
+import de.unirostock.sems.bives.cellml.parser.CellMLUnit;
+import de.unirostock.sems.bives.cellml.parser.CellMLUnitDimension;
+import de.unirostock.sems.bives.cellml.parser.CellMLVariable;
+import de.unirostock.sems.bives.ds.MathML;
+import de.unirostock.sems.xmlutils.ds.DocumentNode;
+import de.unirostock.sems.xmlutils.ds.TextNode;
+import de.unirostock.sems.xmlutils.ds.TreeNode;
+
+
+/**
+ * The Class CellMLUnitChecker verifies the dimensional consistency of a
+ * CellML model. It checks that variables connected through
+ * <code>map_variables</code> have compatible units, and that the terms of the
+ * equations in every component have compatible units, using the canonical
+ * forms of the units ({@link CellMLUnit#getDimension()}).
+ *
+ * <p>
+ * Components are independent of each other, so they are checked concurrently
+ * if an executor is available. Numbers without units and unsupported MathML
+ * elements are treated as wildcards that are compatible with every unit.
+ * Incompatible dimensions are reported as errors, compatible units with
+ * different scales in additive terms are reported as warnings.
+ * </p>
+ *
+ * @author Martin Scharm
+ */
+public class CellMLUnitChecker
+{
+	
+	/** Severity of diagnostics that indicate a likely mistake. */
+	public static final int SEVERITY_WARNING = 1;
+	
+	/** Severity of diagnostics that indicate an inconsistent model. */
+	public static final int SEVERITY_ERROR = 2;
+	
+	/** The namespace of the units attribute of numbers. */
+	private static final String CELLML_NS = "cellml.org/cellml";
+	
+	/** The executor, null to check components serially. */
+	private ExecutorService executor;
+	
+	
+	/**
+	 * The Class Diagnostic describes a unit inconsistency.
+	 */
+	public static class Diagnostic
+	{
+		
+		/** The severity. */
+		private int severity;
+		
+		/** The component. */
+		private CellMLComponent component;
+		
+		/** The corresponding node in the XML tree. */
+		private DocumentNode node;
+		
+		/** The message. */
+		private String message;
+		
+		
+		/**
+		 * Instantiates a new diagnostic.
+		 *
+		 * @param severity the severity, {@link CellMLUnitChecker#SEVERITY_WARNING} or {@link CellMLUnitChecker#SEVERITY_ERROR}
+		 * @param component the component
+		 * @param node the corresponding node in the XML tree
+		 * @param message the message
+		 */
+		public Diagnostic (int severity, CellMLComponent component, DocumentNode node, String message)
+		{
+			this.severity = severity;
+			this.component = component;
+			this.node = node;
+			this.message = message;
+		}
+		
+		
+		/**
+		 * Gets the severity.
+		 *
+		 * @return the severity, {@link CellMLUnitChecker#SEVERITY_WARNING} or {@link CellMLUnitChecker#SEVERITY_ERROR}
+		 */
+		public int getSeverity ()
+		{
+			return severity;
+		}
+		
+		
+		/**
+		 * Checks if this diagnostic is an error.
+		 *
+		 * @return true, if it is an error
+		 */
+		public boolean isError ()
+		{
+			return severity == SEVERITY_ERROR;
+		}
+		
+		
+		/**
+		 * Gets the component.
+		 *
+		 * @return the component
+		 */
+		public CellMLComponent getComponent ()
+		{
+			return component;
+		}
+		
+		
+		/**
+		 * Gets the corresponding node in the XML tree, that is the offending
+		 * MathML element or variable.
+		 *
+		 * @return the node
+		 */
+		public DocumentNode getNode ()
+		{
+			return node;
+		}
+		
+		
+		/**
+		 * Gets the message.
+		 *
+		 * @return the message
+		 */
+		public String getMessage ()
+		{
+			return message;
+		}
+		
+		
+		/* (non-Javadoc)
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString ()
+		{
+			return (isError () ? "error" : "warning") + " in component " + component.getName () + ": " + message;
+		}
+	}
+	
+	
+	/**
+	 * Instantiates a new unit checker, which checks components on the
+	 * {@link CellMLModel#getComponentExecutor() component executor}.
+	 */
+	public CellMLUnitChecker ()
+	{
+		this (CellMLModel.getComponentExecutor ());
+	}
+	
+	
+	/**
+	 * Instantiates a new unit checker.
+	 *
+	 * @param executor the executor to check components concurrently, or null to check them serially
+	 */
+	public CellMLUnitChecker (ExecutorService executor)
+	{
+		this.executor = executor;
+	}
+	
+	
+	/**
+	 * Checks the units of a model.
+	 *
+	 * @param model the model
+	 * @return the diagnostics, ordered by component name, empty if the model is consistent
+	 * @throws InterruptedException if the thread was interrupted while waiting for the checks
+	 */
+	public List<Diagnostic> check (CellMLModel model) throws InterruptedException
+	{
+		List<CellMLComponent> components = new ArrayList<CellMLComponent> (model.getComponents ().values ());
+		Collections.sort (components, new Comparator<CellMLComponent> ()
+		{
+			@Override
+			public int compare (CellMLComponent a, CellMLComponent b)
+			{
+				return a.getName ().compareTo (b.getName ());
+			}
+		});
+		
+		List<Callable<List<Diagnostic>>> tasks = new ArrayList<Callable<List<Diagnostic>>> (components.size ());
+		for (final CellMLComponent component : components)
+			tasks.add (new Callable<List<Diagnostic>> ()
+			{
+				@Override
+				public List<Diagnostic> call ()
+				{
+					return check (component);
+				}
+			});
+		
+		List<Diagnostic> diagnostics = new ArrayList<Diagnostic> ();
+		try
+		{
+			for (List<Diagnostic> checked : CellMLTasks.invokeAll (executor, tasks))
+				diagnostics.addAll (checked);
+		}
+		catch (InterruptedException e)
+		{
+			throw e;
+		}
+		catch (RuntimeException e)
+		{
+			throw e;
+		}
+		catch (Exception e)
+		{
+			// checking a component doesn't throw checked exceptions
+			throw new IllegalStateException (e);
+		}
+		return diagnostics;
+	}
+	
+	
+	/**
+	 * Checks the units of a single component: its incoming connections and its
+	 * equations.
+	 *
+	 * @param component the component
+	 * @return the diagnostics
+	 */
+	public List<Diagnostic> check (CellMLComponent component)
+	{
+		List<Diagnostic> diagnostics = new ArrayList<Diagnostic> ();
+		
+		// every connection ends in exactly one incoming interface
+		List<String> names = new ArrayList<String> (component.getVariables ().keySet ());
+		Collections.sort (names);
+		for (String name : names)
+		{
+			CellMLVariable var = component.getVariables ().get (name);
+			CellMLVariable source = var.getIncomingConnection ();
+			if (source == null)
+				continue;
+			CellMLUnitDimension dim = dimension (var.getUnit ());
+			CellMLUnitDimension sourceDim = dimension (source.getUnit ());
+			if (dim != null && sourceDim != null && !dim.isCompatible (sourceDim))
+				diagnostics.add (new Diagnostic (SEVERITY_ERROR, component, var.getDocumentNode (), "variable " + name + " [" + var.getUnit () + "] is connected to " + source.getComponent ().getName () + "." + source.getName () + " [" + source.getUnit () + "] of incompatible dimension: " + dim + " vs " + sourceDim));
+		}
+		
+		for (MathML math : component.getMath ())
+			if (math.getDocumentNode () != null)
+				for (DocumentNode statement : elements (math.getDocumentNode (), 0))
+					evaluate (statement, component, diagnostics);
+		
+		if (!diagnostics.isEmpty ())
+			LOGGER.debug ("found ", diagnostics.size (), " unit inconsistencies in component ", component.getName ());
+		return diagnostics;
+	}
+	
+	
+	/**
+	 * Gets the canonical form of a unit.
+	 *
+	 * @param unit the unit, may be null
+	 * @return the canonical form, or null if it is unknown
+	 */
+	private static CellMLUnitDimension dimension (CellMLUnit unit)
+	{
+		return unit == null ? null : unit.getDimension ();
+	}
+	
+	
+	/**
+	 * Gets the element children of a node, skipping the first <code>skip</code>
+	 * elements and the qualifiers of MathML functions.
+	 *
+	 * @param node the node
+	 * @param skip the number of elements to skip
+	 * @return the element children
+	 */
+	private static List<DocumentNode> elements (DocumentNode node, int skip)
+	{
+		List<DocumentNode> elements = new ArrayList<DocumentNode> ();
+		for (TreeNode kid : node.getChildren ())
+		{
+			if (kid.getType () != TreeNode.DOC_NODE)
+				continue;
+			String tag = ((DocumentNode) kid).getTagName ();
+			if (tag.equals ("bvar") || tag.equals ("degree") || tag.equals ("logbase") || tag.equals ("annotation") || tag.equals ("annotation-xml"))
+				continue;
+			if (skip > 0)
+				skip--;
+			else
+				elements.add ((DocumentNode) kid);
+		}
+		return elements;
+	}
+	
+	
+	/**
+	 * Gets the first element child with a certain tag name.
+	 *
+	 * @param node the node
+	 * @param tag the tag name
+	 * @return the child, or null if there is no such child
+	 */
+	private static DocumentNode child (DocumentNode node, String tag)
+	{
+		List<TreeNode> kids = node.getChildrenWithTag (tag);
+		return kids == null || kids.isEmpty () ? null : (DocumentNode) kids.get (0);
+	}
+	
+	
+	/**
+	 * Gets the text content of a node.
+	 *
+	 * @param node the node
+	 * @return the trimmed text
+	 */
+	private static String text (DocumentNode node)
+	{
+		StringBuilder sb = new StringBuilder ();
+		for (TreeNode kid : node.getChildren ())
+			if (kid.getType () == TreeNode.TEXT_NODE)
+				sb.append (((TextNode) kid).getText ());
+		return sb.toString ().trim ();
+	}
+	
+	
+	/**
+	 * Gets the value of a constant number.
+	 *
+	 * @param node the node
+	 * @return the value, or null if the node is not a plain number
+	 */
+	private static Double number (DocumentNode node)
+	{
+		if (node == null || !node.getTagName ().equals ("cn"))
+			return null;
+		try
+		{
+			return Double.parseDouble (text (node));
+		}
+		catch (NumberFormatException e)
+		{
+			return null;
+		}
+	}
+	
+	
+	/**
+	 * Gets the constant degree of a root or a derivative.
+	 *
+	 * @param node the node containing the degree qualifier
+	 * @param defaultDegree the degree if there is no qualifier
+	 * @return the degree, or null if it is not a constant number
+	 */
+	private static Double degree (DocumentNode node, double defaultDegree)
+	{
+		DocumentNode degree = child (node, "degree");
+		if (degree == null)
+			return defaultDegree;
+		List<DocumentNode> kids = elements (degree, 0);
+		return kids.isEmpty () ? null : number (kids.get (0));
+	}
+	
+	
+	/**
+	 * Computes the unit of a MathML expression and reports inconsistencies.
+	 *
+	 * @param node the expression
+	 * @param component the component defining the expression
+	 * @param diagnostics the diagnostics
+	 * @return the canonical form of the unit of the expression, or null if it is unknown
+	 */
+	private CellMLUnitDimension evaluate (DocumentNode node, CellMLComponent component, List<Diagnostic> diagnostics)
+	{
+		String tag = node.getTagName ();
+		if (tag.equals ("ci"))
+		{
+			String name = text (node);
+			CellMLVariable var = component.getVariables ().get (name);
+			if (var == null)
+			{
+				diagnostics.add (new Diagnostic (SEVERITY_ERROR, component, node, "unknown variable " + name));
+				return null;
+			}
+			return dimension (var.getUnit ());
+		}
+		if (tag.equals ("cn"))
+		{
+			String units = node.getAttributeValue ("units", CELLML_NS);
+			if (units == null)
+				return null;
+			CellMLUnit unit = component.getUnit (units);
+			if (unit == null)
+				diagnostics.add (new Diagnostic (SEVERITY_ERROR, component, node, "unknown unit " + units));
+			return dimension (unit);
+		}
+		if (tag.equals ("true") || tag.equals ("false") || tag.equals ("pi") || tag.equals ("exponentiale"))
+			return CellMLUnitDimension.DIMENSIONLESS;
+		if (tag.equals ("semantics"))
+		{
+			List<DocumentNode> kids = elements (node, 0);
+			return kids.isEmpty () ? null : evaluate (kids.get (0), component, diagnostics);
+		}
+		if (tag.equals ("piecewise"))
+			return evaluatePiecewise (node, component, diagnostics);
+		if (!tag.equals ("apply"))
+			return null;
+		
+		List<DocumentNode> kids = elements (node, 0);
+		if (kids.isEmpty ())
+			return null;
+		String op = kids.get (0).getTagName ();
+		List<DocumentNode> argNodes = kids.subList (1, kids.size ());
+		List<CellMLUnitDimension> args = new ArrayList<CellMLUnitDimension> (argNodes.size ());
+		for (DocumentNode arg : argNodes)
+			args.add (evaluate (arg, component, diagnostics));
+		
+		if (op.equals ("eq") || op.equals ("neq") || op.equals ("lt") || op.equals ("gt") || op.equals ("leq") || op.equals ("geq") || op.equals ("approx"))
+		{
+			same (node, op, args, component, diagnostics);
+			return CellMLUnitDimension.DIMENSIONLESS;
+		}
+		if (op.equals ("plus") || op.equals ("minus") || op.equals ("min") || op.equals ("max") || op.equals ("abs") || op.equals ("floor") || op.equals ("ceiling") || op.equals ("rem"))
+			return same (node, op, args, component, diagnostics);
+		if (op.equals ("times"))
+		{
+			CellMLUnitDimension result = CellMLUnitDimension.DIMENSIONLESS;
+			for (CellMLUnitDimension arg : args)
+			{
+				if (arg == null)
+					return null;
+				result = result.multiply (arg);
+			}
+			return result;
+		}
+		if (op.equals ("divide"))
+		{
+			if (args.size () != 2 || args.get (0) == null || args.get (1) == null)
+				return null;
+			return args.get (0).divide (args.get (1));
+		}
+		if (op.equals ("power"))
+		{
+			if (args.size () != 2)
+				return null;
+			dimensionless (node, op, args.subList (1, 2), component, diagnostics);
+			CellMLUnitDimension base = args.get (0);
+			if (base == null || base.isDimensionless ())
+				return base;
+			Double exponent = number (argNodes.get (1));
+			if (exponent == null)
+			{
+				diagnostics.add (new Diagnostic (SEVERITY_WARNING, component, node, "cannot determine unit of " + base + " raised to a variable power"));
+				return null;
+			}
+			return base.power (exponent);
+		}
+		if (op.equals ("root"))
+		{
+			if (args.size () != 1 || args.get (0) == null)
+				return null;
+			Double degree = degree (node, 2);
+			if (degree == null)
+				return args.get (0).isDimensionless () ? args.get (0) : null;
+			return args.get (0).power (1 / degree);
+		}
+		if (op.equals ("diff"))
+		{
+			DocumentNode bvar = child (node, "bvar");
+			if (args.size () != 1 || args.get (0) == null || bvar == null)
+				return null;
+			List<DocumentNode> bvarKids = elements (bvar, 0);
+			if (bvarKids.isEmpty ())
+				return null;
+			CellMLUnitDimension variable = evaluate (bvarKids.get (0), component, diagnostics);
+			if (variable == null)
+				return null;
+			Double degree = degree (bvar, 1);
+			if (degree == null)
+				return null;
+			return args.get (0).divide (variable.power (degree));
+		}
+		if (op.equals ("and") || op.equals ("or") || op.equals ("xor") || op.equals ("not") || op.equals ("factorial")
+			|| op.equals ("exp") || op.equals ("ln") || op.equals ("log")
+			|| op.startsWith ("sin") || op.startsWith ("cos") || op.startsWith ("tan") || op.startsWith ("sec") || op.startsWith ("csc") || op.startsWith ("cot")
+			|| op.startsWith ("arc"))
+		{
+			dimensionless (node, op, args, component, diagnostics);
+			return CellMLUnitDimension.DIMENSIONLESS;
+		}
+		return null;
+	}
+	
+	
+	/**
+	 * Computes the unit of a piecewise expression. All pieces need to have
+	 * compatible units, conditions are checked but don't contribute.
+	 *
+	 * @param node the piecewise expression
+	 * @param component the component defining the expression
+	 * @param diagnostics the diagnostics
+	 * @return the canonical form of the unit of the expression, or null if it is unknown
+	 */
+	private CellMLUnitDimension evaluatePiecewise (DocumentNode node, CellMLComponent component, List<Diagnostic> diagnostics)
+	{
+		List<CellMLUnitDimension> values = new ArrayList<CellMLUnitDimension> ();
+		for (DocumentNode piece : elements (node, 0))
+		{
+			List<DocumentNode> kids = elements (piece, 0);
+			if (kids.isEmpty ())
+				continue;
+			values.add (evaluate (kids.get (0), component, diagnostics));
+			for (int i = 1; i < kids.size (); i++)
+				evaluate (kids.get (i), component, diagnostics);
+		}
+		return same (node, "piecewise", values, component, diagnostics);
+	}
+	
+	
+	/**
+	 * Checks that all arguments of an operator have compatible units.
+	 *
+	 * @param node the application of the operator
+	 * @param op the operator
+	 * @param args the units of the arguments, null if unknown
+	 * @param component the component defining the expression
+	 * @param diagnostics the diagnostics
+	 * @return the unit of the first argument with a known unit, or null if there is no such argument
+	 */
+	private static CellMLUnitDimension same (DocumentNode node, String op, List<CellMLUnitDimension> args, CellMLComponent component, List<Diagnostic> diagnostics)
+	{
+		CellMLUnitDimension first = null;
+		for (CellMLUnitDimension arg : args)
+		{
+			if (arg == null)
+				continue;
+			if (first == null)
+				first = arg;
+			else if (!first.isCompatible (arg))
+			{
+				diagnostics.add (new Diagnostic (SEVERITY_ERROR, component, node, "arguments of " + op + " have incompatible units: " + first + " vs " + arg));
+				return first;
+			}
+			else if (!first.isEquivalent (arg))
+			{
+				diagnostics.add (new Diagnostic (SEVERITY_WARNING, component, node, "arguments of " + op + " have different scales: " + first + " vs " + arg));
+				return first;
+			}
+		}
+		return first;
+	}
+	
+	
+	/**
+	 * Checks that all arguments of an operator are dimensionless.
+	 *
+	 * @param node the application of the operator
+	 * @param op the operator
+	 * @param args the units of the arguments, null if unknown
+	 * @param component the component defining the expression
+	 * @param diagnostics the diagnostics
+	 */
+	private static void dimensionless (DocumentNode node, String op, List<CellMLUnitDimension> args, CellMLComponent component, List<Diagnostic> diagnostics)
+	{
+		for (CellMLUnitDimension arg : args)
+			if (arg != null && !arg.isDimensionless ())
+			{
+				diagnostics.add (new Diagnostic (SEVERITY_ERROR, component, node, "argument of " + op + " must be dimensionless, but is " + arg));
+				return;
+			}
+	}
+}
@@ -3,11 +3,17 @@
  */
 package de.unirostock.sems.bives.cellml.algorithm;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 import de.binfalse.bflog.LOGGER;
 import de.unirostock.sems.bives.algorithm.ModelValidator;
+import de.unirostock.sems.bives.cellml.algorithm.CellMLUnitChecker.Diagnostic;
 import de.unirostock.sems.bives.cellml.parser.CellMLDocument;
+import de.unirostock.sems.bives.cellml.parser.CellMLStreamReader;
+import de.unirostock.sems.bives.exception.BivesDocumentConsistencyException;
 import de.unirostock.sems.xmlutils.ds.TreeDocument;
 import de.unirostock.sems.xmlutils.tools.XmlTools;
 
@@ -23,15 +29,66 @@ public class CellMLValidator
 	/** The doc. */
 	private CellMLDocument doc;
 	
+	/** Should documents be streamed with the {@link CellMLStreamReader}?. */
+	private boolean streaming;
+	
+	/** Should the units of the documents be checked?. */
+	private boolean checkUnits;
+	
+	/** The findings of the unit checker. */
+	private List<Diagnostic> unitDiagnostics;
+	
+	
+	/**
+	 * Instantiates a new validator.
+	 */
+	public CellMLValidator ()
+	{
+		this (false);
+	}
+	
+	
+	/**
+	 * Instantiates a new validator. A streaming validator reads files and strings
+	 * with the {@link CellMLStreamReader}, which drops documentation, RDF, and
+	 * whitespace while reading and thus saves the memory these would occupy.
+	 * The documents are still built in memory, so the memory needed still grows
+	 * with the size of the model. The resulting documents don't contain any
+	 * annotations.
+	 *
+	 * @param streaming should documents be streamed?
+	 */
+	public CellMLValidator (boolean streaming)
+	{
+		this (streaming, false);
+	}
+	
+	
+	/**
+	 * Instantiates a new validator. If <code>checkUnits</code> is set, documents
+	 * are only valid if the {@link CellMLUnitChecker} doesn't find any unit
+	 * errors, see {@link #getUnitDiagnostics()} for all findings.
+	 *
+	 * @param streaming should documents be streamed?
+	 * @param checkUnits should the units of the documents be checked?
+	 */
+	public CellMLValidator (boolean streaming, boolean checkUnits)
+	{
+		this.streaming = streaming;
+		this.checkUnits = checkUnits;
+	}
+	
 	/* (non-Javadoc)
 	 * @see de.unirostock.sems.bives.algorithm.ModelValidator#validate(de.unirostock.sems.xmlutils.ds.TreeDocument)
 	 */
 	@Override
 	public boolean validate (TreeDocument d)
 	{
+		unitDiagnostics = null;
 		try
 		{
 			doc = new CellMLDocument (d);
+			return checkUnits ();
 		}
 		catch (Exception e)
 		{
@@ -39,6 +96,33 @@ public class CellMLValidator
 			LOGGER.info (e, "error validating document");
 			return false;
 		}
+	}
+	
+	
+	/**
+	 * Checks the units of the current document, if requested.
+	 *
+	 * @return true, if the units shouldn't be checked or if there are no unit errors
+	 * @throws InterruptedException if the thread was interrupted while checking the units
+	 * @throws BivesDocumentConsistencyException if there are unit errors
+	 */
+	private boolean checkUnits () throws InterruptedException, BivesDocumentConsistencyException
+	{
+		unitDiagnostics = new ArrayList<Diagnostic> ();
+		if (!checkUnits)
+			return true;
+		unitDiagnostics = new CellMLUnitChecker ().check (doc.getModel ());
+		int errors = 0;
+		Diagnostic first = null;
+		for (Diagnostic diagnostic : unitDiagnostics)
+			if (diagnostic.isError ())
+			{
+				if (first == null)
+					first = diagnostic;
+				errors++;
+			}
+		if (first != null)
+			throw new BivesDocumentConsistencyException ("found " + errors + " unit errors, e.g. " + first);
 		return true;
 	}
 
@@ -49,8 +133,14 @@ public class CellMLValidator
 	@Override
 	public boolean validate (File d)
 	{
+		unitDiagnostics = null;
 		try
 		{
+			if (streaming)
+			{
+				doc = CellMLStreamReader.parse (d);
+				return checkUnits ();
+			}
 			return validate (new TreeDocument (XmlTools.readDocument (d), d.toURI ()));
 		}
 		catch (Exception e)
@@ -68,8 +158,14 @@ public class CellMLValidator
 	@Override
 	public boolean validate (String d)
 	{
+		unitDiagnostics = null;
 		try
 		{
+			if (streaming)
+			{
+				doc = CellMLStreamReader.parse (new ByteArrayInputStream (d.getBytes ("UTF-8")), null);
+				return checkUnits ();
+			}
 			return validate (new TreeDocument (XmlTools.readDocument (d), null));
 		}
 		catch (Exception e)
@@ -90,4 +186,16 @@ public class CellMLValidator
 		return doc;
 	}
 	
+	
+	/**
+	 * Gets the findings of the unit checker for the last validated document.
+	 * The list is empty if units aren't checked.
+	 *
+	 * @return the unit diagnostics, or null if no document was parsed
+	 */
+	public List<Diagnostic> getUnitDiagnostics ()
+	{
+		return unitDiagnostics;
+	}
+	
 }
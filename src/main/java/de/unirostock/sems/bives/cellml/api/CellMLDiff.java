@@ -17,11 +17,16 @@ import de.unirostock.sems.bives.cellml.algorithm.CellMLDiffInterpreter;
 import de.unirostock.sems.bives.cellml.algorithm.CellMLGraphProducer;
 import de.unirostock.sems.bives.cellml.exception.BivesCellMLParseException;
 import de.unirostock.sems.bives.cellml.parser.CellMLDocument;
+import de.unirostock.sems.bives.cellml.parser.CellMLDocumentCache;
+import de.unirostock.sems.bives.cellml.tools.CellMLMetrics;
+import de.unirostock.sems.bives.ds.Patch;
 import de.unirostock.sems.bives.ds.graph.GraphTranslator;
 import de.unirostock.sems.bives.ds.graph.GraphTranslatorDot;
 import de.unirostock.sems.bives.ds.graph.GraphTranslatorGraphML;
 import de.unirostock.sems.bives.ds.graph.GraphTranslatorJson;
 import de.unirostock.sems.bives.ds.graph.GraphTranslatorSbgnJson;
+import de.unirostock.sems.bives.ds.hn.HierarchyNetwork;
+import de.unirostock.sems.bives.ds.rn.ReactionNetwork;
 import de.unirostock.sems.bives.exception.BivesConnectionException;
 import de.unirostock.sems.bives.exception.BivesDocumentConsistencyException;
 import de.unirostock.sems.bives.exception.BivesImportException;
@@ -132,6 +137,8 @@ public class CellMLDiff extends Diff
 
 	/**
 	 * Instantiates a new CellML differ. This CellML differ uses a {@link CellMLDiffAnnotator} to annotate the differences.
+	 * Both files are read and parsed, use {@link #fromCache(File, File)} if the
+	 * same files are compared repeatedly.
 	 *
 	 * @param a the file containing the original CellML model
 	 * @param b the file containing the modified CellML model
@@ -204,12 +211,36 @@ public class CellMLDiff extends Diff
 		doc2 = b;
 	}
 
+	/**
+	 * Creates a CellML differ for two files, using the {@link CellMLDocumentCache}.
+	 * Popular models that are compared over and over again are only parsed once,
+	 * see the cache for what a hit saves. This CellML differ uses a
+	 * {@link CellMLDiffAnnotator} to annotate the differences.
+	 *
+	 * @param a the file containing the original CellML model
+	 * @param b the file containing the modified CellML model
+	 * @return the CellML differ
+	 * @throws XmlDocumentParseException the xml document parse exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws JDOMException the jDOM exception
+	 * @throws BivesCellMLParseException the bives cell ml parse exception
+	 * @throws BivesDocumentConsistencyException the bives document consistency exception
+	 * @throws BivesLogicalException the bives logical exception
+	 * @throws BivesImportException the bives import exception
+	 * @throws URISyntaxException the uRI syntax exception
+	 */
+	public static CellMLDiff fromCache (File a, File b) throws XmlDocumentParseException, IOException, JDOMException, BivesCellMLParseException, BivesDocumentConsistencyException, BivesLogicalException, BivesImportException, URISyntaxException
+	{
+		return new CellMLDiff (CellMLDocumentCache.getDocument (a), CellMLDocumentCache.getDocument (b));
+	}
+	
 	
 	/* (non-Javadoc)
 	 * @see de.unirostock.sems.bives.api.Diff#mapTrees(boolean, boolean, boolean)
 	 */
 	@Override
 	public boolean mapTrees(boolean allowDifferentIds, boolean careAboutNames, boolean stricterNames) throws BivesConnectionException {
+		long start = CellMLMetrics.start ();
 		CellMLConnector con = new CellMLConnector (doc1, doc2, allowDifferentIds, careAboutNames, stricterNames);
 		con.findConnections ();
 		connections = con.getConnections();
@@ -221,9 +252,80 @@ public class CellMLDiff extends Diff
 		treeB.getRoot ().resetModifications ();
 		treeB.getRoot ().evaluate (connections);
 		
+		CellMLMetrics.finish (treeA.getBaseUri (), CellMLMetrics.DIFF_MAP_TREES, start, countNodes ());
 		return true;
 	}
 	
+	/* (non-Javadoc)
+	 * @see de.unirostock.sems.bives.api.Diff#getPatch()
+	 */
+	@Override
+	public Patch getPatch ()
+	{
+		long start = CellMLMetrics.start ();
+		Patch patch = super.getPatch ();
+		CellMLMetrics.finish (treeA.getBaseUri (), CellMLMetrics.DIFF_PATCH, start, countNodes ());
+		return patch;
+	}
+	
+	/**
+	 * Counts the nodes in both trees, to report the size of a diff stage.
+	 *
+	 * @return the number of nodes
+	 */
+	private int countNodes ()
+	{
+		return treeA.getNumNodes () + treeB.getNumNodes ();
+	}
+	
+	/**
+	 * Gets the reaction network, producing it if necessary.
+	 *
+	 * @return the reaction network
+	 */
+	private ReactionNetwork reactionNetwork ()
+	{
+		long start = CellMLMetrics.start ();
+		if (graphProducer == null)
+			graphProducer = new CellMLGraphProducer (connections, doc1, doc2);
+		ReactionNetwork rn = graphProducer.getReactionNetwork ();
+		CellMLMetrics.finish (treeA.getBaseUri (), CellMLMetrics.DIFF_GRAPH, start, countNodes ());
+		return rn;
+	}
+	
+	/**
+	 * Gets the hierarchy network, producing it if necessary.
+	 *
+	 * @return the hierarchy network
+	 */
+	private HierarchyNetwork hierarchyNetwork ()
+	{
+		long start = CellMLMetrics.start ();
+		if (graphProducer == null)
+			graphProducer = new CellMLGraphProducer (connections, doc1, doc2);
+		HierarchyNetwork hn = graphProducer.getHierarchy ();
+		CellMLMetrics.finish (treeA.getBaseUri (), CellMLMetrics.DIFF_GRAPH, start, countNodes ());
+		return hn;
+	}
+	
+	/**
+	 * Typesets the report, interpreting the changes if necessary.
+	 *
+	 * @param ts the typesetting
+	 * @return the typeset report
+	 */
+	private String typeset (Typesetting ts)
+	{
+		long start = CellMLMetrics.start ();
+		if (interpreter == null)
+		{
+			interpreter = new CellMLDiffInterpreter (connections, doc1, doc2);
+			interpreter.interprete ();
+		}
+		String report = ts.typeset (interpreter.getReport ());
+		CellMLMetrics.finish (treeA.getBaseUri (), CellMLMetrics.DIFF_REPORT, start, countNodes ());
+		return report;
+	}
 
 	/* (non-Javadoc)
 	 * @see de.unirostock.sems.bives.api.Diff#getReactionsGraphML()
@@ -231,9 +333,7 @@ public class CellMLDiff extends Diff
 	@Override
 	public String getReactionsGraphML()
 	{
-		if (graphProducer == null)
-			graphProducer = new CellMLGraphProducer (connections, doc1, doc2);
-		return new GraphTranslatorGraphML ().translate (graphProducer.getReactionNetwork ());
+		return new GraphTranslatorGraphML ().translate (reactionNetwork ());
 	}
 
 	
@@ -244,9 +344,7 @@ public class CellMLDiff extends Diff
 	@Override
 	public Object getHierarchyGraph (GraphTranslator gt) throws Exception
 	{
-		if (graphProducer == null)
-			graphProducer = new CellMLGraphProducer (connections, doc1, doc2);
-		return gt.translate (graphProducer.getHierarchy ());
+		return gt.translate (hierarchyNetwork ());
 	}
 
 	/* (non-Javadoc)
@@ -255,9 +353,7 @@ public class CellMLDiff extends Diff
 	@Override
 	public String getHierarchyGraphML()
 	{
-		if (graphProducer == null)
-			graphProducer = new CellMLGraphProducer (connections, doc1, doc2);
-		return new GraphTranslatorGraphML ().translate (graphProducer.getHierarchy ());
+		return new GraphTranslatorGraphML ().translate (hierarchyNetwork ());
 	}
 
 	/* (non-Javadoc)
@@ -266,12 +362,7 @@ public class CellMLDiff extends Diff
 	@Override
 	public String getMarkDownReport()
 	{
-		if (interpreter == null)
-		{
-			interpreter = new CellMLDiffInterpreter (connections, doc1, doc2);
-			interpreter.interprete ();
-		}
-		return  new TypesettingMarkDown ().typeset (interpreter.getReport ());
+		return typeset (new TypesettingMarkDown ());
 	}
 
 	/* (non-Javadoc)
@@ -280,12 +371,7 @@ public class CellMLDiff extends Diff
 	@Override
 	public String getReStructuredTextReport ()
 	{
-		if (interpreter == null)
-		{
-			interpreter = new CellMLDiffInterpreter (connections, doc1, doc2);
-			interpreter.interprete ();
-		}
-		return  new TypesettingReStructuredText ().typeset (interpreter.getReport ());
+		return typeset (new TypesettingReStructuredText ());
 	}
 
 	/* (non-Javadoc)
@@ -294,12 +380,7 @@ public class CellMLDiff extends Diff
 	@Override
 	public String getHTMLReport()
 	{
-		if (interpreter == null)
-		{
-			interpreter = new CellMLDiffInterpreter (connections, doc1, doc2);
-			interpreter.interprete ();
-		}
-		return  new TypesettingHTML ().typeset (interpreter.getReport ());
+		return typeset (new TypesettingHTML ());
 	}
 	
 	/* (non-Javadoc)
@@ -308,9 +389,7 @@ public class CellMLDiff extends Diff
 	@Override
 	public Object getReactionsGraph (GraphTranslator gt) throws Exception
 	{
-		if (graphProducer == null)
-			graphProducer = new CellMLGraphProducer (connections, doc1, doc2);
-		return gt.translate (graphProducer.getReactionNetwork ());
+		return gt.translate (reactionNetwork ());
 	}
 
 	/* (non-Javadoc)
@@ -319,9 +398,7 @@ public class CellMLDiff extends Diff
 	@Override
 	public String getReactionsDotGraph ()
 	{
-		if (graphProducer == null)
-			graphProducer = new CellMLGraphProducer (connections, doc1, doc2);
-		return new GraphTranslatorDot ().translate (graphProducer.getReactionNetwork ());
+		return new GraphTranslatorDot ().translate (reactionNetwork ());
 	}
 
 	/* (non-Javadoc)
@@ -330,9 +407,7 @@ public class CellMLDiff extends Diff
 	@Override
 	public String getReactionsJsonGraph ()
 	{
-		if (graphProducer == null)
-			graphProducer = new CellMLGraphProducer (connections, doc1, doc2);
-		return new GraphTranslatorJson ().translate (graphProducer.getReactionNetwork ());
+		return new GraphTranslatorJson ().translate (reactionNetwork ());
 	}
 
 	/* (non-Javadoc)
@@ -341,9 +416,7 @@ public class CellMLDiff extends Diff
 	@Override
 	public String getHierarchyDotGraph()
 	{
-		if (graphProducer == null)
-			graphProducer = new CellMLGraphProducer (connections, doc1, doc2);
-		return new GraphTranslatorDot ().translate (graphProducer.getHierarchy ());
+		return new GraphTranslatorDot ().translate (hierarchyNetwork ());
 	}
 
 	/* (non-Javadoc)
@@ -352,9 +425,7 @@ public class CellMLDiff extends Diff
 	@Override
 	public String getHierarchyJsonGraph ()
 	{
-		if (graphProducer == null)
-			graphProducer = new CellMLGraphProducer (connections, doc1, doc2);
-		return new GraphTranslatorJson ().translate (graphProducer.getHierarchy ());
+		return new GraphTranslatorJson ().translate (hierarchyNetwork ());
 	}
 
 	/* (non-Javadoc)
@@ -363,20 +434,13 @@ public class CellMLDiff extends Diff
 	@Override
 	public String getReport (Typesetting ts)
 	{
-		if (interpreter == null)
-		{
-			interpreter = new CellMLDiffInterpreter (connections, doc1, doc2);
-			interpreter.interprete ();
-		}
-		return ts.typeset (interpreter.getReport ());
+		return typeset (ts);
 	}
 
 	@Override
 	public String getReactionsSbgnJsonGraph()
 	{
-		if (graphProducer == null)
-			graphProducer = new CellMLGraphProducer (connections, doc1, doc2);
-		return new GraphTranslatorSbgnJson().translate (graphProducer.getReactionNetwork());
+		return new GraphTranslatorSbgnJson().translate (reactionNetwork ());
 	}
 
 }
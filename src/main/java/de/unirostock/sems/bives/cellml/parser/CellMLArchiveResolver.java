@@ -0,0 +1,83 @@
+/**
+ * 
+ */
+package de.unirostock.sems.bives.cellml.parser;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+
+/**
+ * The Class CellMLArchiveResolver serves imported documents from a zip file,
+ * such as a COMBINE archive (OMEX).
+ * 
+ * <p>
+ * The archive stays open until the resolver is {@link #close() closed}.
+ * </p>
+ *
+ * @author Martin Scharm
+ */
+public class CellMLArchiveResolver
+	extends CellMLMirrorResolver
+{
+	
+	/** The archive. */
+	private ZipFile archive;
+	
+	/** The index, path -> entry. */
+	private Map<String, ZipEntry> index;
+	
+	/**
+	 * Instantiates a new archive resolver and indexes the archive.
+	 *
+	 * @param archive the zip or OMEX file
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public CellMLArchiveResolver (File archive) throws IOException
+	{
+		this.archive = new ZipFile (archive);
+		index = new HashMap<String, ZipEntry> ();
+		Enumeration<? extends ZipEntry> entries = this.archive.entries ();
+		while (entries.hasMoreElements ())
+		{
+			ZipEntry entry = entries.nextElement ();
+			if (!entry.isDirectory ())
+				index.put (normalizePath (entry.getName ()), entry);
+		}
+	}
+	
+	/* (non-Javadoc)
+	 * @see de.unirostock.sems.bives.cellml.parser.CellMLMirrorResolver#getIndex()
+	 */
+	@Override
+	public Set<String> getIndex ()
+	{
+		return Collections.unmodifiableSet (index.keySet ());
+	}
+	
+	/* (non-Javadoc)
+	 * @see de.unirostock.sems.bives.cellml.parser.CellMLMirrorResolver#read(java.lang.String)
+	 */
+	@Override
+	protected byte [] read (String path) throws IOException
+	{
+		return CellMLImporter.readFully (archive.getInputStream (index.get (path)));
+	}
+	
+	/**
+	 * Closes the archive.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void close () throws IOException
+	{
+		archive.close ();
+	}
+}
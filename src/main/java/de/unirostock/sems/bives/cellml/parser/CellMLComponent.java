@@ -58,67 +58,50 @@ extends CellMLEntity
 		variables = new HashMap<String, CellMLVariable> ();
 		reactions = new ArrayList<CellMLReaction> ();
 
-		name = node.getAttributeValue ("name");
+		name = CellMLStringPool.intern (node.getAttributeValue ("name"));
 		if (name == null || name.length () < 1)
 			throw new BivesCellMLParseException ("component doesn't have a name.");
 		
-		List<TreeNode> kids = node.getChildrenWithTag ("units");
+		CellMLUnitResolver.resolve (model, units, this, node.getChildrenWithTag ("units"));
+		
+		// variables only depend on units, which are all known by now
+		// -> a single pass, collecting all problems instead of failing on the first one
 		List<String> problems = new ArrayList<String> ();
-		boolean nextRound = true;
-		while (nextRound && kids.size () > 0)
+		List<TreeNode> kids = node.getChildrenWithTag ("variable");
+		for (TreeNode kid : kids)
 		{
-			nextRound = false;
-			problems.clear ();
-			for (int i = kids.size () - 1; i >= 0; i--)
+			if (kid.getType () != TreeNode.DOC_NODE)
+				continue;
+			DocumentNode varNode = (DocumentNode) kid;
+			String varName = varNode.getAttributeValue ("name");
+			if (varName == null || varName.length () < 1)
 			{
-				TreeNode kid = kids.get (i);
-				if (kid.getType () != TreeNode.DOC_NODE)
-					continue;
-				try
-				{
-					units.addUnit (this, new CellMLUserUnit (model, units, this, (DocumentNode) kid), false);
-				}
-				catch (BivesDocumentConsistencyException ex)
-				{
-					problems.add (ex.getMessage ());
-					continue;
-				}
-				kids.remove (i);
-				nextRound = true;
+				problems.add ("variable doesn't have a name");
+				continue;
 			}
+			if (variables.get (varName) != null)
+			{
+				problems.add ("variable name is not unique: " + varName);
+				continue;
+			}
+			if (getUnit (varNode.getAttributeValue ("units")) == null)
+			{
+				problems.add ("variable " + varName + " doesn't have a valid unit: " + varNode.getAttributeValue ("units"));
+				continue;
+			}
+			CellMLVariable var = new CellMLVariable (model, this, varNode);
+			variables.put (var.getName (), var);
 		}
-		if (kids.size () != 0)
-			throw new BivesDocumentConsistencyException ("inconsistencies for "+kids.size ()+" units in component "+name+", problems: " + problems);
 		
-		nextRound = true;
-		kids = node.getChildrenWithTag ("variable");
-		while (nextRound && kids.size () > 0)
+		// initial values may refer to variables declared later in the component
+		for (CellMLVariable var : variables.values ())
 		{
-			nextRound = false;
-			problems.clear ();
-			for (int i = kids.size () - 1; i >= 0; i--)
-			{
-				TreeNode kid = kids.get (i);
-				if (kid.getType () != TreeNode.DOC_NODE)
-					continue;
-				try
-				{
-					CellMLVariable var = new CellMLVariable (model, this, (DocumentNode) kid);
-					if (variables.get (var.getName ()) != null)
-						throw new BivesDocumentConsistencyException ("variable name is not unique: " + var.getName ());
-					variables.put (var.getName (), var);
-				}
-				catch (BivesDocumentConsistencyException ex)
-				{
-					problems.add (ex.getMessage ());
-					continue;
-				}
-				kids.remove (i);
-				nextRound = true;
-			}
+			String problem = var.resolveInitialValue ();
+			if (problem != null)
+				problems.add (problem);
 		}
-		if (kids.size () != 0)
-			throw new BivesDocumentConsistencyException ("inconsistencies for "+kids.size ()+" variables in component "+name+", problems: " + problems);
+		if (problems.size () != 0)
+			throw new BivesDocumentConsistencyException ("inconsistencies for "+problems.size ()+" variables in component "+name+", problems: " + problems);
 		
 		kids = node.getChildrenWithTag ("reaction");
 		for (TreeNode kid : kids)
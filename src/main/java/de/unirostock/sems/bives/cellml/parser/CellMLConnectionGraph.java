@@ -0,0 +1,520 @@
+/**
+ *
+ */
+package de.unirostock.sems.bives.cellml.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.unirostock.sems.bives.cellml.parser.CellMLConnection.ConnectedComponents;
+
+
+/**
+ * The Class CellMLConnectionGraph analyses the network of connected variables
+ * of a model: the classes of variables that are connected to each other, the
+ * fan-out of the variables, and cycles of connections.
+ *
+ * <p>
+ * The graph is a snapshot of the connections, stored in primitive adjacency
+ * arrays. Every connection is directed from the variable providing the value to
+ * the variable that receives the value through an incoming interface. All
+ * results are computed once in time linear to the number of variables and
+ * connections. Use {@link CellMLModel#getConnectionGraph()} to obtain the
+ * cached graph of a model.
+ * </p>
+ *
+ * @author Martin Scharm
+ */
+public class CellMLConnectionGraph
+{
+	
+	/** The variables, id -&gt; variable. */
+	private CellMLVariable [] variables;
+	
+	/** The ids of the variables. */
+	private Map<CellMLVariable, Integer> ids;
+	
+	/** The offsets into targets, the variables receiving their value from id are stored in targets[targetOffset[id]] to targets[targetOffset[id + 1] - 1]. */
+	private int [] targetOffset;
+	
+	/** The ids of the receiving variables, ordered by source. */
+	private int [] targets;
+	
+	/** The classes of connected variables, id -&gt; class. */
+	private int [] classOf;
+	
+	/** The offsets into classMembers, the members of class c are stored in classMembers[classOffset[c]] to classMembers[classOffset[c + 1] - 1]. */
+	private int [] classOffset;
+	
+	/** The ids of the variables, ordered by class. */
+	private int [] classMembers;
+	
+	/** The cycles of connections, every cycle is a strongly connected set of variables. */
+	private List<List<CellMLVariable>> cycles;
+	
+	/** The classes of components that are connected to each other. */
+	private List<List<CellMLComponent>> componentClasses;
+	
+	/** The connection version of the model this graph was built for. */
+	private int version;
+	
+	
+	/**
+	 * Builds the connection graph of a model.
+	 *
+	 * @param components the components of the model
+	 * @param connectedComponents the pairs of components that are connected
+	 * @param version the connection version of the model
+	 */
+	CellMLConnectionGraph (Collection<CellMLComponent> components, List<ConnectedComponents> connectedComponents, int version)
+	{
+		this.version = version;
+		
+		int n = 0;
+		for (CellMLComponent component : components)
+			n += component.getVariables ().size ();
+		variables = new CellMLVariable [n];
+		ids = new IdentityHashMap<CellMLVariable, Integer> (n);
+		n = 0;
+		for (CellMLComponent component : components)
+			for (CellMLVariable var : component.getVariables ().values ())
+			{
+				ids.put (var, n);
+				variables[n++] = var;
+			}
+		
+		// every variable has at most one incoming connection
+		int [] source = new int [n];
+		int m = 0;
+		targetOffset = new int [n + 1];
+		for (int v = 0; v < n; v++)
+		{
+			CellMLVariable in = variables[v].getIncomingConnection ();
+			Integer u = in == null ? null : ids.get (in);
+			source[v] = u == null ? -1 : u;
+			if (source[v] >= 0)
+			{
+				targetOffset[source[v] + 1]++;
+				m++;
+			}
+		}
+		for (int v = 0; v < n; v++)
+			targetOffset[v + 1] += targetOffset[v];
+		targets = new int [m];
+		int [] fill = Arrays.copyOf (targetOffset, n);
+		for (int v = 0; v < n; v++)
+			if (source[v] >= 0)
+				targets[fill[source[v]]++] = v;
+		
+		computeClasses (source);
+		computeCycles ();
+		computeComponentClasses (components, connectedComponents);
+	}
+	
+	
+	/**
+	 * Finds the root of an element in a union-find forest, halving the path.
+	 *
+	 * @param forest the forest, element -&gt; parent
+	 * @param x the element
+	 * @return the root
+	 */
+	private static int find (int [] forest, int x)
+	{
+		while (forest[x] != x)
+		{
+			forest[x] = forest[forest[x]];
+			x = forest[x];
+		}
+		return x;
+	}
+	
+	
+	/**
+	 * Merges the sets of two elements in a union-find forest.
+	 *
+	 * @param forest the forest, element -&gt; parent
+	 * @param x the first element
+	 * @param y the second element
+	 */
+	private static void union (int [] forest, int x, int y)
+	{
+		x = find (forest, x);
+		y = find (forest, y);
+		if (x != y)
+			forest[Math.max (x, y)] = Math.min (x, y);
+	}
+	
+	
+	/**
+	 * Computes the classes of connected variables.
+	 *
+	 * @param source the source of every variable, or -1
+	 */
+	private void computeClasses (int [] source)
+	{
+		int n = variables.length;
+		int [] forest = new int [n];
+		for (int v = 0; v < n; v++)
+			forest[v] = v;
+		for (int v = 0; v < n; v++)
+			if (source[v] >= 0)
+				union (forest, v, source[v]);
+		
+		// number the classes in the order of their first member
+		classOf = new int [n];
+		int [] classOfRoot = new int [n];
+		Arrays.fill (classOfRoot, -1);
+		int classes = 0;
+		for (int v = 0; v < n; v++)
+		{
+			int root = find (forest, v);
+			if (classOfRoot[root] < 0)
+				classOfRoot[root] = classes++;
+			classOf[v] = classOfRoot[root];
+		}
+		
+		classOffset = new int [classes + 1];
+		for (int v = 0; v < n; v++)
+			classOffset[classOf[v] + 1]++;
+		for (int c = 0; c < classes; c++)
+			classOffset[c + 1] += classOffset[c];
+		classMembers = new int [n];
+		int [] fill = Arrays.copyOf (classOffset, classes);
+		for (int v = 0; v < n; v++)
+			classMembers[fill[classOf[v]]++] = v;
+	}
+	
+	
+	/**
+	 * Computes the cycles of connections using an iterative version of Tarjan's
+	 * algorithm for strongly connected components.
+	 */
+	private void computeCycles ()
+	{
+		int n = variables.length;
+		cycles = new ArrayList<List<CellMLVariable>> ();
+		int [] index = new int [n];
+		int [] low = new int [n];
+		Arrays.fill (index, -1);
+		boolean [] onStack = new boolean [n];
+		int [] stack = new int [n];
+		int stackSize = 0;
+		// the call stack: the variables and the next target to visit
+		int [] callVar = new int [n];
+		int [] callEdge = new int [n];
+		int next = 0;
+		
+		for (int start = 0; start < n; start++)
+		{
+			if (index[start] >= 0)
+				continue;
+			int depth = 0;
+			callVar[0] = start;
+			callEdge[0] = targetOffset[start];
+			index[start] = low[start] = next++;
+			stack[stackSize++] = start;
+			onStack[start] = true;
+			
+			while (depth >= 0)
+			{
+				int v = callVar[depth];
+				if (callEdge[depth] < targetOffset[v + 1])
+				{
+					int w = targets[callEdge[depth]++];
+					if (index[w] < 0)
+					{
+						index[w] = low[w] = next++;
+						stack[stackSize++] = w;
+						onStack[w] = true;
+						depth++;
+						callVar[depth] = w;
+						callEdge[depth] = targetOffset[w];
+					}
+					else if (onStack[w])
+						low[v] = Math.min (low[v], index[w]);
+					continue;
+				}
+				
+				// all targets visited
+				if (low[v] == index[v])
+				{
+					int first = stackSize - 1;
+					while (stack[first] != v)
+						first--;
+					boolean selfLoop = false;
+					for (int k = targetOffset[v]; k < targetOffset[v + 1]; k++)
+						selfLoop |= targets[k] == v;
+					if (stackSize - first > 1 || selfLoop)
+					{
+						List<CellMLVariable> cycle = new ArrayList<CellMLVariable> (stackSize - first);
+						for (int k = first; k < stackSize; k++)
+							cycle.add (variables[stack[k]]);
+						cycles.add (Collections.unmodifiableList (cycle));
+					}
+					for (int k = first; k < stackSize; k++)
+						onStack[stack[k]] = false;
+					stackSize = first;
+				}
+				depth--;
+				if (depth >= 0)
+					low[callVar[depth]] = Math.min (low[callVar[depth]], low[v]);
+			}
+		}
+		cycles = Collections.unmodifiableList (cycles);
+	}
+	
+	
+	/**
+	 * Computes the classes of components that are connected to each other.
+	 *
+	 * @param components the components
+	 * @param connectedComponents the pairs of connected components
+	 */
+	private void computeComponentClasses (Collection<CellMLComponent> components, List<ConnectedComponents> connectedComponents)
+	{
+		int n = components.size ();
+		CellMLComponent [] byId = components.toArray (new CellMLComponent [n]);
+		Map<CellMLComponent, Integer> componentIds = new IdentityHashMap<CellMLComponent, Integer> (n);
+		int [] forest = new int [n];
+		for (int c = 0; c < n; c++)
+		{
+			componentIds.put (byId[c], c);
+			forest[c] = c;
+		}
+		for (ConnectedComponents con : connectedComponents)
+		{
+			Integer c1 = componentIds.get (con.component_1), c2 = componentIds.get (con.component_2);
+			if (c1 != null && c2 != null)
+				union (forest, c1, c2);
+		}
+		// imported components are connected in their own model
+		for (int v = 0; v < variables.length; v++)
+			for (int k = targetOffset[v]; k < targetOffset[v + 1]; k++)
+			{
+				Integer c1 = componentIds.get (variables[v].getComponent ()), c2 = componentIds.get (variables[targets[k]].getComponent ());
+				if (c1 != null && c2 != null)
+					union (forest, c1, c2);
+			}
+		
+		List<List<CellMLComponent>> classes = new ArrayList<List<CellMLComponent>> ();
+		int [] classOfRoot = new int [n];
+		Arrays.fill (classOfRoot, -1);
+		for (int c = 0; c < n; c++)
+		{
+			int root = find (forest, c);
+			if (classOfRoot[root] < 0)
+			{
+				classOfRoot[root] = classes.size ();
+				classes.add (new ArrayList<CellMLComponent> ());
+			}
+			classes.get (classOfRoot[root]).add (byId[c]);
+		}
+		for (int c = 0; c < classes.size (); c++)
+			classes.set (c, Collections.unmodifiableList (classes.get (c)));
+		componentClasses = Collections.unmodifiableList (classes);
+	}
+	
+	
+	/**
+	 * Gets the id of a variable.
+	 *
+	 * @param var the variable
+	 * @return the id
+	 * @throws IllegalArgumentException if the variable is not part of this graph
+	 */
+	private int id (CellMLVariable var)
+	{
+		Integer id = ids.get (var);
+		if (id == null)
+			throw new IllegalArgumentException ("variable " + (var == null ? null : var.getName ()) + " is not part of this model");
+		return id;
+	}
+	
+	
+	/**
+	 * Gets the connection version of the model this graph was built for.
+	 *
+	 * @return the version
+	 */
+	int getVersion ()
+	{
+		return version;
+	}
+	
+	
+	/**
+	 * Gets the number of variables in the graph.
+	 *
+	 * @return the number of variables
+	 */
+	public int getVariableCount ()
+	{
+		return variables.length;
+	}
+	
+	
+	/**
+	 * Gets the number of connections in the graph.
+	 *
+	 * @return the number of connections
+	 */
+	public int getConnectionCount ()
+	{
+		return targets.length;
+	}
+	
+	
+	/**
+	 * Gets the number of classes of connected variables. Variables without
+	 * connections form a class of their own.
+	 *
+	 * @return the number of classes
+	 */
+	public int getClassCount ()
+	{
+		return classOffset.length - 1;
+	}
+	
+	
+	/**
+	 * Gets all variables that are connected to a variable, directly or
+	 * indirectly, including the variable itself. All of them share the same
+	 * value.
+	 *
+	 * @param var the variable
+	 * @return the connected variables
+	 */
+	public List<CellMLVariable> getConnectedVariables (CellMLVariable var)
+	{
+		return getClass (classOf[id (var)]);
+	}
+	
+	
+	/**
+	 * Gets a class of connected variables.
+	 *
+	 * @param c the number of the class
+	 * @return the variables in that class
+	 */
+	private List<CellMLVariable> getClass (int c)
+	{
+		List<CellMLVariable> members = new ArrayList<CellMLVariable> (classOffset[c + 1] - classOffset[c]);
+		for (int k = classOffset[c]; k < classOffset[c + 1]; k++)
+			members.add (variables[classMembers[k]]);
+		return members;
+	}
+	
+	
+	/**
+	 * Gets all classes of connected variables that contain more than one
+	 * variable.
+	 *
+	 * @return the classes of connected variables
+	 */
+	public List<List<CellMLVariable>> getConnectedClasses ()
+	{
+		List<List<CellMLVariable>> classes = new ArrayList<List<CellMLVariable>> ();
+		for (int c = 0; c < getClassCount (); c++)
+			if (classOffset[c + 1] - classOffset[c] > 1)
+				classes.add (getClass (c));
+		return classes;
+	}
+	
+	
+	/**
+	 * Checks if two variables are connected, directly or indirectly.
+	 *
+	 * @param var1 the first variable
+	 * @param var2 the second variable
+	 * @return true, if both variables share the same value
+	 */
+	public boolean isConnected (CellMLVariable var1, CellMLVariable var2)
+	{
+		return classOf[id (var1)] == classOf[id (var2)];
+	}
+	
+	
+	/**
+	 * Gets the fan-out of a variable, that is the number of variables that
+	 * receive their value directly from this variable.
+	 *
+	 * @param var the variable
+	 * @return the fan-out
+	 */
+	public int getFanOut (CellMLVariable var)
+	{
+		int id = id (var);
+		return targetOffset[id + 1] - targetOffset[id];
+	}
+	
+	
+	/**
+	 * Gets the maximum fan-out of all variables.
+	 *
+	 * @return the maximum fan-out
+	 */
+	public int getMaxFanOut ()
+	{
+		int max = 0;
+		for (int v = 0; v < variables.length; v++)
+			max = Math.max (max, targetOffset[v + 1] - targetOffset[v]);
+		return max;
+	}
+	
+	
+	/**
+	 * Gets the distribution of the fan-out. Element <code>k</code> of the
+	 * returned array is the number of variables that provide their value to
+	 * exactly <code>k</code> other variables.
+	 *
+	 * @return the fan-out histogram
+	 */
+	public int [] getFanOutHistogram ()
+	{
+		int [] histogram = new int [getMaxFanOut () + 1];
+		for (int v = 0; v < variables.length; v++)
+			histogram[targetOffset[v + 1] - targetOffset[v]]++;
+		return histogram;
+	}
+	
+	
+	/**
+	 * Gets the cycles of connections. A valid model doesn't contain any cycles,
+	 * as the variables in a cycle don't have a source for their value.
+	 *
+	 * @return the cycles, every cycle is a set of variables that receive their value from each other
+	 */
+	public List<List<CellMLVariable>> getCycles ()
+	{
+		return cycles;
+	}
+	
+	
+	/**
+	 * Checks if there are cycles of connections.
+	 *
+	 * @return true, if there is at least one cycle
+	 */
+	public boolean hasCycles ()
+	{
+		return !cycles.isEmpty ();
+	}
+	
+	
+	/**
+	 * Gets the classes of components that are connected to each other, directly
+	 * or indirectly. Components without connections form a class of their own.
+	 *
+	 * @return the classes of connected components
+	 */
+	public List<List<CellMLComponent>> getComponentClasses ()
+	{
+		return componentClasses;
+	}
+}
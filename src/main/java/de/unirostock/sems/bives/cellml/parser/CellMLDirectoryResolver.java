@@ -0,0 +1,120 @@
+/**
+ * 
+ */
+package de.unirostock.sems.bives.cellml.parser;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * The Class CellMLDirectoryResolver serves imported documents from a local
+ * directory, e.g. a mirror of a model repository.
+ * 
+ * <p>
+ * The directory is indexed on first use. Call {@link #reindex()} if files have
+ * been added to or removed from the directory since.
+ * </p>
+ *
+ * @author Martin Scharm
+ */
+public class CellMLDirectoryResolver
+	extends CellMLMirrorResolver
+{
+	
+	/** The root directory of the mirror. */
+	private File directory;
+	
+	/** The index, path -> file. */
+	private Map<String, File> index;
+	
+	/**
+	 * Instantiates a new directory resolver.
+	 *
+	 * @param directory the root directory of the mirror
+	 * @throws IOException if <code>directory</code> is not a directory
+	 */
+	public CellMLDirectoryResolver (File directory) throws IOException
+	{
+		if (!directory.isDirectory ())
+			throw new IOException (directory + " is not a directory");
+		this.directory = directory;
+	}
+	
+	/**
+	 * Gets the root directory of the mirror.
+	 *
+	 * @return the directory
+	 */
+	public File getDirectory ()
+	{
+		return directory;
+	}
+	
+	/**
+	 * Drops the current index, the directory will be indexed again on next use.
+	 */
+	public synchronized void reindex ()
+	{
+		index = null;
+	}
+	
+	/**
+	 * Gets the index, indexing the directory if necessary.
+	 *
+	 * @return the index
+	 */
+	private synchronized Map<String, File> index ()
+	{
+		if (index == null)
+		{
+			Map<String, File> idx = new HashMap<String, File> ();
+			index (directory, "", idx);
+			index = idx;
+		}
+		return index;
+	}
+	
+	/**
+	 * Recursively index a directory.
+	 *
+	 * @param dir the current directory
+	 * @param prefix the path of the current directory relative to the root
+	 * @param idx the index to fill
+	 */
+	private static void index (File dir, String prefix, Map<String, File> idx)
+	{
+		File [] files = dir.listFiles ();
+		if (files == null)
+			return;
+		for (File f : files)
+		{
+			if (f.isDirectory ())
+				index (f, prefix + f.getName () + "/", idx);
+			else
+				idx.put (prefix + f.getName (), f);
+		}
+	}
+	
+	/* (non-Javadoc)
+	 * @see de.unirostock.sems.bives.cellml.parser.CellMLMirrorResolver#getIndex()
+	 */
+	@Override
+	public Set<String> getIndex ()
+	{
+		return Collections.unmodifiableSet (index ().keySet ());
+	}
+	
+	/* (non-Javadoc)
+	 * @see de.unirostock.sems.bives.cellml.parser.CellMLMirrorResolver#read(java.lang.String)
+	 */
+	@Override
+	protected byte [] read (String path) throws IOException
+	{
+		return CellMLImporter.readLocal (index ().get (path));
+	}
+}
@@ -12,6 +12,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import de.unirostock.sems.bives.cellml.exception.BivesCellMLParseException;
+import de.unirostock.sems.bives.cellml.tools.CellMLMetrics;
 import de.unirostock.sems.bives.ds.ModelDocument;
 import de.unirostock.sems.bives.ds.rdf.RDFDescription;
 import de.unirostock.sems.bives.exception.BivesDocumentConsistencyException;
@@ -40,6 +41,9 @@ extends ModelDocument
 	/** The rdf descriptions. */
 	private List<RDFDescription> rdfDescriptions;
 	
+	/** The transitive imports of the root document. */
+	private CellMLImportGraph importGraph;
+	
 	/**
 	 * Instantiates a new cell ml document.
 	 * 
@@ -65,17 +69,64 @@ extends ModelDocument
 			IOException,
 			URISyntaxException,
 			BivesImportException
+	{
+		this (doc, null);
+	}
+	
+	
+	/**
+	 * Instantiates a new cell ml document that is part of an import graph. If
+	 * <code>importGraph</code> is null the imports of this document will be
+	 * explored before the model is parsed.
+	 * 
+	 * @param doc
+	 *          the document encoding the model
+	 * @param importGraph
+	 *          the import graph of the root document, or null if this is the root
+	 * @throws BivesCellMLParseException
+	 *           the bives cell ml parse exception
+	 * @throws BivesDocumentConsistencyException
+	 *           the bives document consistency exception
+	 * @throws BivesLogicalException
+	 *           the bives logical exception
+	 * @throws IOException
+	 *           Signals that an I/O exception has occurred.
+	 * @throws URISyntaxException
+	 *           the uRI syntax exception
+	 * @throws BivesImportException
+	 *           the bives import exception
+	 */
+	CellMLDocument (TreeDocument doc, CellMLImportGraph importGraph)
+		throws BivesCellMLParseException,
+			BivesDocumentConsistencyException,
+			BivesLogicalException,
+			IOException,
+			URISyntaxException,
+			BivesImportException
 	{
 		super (doc);
 		if (!doc.getRoot ().getTagName ().equals ("model"))
 			throw new BivesCellMLParseException (
 				"cellml document does not define a model");
 		rdfDescriptions = new ArrayList<RDFDescription> ();
+		this.importGraph = importGraph == null ? new CellMLImportGraph (doc) : importGraph;
 		model = new CellMLModel (this, doc.getRoot ());
 		
 	}
 	
 	
+	/**
+	 * Gets the import graph, which knows all documents that are imported by the
+	 * root document, directly or indirectly.
+	 * 
+	 * @return the import graph
+	 */
+	public CellMLImportGraph getImportGraph ()
+	{
+		return importGraph;
+	}
+	
+	
 	/**
 	 * Gets the encoded model.
 	 * 
@@ -114,7 +165,9 @@ extends ModelDocument
 			BivesDocumentConsistencyException,
 			XmlDocumentConsistencyException, BivesLogicalException
 	{
+		long start = CellMLMetrics.start ();
 		model.flatten ();
+		CellMLMetrics.finish (getBaseUri (), CellMLMetrics.FLATTEN, start, model.getComponents ().size ());
 	}
 	
 	
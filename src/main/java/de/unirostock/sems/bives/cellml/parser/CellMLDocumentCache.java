@@ -0,0 +1,348 @@
+/**
+ *
+ */
+package de.unirostock.sems.bives.cellml.parser;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jdom2.Document;
+import org.jdom2.JDOMException;
+
+import de.binfalse.bflog.LOGGER;
+import de.unirostock.sems.bives.cellml.exception.BivesCellMLParseException;
+import de.unirostock.sems.bives.exception.BivesDocumentConsistencyException;
+import de.unirostock.sems.bives.exception.BivesImportException;
+import de.unirostock.sems.bives.exception.BivesLogicalException;
+import de.unirostock.sems.xmlutils.ds.TreeDocument;
+import de.unirostock.sems.xmlutils.exception.XmlDocumentParseException;
+
+
+/**
+ * The Class CellMLDocumentCache creates CellML documents and caches the parsed
+ * XML of their sources, so that popular models, which are compared over and over
+ * again, are only read and parsed once.
+ *
+ * <p>
+ * Entries are keyed by the SHA-256 hash of the source plus the parse options,
+ * thus a changed document will never be served from the cache. The cache has a
+ * budget in bytes of cached sources, the parsed XML retained on the heap is
+ * usually a few times larger. The least recently used entries are evicted
+ * first.
+ * </p>
+ *
+ * <p>
+ * A {@link CellMLDocument} is mutable, e.g. mapping trees for a diff marks the
+ * modified nodes and flattening rewrites the model. Thus, the cached documents
+ * are never handed out directly: every request gets a fresh CellMLDocument that
+ * is built from a private copy of the cached XML. A hit saves parsing the XML,
+ * the source is still read and hashed, and the {@link TreeDocument} and the
+ * {@link CellMLModel} are still built from the copy.
+ * </p>
+ *
+ * @author Martin Scharm
+ */
+public class CellMLDocumentCache
+{
+	
+	/** The default maximum total size of the cached sources in bytes. */
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+	
+	/** The maximum total size of the cached sources in bytes. */
+	private static long maxBytes = DEFAULT_MAX_BYTES;
+	
+	/** The total size of the cached sources in bytes. */
+	private static long bytes;
+	
+	/** The number of cache hits. */
+	private static long hits;
+	
+	/** The number of cache misses. */
+	private static long misses;
+	
+	/** The cached documents in access order, the eldest entry is evicted first. */
+	private static final LinkedHashMap<String, Entry> cache = new LinkedHashMap<String, Entry> (16, .75f, true);
+	
+	
+	/**
+	 * The Class Entry stores a parsed source and the size of the source.
+	 */
+	private static class Entry
+	{
+		
+		/** The parsed source. */
+		private Document doc;
+		
+		/** The size of the source in bytes. */
+		private long bytes;
+		
+		
+		/**
+		 * Instantiates a new entry.
+		 *
+		 * @param doc the parsed source
+		 * @param bytes the size of the source in bytes
+		 */
+		public Entry (Document doc, long bytes)
+		{
+			this.doc = doc;
+			this.bytes = bytes;
+		}
+	}
+	
+	
+	/**
+	 * Static class, don't instantiate.
+	 */
+	private CellMLDocumentCache ()
+	{
+	}
+	
+	
+	/**
+	 * Gets the CellML document stored in a file.
+	 *
+	 * @param file the file containing the model
+	 * @return a fresh CellML document
+	 * @throws XmlDocumentParseException the xml document parse exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws JDOMException the jDOM exception
+	 * @throws BivesCellMLParseException the bives cell ml parse exception
+	 * @throws BivesDocumentConsistencyException the bives document consistency exception
+	 * @throws BivesLogicalException the bives logical exception
+	 * @throws BivesImportException the bives import exception
+	 * @throws URISyntaxException the uRI syntax exception
+	 */
+	public static CellMLDocument getDocument (File file) throws XmlDocumentParseException, IOException, JDOMException, BivesCellMLParseException, BivesDocumentConsistencyException, BivesLogicalException, BivesImportException, URISyntaxException
+	{
+		return getDocument (file, false);
+	}
+	
+	
+	/**
+	 * Gets the CellML document stored in a file.
+	 *
+	 * @param file the file containing the model
+	 * @param streaming should the document be read with the {@link CellMLStreamReader}?
+	 * @return a fresh CellML document
+	 * @throws XmlDocumentParseException the xml document parse exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws JDOMException the jDOM exception
+	 * @throws BivesCellMLParseException the bives cell ml parse exception
+	 * @throws BivesDocumentConsistencyException the bives document consistency exception
+	 * @throws BivesLogicalException the bives logical exception
+	 * @throws BivesImportException the bives import exception
+	 * @throws URISyntaxException the uRI syntax exception
+	 */
+	public static CellMLDocument getDocument (File file, boolean streaming) throws XmlDocumentParseException, IOException, JDOMException, BivesCellMLParseException, BivesDocumentConsistencyException, BivesLogicalException, BivesImportException, URISyntaxException
+	{
+		return getDocument (CellMLImporter.readLocal (file), file.toURI (), streaming);
+	}
+	
+	
+	/**
+	 * Gets the CellML document encoded in <code>content</code>.
+	 *
+	 * @param content the source of the model
+	 * @param baseUri the location of the model, used to resolve imports, may be null
+	 * @param streaming should the document be read with the {@link CellMLStreamReader}?
+	 * @return a fresh CellML document
+	 * @throws XmlDocumentParseException the xml document parse exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws JDOMException the jDOM exception
+	 * @throws BivesCellMLParseException the bives cell ml parse exception
+	 * @throws BivesDocumentConsistencyException the bives document consistency exception
+	 * @throws BivesLogicalException the bives logical exception
+	 * @throws BivesImportException the bives import exception
+	 * @throws URISyntaxException the uRI syntax exception
+	 */
+	public static CellMLDocument getDocument (byte [] content, URI baseUri, boolean streaming) throws XmlDocumentParseException, IOException, JDOMException, BivesCellMLParseException, BivesDocumentConsistencyException, BivesLogicalException, BivesImportException, URISyntaxException
+	{
+		return new CellMLDocument (new TreeDocument (getSource (content, baseUri, streaming), baseUri));
+	}
+	
+	
+	/**
+	 * Gets a private copy of the parsed source, parsing and caching it if necessary.
+	 *
+	 * @param content the source of the model
+	 * @param baseUri the location of the model, may be null
+	 * @param streaming should the document be read with the {@link CellMLStreamReader}?
+	 * @return the parsed source
+	 * @throws JDOMException the jDOM exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static Document getSource (byte [] content, URI baseUri, boolean streaming) throws JDOMException, IOException
+	{
+		String key = CellMLImportCache.sha256 (content) + (streaming ? "#streaming" : "#full");
+		Entry cached;
+		synchronized (cache)
+		{
+			cached = cache.get (key);
+			if (cached != null)
+				hits++;
+			else
+				misses++;
+		}
+		
+		if (cached != null)
+		{
+			LOGGER.debug ("document cache hit for ", baseUri);
+			return cached.doc.clone ();
+		}
+		
+		LOGGER.debug ("document cache miss for ", baseUri);
+		String systemId = baseUri == null ? null : baseUri.toString ();
+		Document doc = streaming ? CellMLStreamReader.read (new ByteArrayInputStream (content), systemId) : CellMLStringPool.createSAXBuilder ().build (new ByteArrayInputStream (content), systemId);
+		synchronized (cache)
+		{
+			if (content.length <= maxBytes && !cache.containsKey (key))
+			{
+				cache.put (key, new Entry (doc, content.length));
+				bytes += content.length;
+				evict ();
+			}
+		}
+		return doc.clone ();
+	}
+	
+	
+	/**
+	 * Evicts the least recently used entries until the cached sources fit into
+	 * the budget. Needs to be called while holding the lock on the cache.
+	 */
+	private static void evict ()
+	{
+		Iterator<Map.Entry<String, Entry>> it = cache.entrySet ().iterator ();
+		while (bytes > maxBytes && it.hasNext ())
+		{
+			bytes -= it.next ().getValue ().bytes;
+			it.remove ();
+		}
+	}
+	
+	
+	/**
+	 * Gets the maximum total size of the cached sources.
+	 *
+	 * @return the budget in bytes
+	 */
+	public static long getMaxBytes ()
+	{
+		synchronized (cache)
+		{
+			return maxBytes;
+		}
+	}
+	
+	
+	/**
+	 * Sets the maximum total size of the cached sources. If the cached sources are
+	 * currently larger, the least recently used entries will be evicted. Set it
+	 * to 0 to disable the cache.
+	 *
+	 * @param maxBytes the new budget in bytes
+	 */
+	public static void setMaxBytes (long maxBytes)
+	{
+		if (maxBytes < 0)
+			throw new IllegalArgumentException ("budget of document cache must not be negative");
+		synchronized (cache)
+		{
+			CellMLDocumentCache.maxBytes = maxBytes;
+			evict ();
+		}
+	}
+	
+	
+	/**
+	 * Gets the total size of the currently cached sources.
+	 *
+	 * @return the size in bytes
+	 */
+	public static long getBytes ()
+	{
+		synchronized (cache)
+		{
+			return bytes;
+		}
+	}
+	
+	
+	/**
+	 * Gets the number of currently cached documents.
+	 *
+	 * @return the number of documents in the cache
+	 */
+	public static int size ()
+	{
+		synchronized (cache)
+		{
+			return cache.size ();
+		}
+	}
+	
+	
+	/**
+	 * Gets the number of requests that were served from the cache.
+	 *
+	 * @return the number of cache hits
+	 */
+	public static long getHits ()
+	{
+		synchronized (cache)
+		{
+			return hits;
+		}
+	}
+	
+	
+	/**
+	 * Gets the number of requests that required parsing a document.
+	 *
+	 * @return the number of cache misses
+	 */
+	public static long getMisses ()
+	{
+		synchronized (cache)
+		{
+			return misses;
+		}
+	}
+	
+	
+	/**
+	 * Gets the fraction of requests that were served from the cache.
+	 *
+	 * @return the hit ratio, or 0 if there weren't any requests
+	 */
+	public static double getHitRatio ()
+	{
+		synchronized (cache)
+		{
+			long requests = hits + misses;
+			return requests == 0 ? 0 : (double) hits / requests;
+		}
+	}
+	
+	
+	/**
+	 * Drops all cached documents and resets the statistics.
+	 */
+	public static void clear ()
+	{
+		synchronized (cache)
+		{
+			cache.clear ();
+			bytes = 0;
+			hits = 0;
+			misses = 0;
+		}
+	}
+}
@@ -63,6 +63,16 @@ public class CellMLHierarchy
 		return networks.get ("encapsulation:");
 	}
 	
+	/**
+	 * Gets the index of the encapsulation hierarchy network.
+	 *
+	 * @return the encapsulation hierarchy index
+	 */
+	public CellMLHierarchyIndex getEncapsulationIndex ()
+	{
+		return networks.get ("encapsulation:").getIndex ();
+	}
+	
 	/**
 	 * Gets a specific hierarchy network.
 	 *
@@ -195,35 +205,7 @@ public class CellMLHierarchy
 		if (network == null)
 			return RELATION_SIBLING;
 		
-		CellMLHierarchyNode node_1 = network.getNode (component_1);
-		CellMLHierarchyNode node_2 = network.getNode (component_2);
-
-		if (node_1 == null)
-		{
-			if (node_2 == null || node_2.getParent () == null)
-				return RELATION_SIBLING;
-			return RELATION_HIDDEN;
-		}
-		if (node_2 == null)
-		{
-			if (node_1.getParent () == null)
-				return RELATION_SIBLING;
-			return RELATION_HIDDEN;
-		}
-		
-		// TODO: or following better?
-		/*if (node_1 == null || node_2 == null)
-		{
-			throw new BivesLogicalException ("cannot find nodes for components. (component: " + component_1.getName () + "," + component_2.getName () + ")");
-		}*/
-		
-		if (node_1.getParent () == node_2.getParent ())
-			return RELATION_SIBLING;
-		if (node_1 == node_2.getParent ())
-			return RELATION_PARENT;
-		if (node_1.getParent () == node_2)
-			return RELATION_ENCAPSULATED;
-		
-		return RELATION_HIDDEN;
+		// components that are not part of the network are top-level components
+		return network.getIndex ().getRelationship (component_1, component_2);
 	}
 }
@@ -0,0 +1,334 @@
+/**
+ *
+ */
+package de.unirostock.sems.bives.cellml.parser;
+
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.binfalse.bflog.LOGGER;
+
+
+/**
+ * The Class CellMLHierarchyIndex is an immutable snapshot of a
+ * {@link CellMLHierarchyNetwork}, which answers questions about the hierarchy
+ * in constant time.
+ *
+ * <p>
+ * Every component in the network gets an id, which is its position in a
+ * pre-order traversal of the hierarchy. Thus, all components encapsulated by a
+ * component occupy a contiguous interval of ids right after it, and a component
+ * is an ancestor of another one if the id of the other one falls into its
+ * interval. Parents, depths, and children are stored in plain arrays.
+ * </p>
+ *
+ * <p>
+ * Components that are not part of the network are treated as top-level
+ * components, just like the network does. The index doesn't reflect later
+ * changes to the network, use {@link CellMLHierarchyNetwork#getIndex()} to get
+ * an up-to-date index.
+ * </p>
+ *
+ * @author Martin Scharm
+ */
+public class CellMLHierarchyIndex
+{
+	
+	/** The components, id -&gt; component. */
+	private CellMLComponent [] components;
+	
+	/** The parents, id -&gt; id of the parent, or -1 for top-level components. */
+	private int [] parent;
+	
+	/** The depths, id -&gt; number of ancestors. */
+	private int [] depth;
+	
+	/** The size of the subtrees, id -&gt; number of components in the subtree rooted at this component. */
+	private int [] size;
+	
+	/** The offsets into childIds, the children of id are stored in childIds[childOffset[id]] to childIds[childOffset[id + 1] - 1]. */
+	private int [] childOffset;
+	
+	/** The ids of the children, ordered by parent. */
+	private int [] childIds;
+	
+	/** The ids of the components, component -&gt; id. Kept in the index, as imported components are part of the hierarchies of several models. */
+	private final Map<CellMLComponent, Integer> ids;
+	
+	/** The version of the network this index was built from. */
+	private int version;
+	
+	
+	/**
+	 * Builds the index of a hierarchy network.
+	 *
+	 * @param network the network
+	 * @param version the version of the network
+	 */
+	CellMLHierarchyIndex (CellMLHierarchyNetwork network, int version)
+	{
+		this.version = version;
+		int n = network.getNodes ().size ();
+		components = new CellMLComponent [n];
+		parent = new int [n];
+		depth = new int [n];
+		size = new int [n];
+		ids = new IdentityHashMap<CellMLComponent, Integer> (n);
+		
+		// number the components in pre-order, starting from the top-level components
+		int next = 0;
+		Deque<CellMLHierarchyNode> todo = new ArrayDeque<CellMLHierarchyNode> ();
+		for (CellMLHierarchyNode root : network.getNodes ())
+		{
+			if (root.getParent () != null)
+				continue;
+			todo.push (root);
+			while (!todo.isEmpty ())
+			{
+				CellMLHierarchyNode current = todo.pop ();
+				ids.put (current.getComponent (), next);
+				components[next++] = current.getComponent ();
+				List<CellMLHierarchyNode> children = current.getChildren ();
+				for (int i = children.size () - 1; i >= 0; i--)
+					todo.push (children.get (i));
+			}
+		}
+		
+		// components that cannot be reached from the top are part of a cycle
+		if (next < n)
+		{
+			LOGGER.warn ("hierarchy ", network.getRelationship (), ":", network.getName (), " contains cycles, ", (n - next), " components are not properly encapsulated");
+			for (CellMLHierarchyNode node : network.getNodes ())
+				if (!ids.containsKey (node.getComponent ()))
+				{
+					ids.put (node.getComponent (), next);
+					components[next++] = node.getComponent ();
+				}
+		}
+		
+		// parents and depths, parents precede their children
+		int [] childCount = new int [n];
+		for (int id = 0; id < n; id++)
+		{
+			CellMLHierarchyNode p = network.getNode (components[id]).getParent ();
+			parent[id] = p == null ? -1 : ids.get (p.getComponent ());
+			if (parent[id] >= 0)
+			{
+				childCount[parent[id]]++;
+				if (parent[id] < id)
+					depth[id] = depth[parent[id]] + 1;
+			}
+		}
+		
+		// subtree sizes, children follow their parents
+		for (int id = n - 1; id >= 0; id--)
+		{
+			size[id]++;
+			if (parent[id] >= 0 && parent[id] < id)
+				size[parent[id]] += size[id];
+		}
+		
+		// children, in the order of the network
+		childOffset = new int [n + 1];
+		for (int id = 0; id < n; id++)
+			childOffset[id + 1] = childOffset[id] + childCount[id];
+		childIds = new int [childOffset[n]];
+		for (int id = 0; id < n; id++)
+		{
+			int k = childOffset[id];
+			for (CellMLHierarchyNode child : network.getNode (components[id]).getChildren ())
+				childIds[k++] = ids.get (child.getComponent ());
+		}
+	}
+	
+	
+	/**
+	 * Gets the id of a component.
+	 *
+	 * @param component the component
+	 * @return the id, or -1 if the component isn't part of the hierarchy
+	 */
+	private int id (CellMLComponent component)
+	{
+		if (component == null)
+			return -1;
+		Integer id = ids.get (component);
+		return id == null ? -1 : id;
+	}
+	
+	
+	/**
+	 * Gets the version of the network this index was built from.
+	 *
+	 * @return the version
+	 */
+	int getVersion ()
+	{
+		return version;
+	}
+	
+	
+	/**
+	 * Gets the number of components in the hierarchy.
+	 *
+	 * @return the number of components
+	 */
+	public int size ()
+	{
+		return components.length;
+	}
+	
+	
+	/**
+	 * Checks if a component is part of the hierarchy.
+	 *
+	 * @param component the component
+	 * @return true, if the component is part of the hierarchy
+	 */
+	public boolean contains (CellMLComponent component)
+	{
+		return id (component) >= 0;
+	}
+	
+	
+	/**
+	 * Gets the parent of a component.
+	 *
+	 * @param component the component
+	 * @return the parent, or null if the component is a top-level component
+	 */
+	public CellMLComponent getParent (CellMLComponent component)
+	{
+		int id = id (component);
+		if (id < 0 || parent[id] < 0)
+			return null;
+		return components[parent[id]];
+	}
+	
+	
+	/**
+	 * Gets the depth of a component, that is the number of its ancestors.
+	 *
+	 * @param component the component
+	 * @return the depth, 0 for top-level components
+	 */
+	public int getDepth (CellMLComponent component)
+	{
+		int id = id (component);
+		return id < 0 ? 0 : depth[id];
+	}
+	
+	
+	/**
+	 * Gets the children of a component.
+	 *
+	 * @param component the component
+	 * @return the children, in the order they were defined
+	 */
+	public List<CellMLComponent> getChildren (CellMLComponent component)
+	{
+		final int id = id (component);
+		if (id < 0)
+			return Collections.emptyList ();
+		return new AbstractList<CellMLComponent> ()
+		{
+			
+			/* (non-Javadoc)
+			 * @see java.util.AbstractList#get(int)
+			 */
+			@Override
+			public CellMLComponent get (int index)
+			{
+				if (index < 0 || index >= size ())
+					throw new IndexOutOfBoundsException ("index: " + index + ", size: " + size ());
+				return components[childIds[childOffset[id] + index]];
+			}
+			
+			
+			/* (non-Javadoc)
+			 * @see java.util.AbstractCollection#size()
+			 */
+			@Override
+			public int size ()
+			{
+				return childOffset[id + 1] - childOffset[id];
+			}
+		};
+	}
+	
+	
+	/**
+	 * Gets all components that are encapsulated by a component, directly or
+	 * indirectly. The components are ordered breadth-first, so parents always
+	 * precede their children.
+	 *
+	 * @param component the component
+	 * @return the encapsulated components
+	 */
+	public List<CellMLComponent> getDescendants (CellMLComponent component)
+	{
+		int id = id (component);
+		if (id < 0)
+			return Collections.emptyList ();
+		List<CellMLComponent> descendants = new ArrayList<CellMLComponent> (size[id] - 1);
+		ArrayDeque<Integer> todo = new ArrayDeque<Integer> ();
+		todo.add (id);
+		while (!todo.isEmpty ())
+		{
+			int current = todo.poll ();
+			for (int k = childOffset[current]; k < childOffset[current + 1]; k++)
+			{
+				// don't run in circles
+				if (childIds[k] == id)
+					continue;
+				descendants.add (components[childIds[k]]);
+				todo.add (childIds[k]);
+			}
+		}
+		return descendants;
+	}
+	
+	
+	/**
+	 * Checks if a component encapsulates another component, directly or
+	 * indirectly.
+	 *
+	 * @param ancestor the potential ancestor
+	 * @param descendant the potential descendant
+	 * @return true, if <code>descendant</code> is encapsulated in <code>ancestor</code>
+	 */
+	public boolean isAncestor (CellMLComponent ancestor, CellMLComponent descendant)
+	{
+		int a = id (ancestor), d = id (descendant);
+		return a >= 0 && d > a && d < a + size[a];
+	}
+	
+	
+	/**
+	 * Gets the relationship of two components.
+	 *
+	 * @param component_1 the first component
+	 * @param component_2 the second component
+	 * @return the relationship, one of {@link CellMLHierarchy#RELATION_SIBLING}, {@link CellMLHierarchy#RELATION_PARENT}, {@link CellMLHierarchy#RELATION_ENCAPSULATED}, and {@link CellMLHierarchy#RELATION_HIDDEN}
+	 */
+	public int getRelationship (CellMLComponent component_1, CellMLComponent component_2)
+	{
+		int id_1 = id (component_1), id_2 = id (component_2);
+		int parent_1 = id_1 < 0 ? -1 : parent[id_1];
+		int parent_2 = id_2 < 0 ? -1 : parent[id_2];
+		
+		if (parent_1 == parent_2)
+			return CellMLHierarchy.RELATION_SIBLING;
+		if (id_1 >= 0 && id_1 == parent_2)
+			return CellMLHierarchy.RELATION_PARENT;
+		if (id_2 >= 0 && parent_1 == id_2)
+			return CellMLHierarchy.RELATION_ENCAPSULATED;
+		return CellMLHierarchy.RELATION_HIDDEN;
+	}
+}
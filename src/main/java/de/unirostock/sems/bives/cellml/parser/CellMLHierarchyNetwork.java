@@ -26,6 +26,12 @@ public class CellMLHierarchyNetwork
 	/** The component mapper. */
 	private HashMap<CellMLComponent, CellMLHierarchyNode> componentMapper;
 	
+	/** The number of changes to this network. */
+	private int version;
+	
+	/** The index of this network, might be outdated. */
+	private volatile CellMLHierarchyIndex index;
+	
 	/**
 	 * Instantiates a new CellML hierarchy network.
 	 *
@@ -75,6 +81,7 @@ public class CellMLHierarchyNetwork
 		{
 			node = new CellMLHierarchyNode (component);
 			componentMapper.put (component, node);
+			version++;
 		}
 		return node;
 	}
@@ -107,6 +114,25 @@ public class CellMLHierarchyNetwork
 		
 		pNode.addChild (kNode);
 		kNode.setParent (pNode);
+		version++;
+	}
+	
+	/**
+	 * Gets the index of this network, which answers questions about the
+	 * hierarchy in constant time. The index is built on demand and rebuilt if
+	 * the network changed since.
+	 *
+	 * @return the index
+	 */
+	public CellMLHierarchyIndex getIndex ()
+	{
+		CellMLHierarchyIndex current = index;
+		if (current == null || current.getVersion () != version)
+		{
+			current = new CellMLHierarchyIndex (this, version);
+			index = current;
+		}
+		return current;
 	}
 	
 	/**
@@ -0,0 +1,325 @@
+/**
+ *
+ */
+package de.unirostock.sems.bives.cellml.parser;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jdom2.Document;
+import org.jdom2.JDOMException;
+
+import de.binfalse.bflog.LOGGER;
+
+
+/**
+ * The Class CellMLImportCache caches the parsed documents of imported CellML
+ * models, so that a library which is imported by many models is only parsed once.
+ *
+ * <p>
+ * The cache is shared by all importers of this JVM. Entries are keyed by the
+ * resolved URI of the imported document plus the SHA-256 hash of its content,
+ * thus a changed document will never be served from the cache. The number of
+ * cached documents is bounded, the least recently used document gets evicted
+ * first.
+ * </p>
+ *
+ * <p>
+ * Importing renames units and components, hence the cached documents are never
+ * handed out directly. Every request gets its own copy of the cached document.
+ * </p>
+ *
+ * @author Martin Scharm
+ */
+public class CellMLImportCache
+{
+
+	/** The default maximum number of cached documents. */
+	public static final int DEFAULT_MAX_SIZE = 64;
+	
+	/** The maximum number of cached documents. */
+	private static int maxSize = DEFAULT_MAX_SIZE;
+	
+	/** Is the cache enabled?, only changed while holding the lock of the cache. */
+	private static volatile boolean enabled = true;
+	
+	/** The number of cache hits. */
+	private static long hits;
+	
+	/** The number of cache misses. */
+	private static long misses;
+	
+	/** The cached documents in access order, the eldest entry is evicted first. */
+	private static final LinkedHashMap<String, Document> cache = new LinkedHashMap<String, Document> (16, .75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry (Map.Entry<String, Document> eldest)
+		{
+			return size () > maxSize;
+		}
+	};
+	
+	
+	/**
+	 * Static class, don't instantiate.
+	 */
+	private CellMLImportCache ()
+	{
+	}
+	
+	
+	/**
+	 * Gets the document that is stored at <code>uri</code> and has the content
+	 * <code>content</code>. If the document is not yet cached it will be parsed
+	 * and stored in the cache. The returned document is a private copy of the
+	 * cached document and may be modified by the caller.
+	 *
+	 * @param uri the resolved URI of the document
+	 * @param content the content of the document
+	 * @return the parsed document
+	 * @throws JDOMException the JDOM exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static Document getDocument (URI uri, byte [] content) throws JDOMException, IOException
+	{
+		if (!isEnabled ())
+			return parse (uri, content);
+		
+		String sha256 = sha256 (content);
+		Document doc = get (uri, sha256);
+		if (doc != null)
+			return doc;
+		return put (uri, sha256, parse (uri, content));
+	}
+	
+	
+	/**
+	 * Gets a cached document, identified by its URI and the SHA-256 of its
+	 * content, and counts the request as hit or miss. The returned document is a
+	 * private copy of the cached document.
+	 *
+	 * @param uri the resolved URI of the document
+	 * @param sha256 the hex encoded SHA-256 of the document's content
+	 * @return the document, or null if it is not cached
+	 */
+	static Document get (URI uri, String sha256)
+	{
+		Document cached;
+		synchronized (cache)
+		{
+			if (!enabled)
+				return null;
+			cached = cache.get (key (uri, sha256));
+			if (cached != null)
+				hits++;
+			else
+				misses++;
+		}
+		if (cached == null)
+		{
+			LOGGER.debug ("import cache miss for ", uri);
+			return null;
+		}
+		LOGGER.debug ("import cache hit for ", uri);
+		return cached.clone ();
+	}
+	
+	
+	/**
+	 * Stores a document after a miss, e.g. read from the
+	 * {@link CellMLImportDiskCache disk cache} or freshly parsed.
+	 *
+	 * @param uri the resolved URI of the document
+	 * @param sha256 the hex encoded SHA-256 of the document's content
+	 * @param doc the document, which must not be modified afterwards
+	 * @return a private copy of the document
+	 */
+	static Document put (URI uri, String sha256, Document doc)
+	{
+		synchronized (cache)
+		{
+			// checked under the lock, so a concurrent setEnabled can't be undone
+			if (!enabled)
+				return doc;
+			cache.put (key (uri, sha256), doc);
+		}
+		return doc.clone ();
+	}
+	
+	
+	/**
+	 * Gets the key of a document in the cache.
+	 *
+	 * @param uri the resolved URI of the document
+	 * @param sha256 the hex encoded SHA-256 of the document's content
+	 * @return the key
+	 */
+	private static String key (URI uri, String sha256)
+	{
+		return uri + "#" + sha256;
+	}
+	
+	
+	/**
+	 * Parses a document.
+	 *
+	 * @param uri the URI of the document
+	 * @param content the content of the document
+	 * @return the parsed document
+	 * @throws JDOMException the JDOM exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	static Document parse (URI uri, byte [] content) throws JDOMException, IOException
+	{
+		return CellMLStringPool.createSAXBuilder ().build (new ByteArrayInputStream (content), uri.toString ());
+	}
+	
+	
+	/**
+	 * Computes the SHA-256 hash of some content.
+	 *
+	 * @param content the content
+	 * @return the hex encoded hash
+	 */
+	static String sha256 (byte [] content)
+	{
+		try
+		{
+			byte [] digest = MessageDigest.getInstance ("SHA-256").digest (content);
+			StringBuilder hex = new StringBuilder (digest.length * 2);
+			for (byte b : digest)
+				hex.append (Character.forDigit ((b >> 4) & 0xF, 16)).append (Character.forDigit (b & 0xF, 16));
+			return hex.toString ();
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			// every java platform has to support SHA-256
+			throw new RuntimeException (e);
+		}
+	}
+	
+	
+	/**
+	 * Checks if the cache is enabled.
+	 *
+	 * @return true, if imported documents are cached
+	 */
+	public static boolean isEnabled ()
+	{
+		return enabled;
+	}
+	
+	
+	/**
+	 * Enables or disables the cache. Disabling the cache also drops all cached
+	 * documents.
+	 *
+	 * @param enabled should imported documents be cached?
+	 */
+	public static void setEnabled (boolean enabled)
+	{
+		synchronized (cache)
+		{
+			CellMLImportCache.enabled = enabled;
+			if (!enabled)
+				clear ();
+		}
+	}
+	
+	
+	/**
+	 * Gets the maximum number of cached documents.
+	 *
+	 * @return the maximum size
+	 */
+	public static int getMaxSize ()
+	{
+		synchronized (cache)
+		{
+			return maxSize;
+		}
+	}
+	
+	
+	/**
+	 * Sets the maximum number of cached documents. If the cache currently
+	 * contains more documents the least recently used ones will be evicted.
+	 *
+	 * @param maxSize the new maximum size
+	 */
+	public static void setMaxSize (int maxSize)
+	{
+		if (maxSize < 1)
+			throw new IllegalArgumentException ("size of import cache must be positive");
+		synchronized (cache)
+		{
+			CellMLImportCache.maxSize = maxSize;
+			while (cache.size () > maxSize)
+				cache.remove (cache.keySet ().iterator ().next ());
+		}
+	}
+	
+	
+	/**
+	 * Gets the number of currently cached documents.
+	 *
+	 * @return the number of documents in the cache
+	 */
+	public static int size ()
+	{
+		synchronized (cache)
+		{
+			return cache.size ();
+		}
+	}
+	
+	
+	/**
+	 * Gets the number of requests that were served from the cache.
+	 *
+	 * @return the number of cache hits
+	 */
+	public static long getHits ()
+	{
+		synchronized (cache)
+		{
+			return hits;
+		}
+	}
+	
+	
+	/**
+	 * Gets the number of requests that were not served from the cache, the
+	 * document was read from the disk cache or parsed.
+	 *
+	 * @return the number of cache misses
+	 */
+	public static long getMisses ()
+	{
+		synchronized (cache)
+		{
+			return misses;
+		}
+	}
+	
+	
+	/**
+	 * Drops all cached documents and resets the statistics.
+	 */
+	public static void clear ()
+	{
+		synchronized (cache)
+		{
+			cache.clear ();
+			hits = 0;
+			misses = 0;
+		}
+	}
+}
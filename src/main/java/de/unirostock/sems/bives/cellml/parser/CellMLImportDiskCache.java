@@ -0,0 +1,349 @@
+/**
+ *
+ */
+package de.unirostock.sems.bives.cellml.parser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+
+import org.jdom2.Document;
+
+import de.binfalse.bflog.LOGGER;
+
+
+/**
+ * The Class CellMLImportDiskCache persists parsed imported documents across
+ * JVM restarts.
+ *
+ * <p>
+ * Every imported document is stored as a {@link CellMLSnapshot} in a local
+ * cache directory, keyed by its canonical URI. An entry is only used if it is
+ * still valid:
+ * </p>
+ * <ul>
+ * <li>for local files the modification time and length of the file have to
+ * match, so the file doesn't need to be read at all,</li>
+ * <li>for remote documents the SHA-256 of the raw bytes has to match, so only
+ * the parsing is saved. If remote documents are
+ * {@link #setVerifyRemote(boolean) trusted}, cached entries are used without
+ * downloading the document again.</li>
+ * </ul>
+ *
+ * <p>
+ * The disk cache is disabled until a cache directory is set.
+ * </p>
+ *
+ * @author Martin Scharm
+ */
+public final class CellMLImportDiskCache
+{
+	
+	/** The version of the entry format. */
+	private static final int VERSION = 1;
+	
+	/** The cache directory, null if disabled. */
+	private static volatile File directory;
+	
+	/** Should remote entries be verified against the raw bytes of the document?. */
+	private static volatile boolean verifyRemote = true;
+	
+	/**
+	 * Static class, don't instantiate.
+	 */
+	private CellMLImportDiskCache ()
+	{
+	}
+	
+	/**
+	 * Sets the cache directory. Pass <code>null</code> to disable the disk cache.
+	 *
+	 * @param directory the cache directory
+	 * @throws IOException if the directory cannot be created
+	 */
+	public static void setDirectory (File directory) throws IOException
+	{
+		if (directory != null && !directory.isDirectory () && !directory.mkdirs ())
+			throw new IOException ("cannot create cache directory " + directory);
+		CellMLImportDiskCache.directory = directory;
+	}
+	
+	/**
+	 * Gets the cache directory.
+	 *
+	 * @return the cache directory, or null if the disk cache is disabled
+	 */
+	public static File getDirectory ()
+	{
+		return directory;
+	}
+	
+	/**
+	 * Sets whether cached remote documents have to be verified. If true (the
+	 * default) remote documents are retrieved and compared to the cached entry by
+	 * their SHA-256. Otherwise cached entries of remote documents are used without
+	 * retrieving the document.
+	 *
+	 * @param verifyRemote should remote entries be verified?
+	 */
+	public static void setVerifyRemote (boolean verifyRemote)
+	{
+		CellMLImportDiskCache.verifyRemote = verifyRemote;
+	}
+	
+	/**
+	 * Checks whether cached remote documents are verified.
+	 *
+	 * @return true, if remote entries are verified
+	 */
+	public static boolean isVerifyRemote ()
+	{
+		return verifyRemote;
+	}
+	
+	/**
+	 * Drops all cached entries.
+	 */
+	public static void clear ()
+	{
+		File dir = directory;
+		if (dir == null)
+			return;
+		File [] entries = dir.listFiles ();
+		if (entries != null)
+			for (File f : entries)
+				if (f.getName ().endsWith (".snapshot"))
+					f.delete ();
+	}
+	
+	/**
+	 * Gets the SHA-256 of a document that can be validated without its raw
+	 * bytes, i.e. a local file or, if remote documents are not verified, a remote
+	 * document. Only the header of the entry is read.
+	 *
+	 * @param uri the location of the document
+	 * @return the SHA-256 of the cached document, or null if there is no valid entry
+	 */
+	static String getHash (URI uri)
+	{
+		File local = getLocalFile (uri);
+		File dir = directory;
+		if (dir == null || (local == null && verifyRemote))
+			return null;
+		File entry = getEntry (dir, uri);
+		if (!entry.exists ())
+			return null;
+		
+		try
+		{
+			DataInputStream in = new DataInputStream (new BufferedInputStream (new FileInputStream (entry)));
+			try
+			{
+				return readHeader (in, uri, local);
+			}
+			finally
+			{
+				in.close ();
+			}
+		}
+		catch (IOException e)
+		{
+			LOGGER.warn (e, "dropping corrupt cache entry for ", uri);
+			entry.delete ();
+			return null;
+		}
+	}
+	
+	/**
+	 * Looks up a document that can be validated without its raw bytes, i.e. a
+	 * local file or, if remote documents are not verified, a remote document.
+	 *
+	 * @param uri the location of the document
+	 * @param sha256 the hash to validate the entry against, see {@link #getHash(URI)}
+	 * @return the cached document, or null if there is no valid entry
+	 */
+	static Document get (URI uri, String sha256)
+	{
+		if (directory == null)
+			return null;
+		File local = getLocalFile (uri);
+		if (local == null && verifyRemote)
+			return null;
+		return read (uri, local, sha256);
+	}
+	
+	/**
+	 * Looks up a document and validates the entry by the SHA-256 of the raw bytes.
+	 *
+	 * @param uri the location of the document
+	 * @param sha256 the hex encoded SHA-256 of the raw bytes of the document
+	 * @return the cached document, or null if there is no valid entry
+	 */
+	static Document getByContent (URI uri, String sha256)
+	{
+		if (directory == null)
+			return null;
+		return read (uri, null, sha256);
+	}
+	
+	/**
+	 * Stores a document in the cache.
+	 *
+	 * @param uri the location of the document
+	 * @param sha256 the hex encoded SHA-256 of the raw bytes of the document
+	 * @param doc the parsed document
+	 */
+	static void put (URI uri, String sha256, Document doc)
+	{
+		File dir = directory;
+		if (dir == null)
+			return;
+		
+		File local = getLocalFile (uri);
+		File entry = getEntry (dir, uri);
+		File tmp = null;
+		try
+		{
+			tmp = File.createTempFile ("entry", ".tmp", dir);
+			DataOutputStream out = new DataOutputStream (new BufferedOutputStream (new FileOutputStream (tmp)));
+			try
+			{
+				out.writeInt (VERSION);
+				out.writeUTF (uri.toString ());
+				out.writeUTF (sha256);
+				out.writeLong (local == null ? -1 : local.lastModified ());
+				out.writeLong (local == null ? -1 : local.length ());
+				CellMLSnapshot.write (doc, out);
+			}
+			finally
+			{
+				out.close ();
+			}
+			if (!tmp.renameTo (entry))
+			{
+				entry.delete ();
+				if (!tmp.renameTo (entry))
+					throw new IOException ("cannot move " + tmp + " to " + entry);
+			}
+			tmp = null;
+		}
+		catch (IOException e)
+		{
+			LOGGER.warn (e, "cannot write cache entry for ", uri);
+		}
+		finally
+		{
+			if (tmp != null)
+				tmp.delete ();
+		}
+	}
+	
+	/**
+	 * Reads an entry, if it is valid.
+	 *
+	 * @param uri the location of the document
+	 * @param local the local file to validate the entry against, or null
+	 * @param sha256 the hash to validate the entry against, or null
+	 * @return the cached document, or null if there is no valid entry
+	 */
+	private static Document read (URI uri, File local, String sha256)
+	{
+		File dir = directory;
+		if (dir == null)
+			return null;
+		File entry = getEntry (dir, uri);
+		if (!entry.exists ())
+			return null;
+		
+		try
+		{
+			DataInputStream in = new DataInputStream (new BufferedInputStream (new FileInputStream (entry)));
+			try
+			{
+				String hash = readHeader (in, uri, local);
+				if (hash == null || (sha256 != null && !sha256.equals (hash)))
+					return null;
+				LOGGER.debug ("disk cache hit for ", uri);
+				return CellMLSnapshot.read (in);
+			}
+			finally
+			{
+				in.close ();
+			}
+		}
+		catch (IOException e)
+		{
+			LOGGER.warn (e, "dropping corrupt cache entry for ", uri);
+			entry.delete ();
+			return null;
+		}
+		catch (RuntimeException e)
+		{
+			// invalid names or indices in a damaged snapshot
+			LOGGER.warn (e, "dropping corrupt cache entry for ", uri);
+			entry.delete ();
+			return null;
+		}
+	}
+	
+	/**
+	 * Reads the header of an entry.
+	 *
+	 * @param in the stream of the entry
+	 * @param uri the location of the document
+	 * @param local the local file to validate the entry against, or null
+	 * @return the SHA-256 of the cached document, or null if the entry is not valid
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static String readHeader (DataInputStream in, URI uri, File local) throws IOException
+	{
+		if (in.readInt () != VERSION || !in.readUTF ().equals (uri.toString ()))
+			return null;
+		String hash = in.readUTF ();
+		long modified = in.readLong ();
+		long length = in.readLong ();
+		if (local != null && (modified != local.lastModified () || length != local.length ()))
+			return null;
+		return hash;
+	}
+	
+	/**
+	 * Gets the local file of a document.
+	 *
+	 * @param uri the location of the document
+	 * @return the file, or null if the document is not a plain local file
+	 */
+	private static File getLocalFile (URI uri)
+	{
+		if (!"file".equals (uri.getScheme ()))
+			return null;
+		return CellMLImporter.getLocalFile (uri);
+	}
+	
+	/**
+	 * Gets the entry file of a document.
+	 *
+	 * @param dir the cache directory
+	 * @param uri the location of the document
+	 * @return the entry file
+	 */
+	private static File getEntry (File dir, URI uri)
+	{
+		try
+		{
+			return new File (dir, CellMLImportCache.sha256 (uri.normalize ().toString ().getBytes ("UTF-8")) + ".snapshot");
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			// every java platform has to support UTF-8
+			throw new RuntimeException (e);
+		}
+	}
+}
@@ -0,0 +1,426 @@
+/**
+ *
+ */
+package de.unirostock.sems.bives.cellml.parser;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.Namespace;
+
+import de.binfalse.bflog.LOGGER;
+import de.binfalse.bfutils.FileRetriever;
+import de.unirostock.sems.bives.exception.BivesImportException;
+import de.unirostock.sems.bives.exception.BivesLogicalException;
+import de.unirostock.sems.xmlutils.ds.DocumentNode;
+import de.unirostock.sems.xmlutils.ds.TreeDocument;
+import de.unirostock.sems.xmlutils.ds.TreeNode;
+
+
+/**
+ * The Class CellMLImportGraph representing the transitive imports of a CellML
+ * document.
+ *
+ * <p>
+ * The graph is computed in a pre-pass before the model is parsed. Every
+ * distinct imported document is retrieved and parsed exactly once, even if it
+ * is imported by several documents. Cyclic imports are detected and reported
+ * with the chain of documents that form the cycle.
+ * </p>
+ *
+ * <p>
+ * The graph can be queried for the dependencies of the document, e.g. to
+ * invalidate cached results if one of the imported files changes.
+ * </p>
+ *
+ * @author Martin Scharm
+ */
+public class CellMLImportGraph
+{
+	
+	/** The XLink namespace. */
+	private static final Namespace XLINK = Namespace.getNamespace ("xlink", "http://www.w3.org/1999/xlink");
+	
+	/** The location of the importing document. */
+	private URI root;
+	
+	/** The parsed imported documents, in bottom-up order. */
+	private LinkedHashMap<URI, Document> documents;
+	
+	/** The direct imports of every document. */
+	private Map<URI, List<URI>> imports;
+	
+	/** The transitive imports of every document. */
+	private Map<URI, Set<URI>> closure;
+	
+	/** Documents that are already parsed, e.g. read from a snapshot, may be null. */
+	private Map<URI, Document> preloaded;
+	
+	/**
+	 * Instantiates a new import graph, retrieving and parsing all documents that
+	 * are imported by <code>doc</code>, directly or indirectly.
+	 *
+	 * @param doc the importing document
+	 * @throws BivesImportException if an import cannot be retrieved or if there is a cyclic import
+	 */
+	public CellMLImportGraph (TreeDocument doc) throws BivesImportException
+	{
+		this (doc, null);
+	}
+	
+	/**
+	 * Instantiates a new import graph. Imported documents are taken from
+	 * <code>preloaded</code>, only unknown documents are retrieved and parsed.
+	 *
+	 * @param doc the importing document
+	 * @param preloaded the already parsed documents, location -&gt; document, may be null
+	 * @throws BivesImportException if an import cannot be retrieved or if there is a cyclic import
+	 */
+	CellMLImportGraph (TreeDocument doc, Map<URI, Document> preloaded) throws BivesImportException
+	{
+		this.preloaded = preloaded;
+		root = doc.getBaseUri () == null ? null : doc.getBaseUri ().normalize ();
+		documents = new LinkedHashMap<URI, Document> ();
+		imports = new HashMap<URI, List<URI>> ();
+		closure = new HashMap<URI, Set<URI>> ();
+		
+		List<URI> rootImports = new ArrayList<URI> ();
+		for (String href : getHrefs (doc.getRoot ()))
+			rootImports.add (resolve (href, root));
+		
+		explore (rootImports);
+		
+		// documents are sorted bottom-up, so we can compute the closure in a single sweep
+		for (URI uri : documents.keySet ())
+			closure.put (uri, computeClosure (imports.get (uri)));
+		closure.put (root, computeClosure (rootImports));
+		imports.put (root, rootImports);
+	}
+	
+	/**
+	 * Explores the import graph depth first, starting at the imports of the root
+	 * document. Explored documents are stored in post-order, i.e. every document
+	 * succeeds all of its imports.
+	 *
+	 * @param rootImports the imports of the root document
+	 * @throws BivesImportException if an import cannot be retrieved or if there is a cyclic import
+	 */
+	private void explore (List<URI> rootImports) throws BivesImportException
+	{
+		// an explicit stack, as import chains might be deeper than the call stack
+		Map<URI, Document> parsed = new HashMap<URI, Document> ();
+		List<URI> path = new ArrayList<URI> ();
+		List<Integer> next = new ArrayList<Integer> ();
+		Set<URI> onPath = new HashSet<URI> ();
+		
+		path.add (root);
+		next.add (0);
+		onPath.add (root);
+		prefetch (rootImports, parsed);
+		
+		while (!path.isEmpty ())
+		{
+			int top = path.size () - 1;
+			URI current = path.get (top);
+			List<URI> children = top == 0 ? rootImports : imports.get (current);
+			int i = next.get (top);
+			
+			if (i >= children.size ())
+			{
+				// all imports of the current document are done
+				path.remove (top);
+				next.remove (top);
+				onPath.remove (current);
+				if (top > 0)
+					documents.put (current, parsed.remove (current));
+				continue;
+			}
+			next.set (top, i + 1);
+			
+			URI child = children.get (i);
+			if (onPath.contains (child))
+				throw new BivesImportException (child.toString (), new BivesLogicalException ("cyclic import: " + cycle (path, child)));
+			if (imports.containsKey (child))
+				continue;
+			
+			Document d = parsed.get (child);
+			if (d == null)
+			{
+				d = load (child);
+				parsed.put (child, d);
+			}
+			List<URI> childImports = new ArrayList<URI> ();
+			for (String href : getHrefs (d.getRootElement ()))
+				childImports.add (resolve (href, child));
+			imports.put (child, childImports);
+			prefetch (childImports, parsed);
+			
+			path.add (child);
+			next.add (0);
+			onPath.add (child);
+		}
+	}
+	
+	/**
+	 * Retrieves and parses the unknown documents among the imports of a document.
+	 * If the {@link CellMLImporter#setExecutor(java.util.concurrent.ExecutorService) importer's executor}
+	 * is set, the documents are loaded concurrently.
+	 *
+	 * @param uris the imports of a document
+	 * @param parsed the documents that are parsed but not yet finished
+	 * @throws BivesImportException if an import cannot be retrieved or parsed
+	 */
+	private void prefetch (List<URI> uris, Map<URI, Document> parsed) throws BivesImportException
+	{
+		List<URI> unknown = new ArrayList<URI> ();
+		List<Callable<Document>> loaders = new ArrayList<Callable<Document>> ();
+		for (final URI uri : uris)
+			if (!imports.containsKey (uri) && !parsed.containsKey (uri) && !unknown.contains (uri))
+			{
+				unknown.add (uri);
+				loaders.add (new Callable<Document> ()
+				{
+					public Document call () throws BivesImportException
+					{
+						return load (uri);
+					}
+				});
+			}
+		
+		List<Document> loaded;
+		try
+		{
+			loaded = CellMLTasks.invokeAll (CellMLImporter.getExecutor (), loaders);
+		}
+		catch (BivesImportException e)
+		{
+			throw e;
+		}
+		catch (RuntimeException e)
+		{
+			throw e;
+		}
+		catch (Exception e)
+		{
+			throw new BivesImportException (root == null ? null : root.toString (), e);
+		}
+		for (int i = 0; i < unknown.size (); i++)
+			parsed.put (unknown.get (i), loaded.get (i));
+	}
+	
+	/**
+	 * Describes a cycle of imports.
+	 *
+	 * @param path the current path of imports
+	 * @param closing the document that closes the cycle
+	 * @return the description, e.g. <code>a.cellml -&gt; b.cellml -&gt; a.cellml</code>
+	 */
+	private static String cycle (List<URI> path, URI closing)
+	{
+		StringBuilder sb = new StringBuilder ();
+		for (int i = path.indexOf (closing); i < path.size (); i++)
+			sb.append (path.get (i)).append (" -> ");
+		return sb.append (closing).toString ();
+	}
+	
+	/**
+	 * Computes the transitive imports of a document whose imports are already known.
+	 *
+	 * @param direct the direct imports of the document
+	 * @return the transitive imports
+	 */
+	private Set<URI> computeClosure (List<URI> direct)
+	{
+		Set<URI> all = new LinkedHashSet<URI> ();
+		for (URI uri : direct)
+		{
+			all.add (uri);
+			all.addAll (closure.get (uri));
+		}
+		return Collections.unmodifiableSet (all);
+	}
+	
+	/**
+	 * Retrieves and parses an imported document, unless it is preloaded.
+	 *
+	 * @param uri the location of the document
+	 * @return the parsed document
+	 * @throws BivesImportException if the document cannot be retrieved or parsed
+	 */
+	private Document load (URI uri) throws BivesImportException
+	{
+		if (preloaded != null && preloaded.containsKey (uri))
+			return preloaded.get (uri);
+		LOGGER.info ("retrieving import ", uri);
+		try
+		{
+			return CellMLImporter.load (uri);
+		}
+		catch (Exception e)
+		{
+			throw new BivesImportException (uri.toString (), e);
+		}
+	}
+	
+	/**
+	 * Resolves the location of an import.
+	 *
+	 * @param href the href of the import
+	 * @param base the location of the importing document
+	 * @return the normalized location of the imported document
+	 * @throws BivesImportException if the location is invalid
+	 */
+	private static URI resolve (String href, URI base) throws BivesImportException
+	{
+		try
+		{
+			return FileRetriever.getUri (href, base).normalize ();
+		}
+		catch (Exception e)
+		{
+			throw new BivesImportException (href, e);
+		}
+	}
+	
+	/**
+	 * Gets the targets of the imports in a not yet parsed document.
+	 *
+	 * @param model the model element
+	 * @return the hrefs of all imports
+	 */
+	private static List<String> getHrefs (Element model)
+	{
+		List<String> hrefs = new ArrayList<String> ();
+		for (Element imp : model.getChildren ("import", model.getNamespace ()))
+		{
+			String href = imp.getAttributeValue ("href", XLINK);
+			if (href != null)
+				hrefs.add (href);
+		}
+		return hrefs;
+	}
+	
+	/**
+	 * Gets the targets of the imports in a document.
+	 *
+	 * @param model the model node
+	 * @return the hrefs of all imports
+	 */
+	private static List<String> getHrefs (DocumentNode model)
+	{
+		List<String> hrefs = new ArrayList<String> ();
+		for (TreeNode kid : model.getChildrenWithTag ("import"))
+		{
+			String href = ((DocumentNode) kid).getAttributeValue ("href", "xlink");
+			if (href != null)
+				hrefs.add (href);
+		}
+		return hrefs;
+	}
+	
+	/**
+	 * Gets the location of the importing document.
+	 *
+	 * @return the location of the root document
+	 */
+	public URI getRoot ()
+	{
+		return root;
+	}
+	
+	/**
+	 * Checks if a document is part of this import graph.
+	 *
+	 * @param uri the location of the document
+	 * @return true, if the document is imported directly or indirectly
+	 */
+	public boolean contains (URI uri)
+	{
+		return documents.containsKey (uri.normalize ());
+	}
+	
+	/**
+	 * Gets the locations of all imported documents in bottom-up order. Every
+	 * document is listed after all the documents it imports.
+	 *
+	 * @return the imported documents in bottom-up order
+	 */
+	public List<URI> getTopologicalOrder ()
+	{
+		return Collections.unmodifiableList (new ArrayList<URI> (documents.keySet ()));
+	}
+	
+	/**
+	 * Gets the documents that are imported directly by a document.
+	 *
+	 * @param uri the location of the importing document
+	 * @return the directly imported documents, or null if the document is not part of this graph
+	 */
+	public List<URI> getImports (URI uri)
+	{
+		List<URI> direct = imports.get (uri.normalize ());
+		return direct == null ? null : Collections.unmodifiableList (direct);
+	}
+	
+	/**
+	 * Gets the documents that are imported by a document, directly or indirectly.
+	 *
+	 * @param uri the location of the importing document
+	 * @return the transitively imported documents, or null if the document is not part of this graph
+	 */
+	public Set<URI> getDependencies (URI uri)
+	{
+		return closure.get (uri.normalize ());
+	}
+	
+	/**
+	 * Gets all documents the root document depends on, i.e. all documents that
+	 * are imported directly or indirectly.
+	 *
+	 * @return the dependencies of the root document
+	 */
+	public Set<URI> getDependencies ()
+	{
+		return closure.get (root);
+	}
+	
+	/**
+	 * Gets the documents that depend on a document, i.e. that import it directly
+	 * or indirectly.
+	 *
+	 * @param uri the location of the imported document
+	 * @return the dependent documents
+	 */
+	public Set<URI> getDependents (URI uri)
+	{
+		uri = uri.normalize ();
+		Set<URI> dependents = new LinkedHashSet<URI> ();
+		for (Map.Entry<URI, Set<URI>> entry : closure.entrySet ())
+			if (entry.getValue ().contains (uri))
+				dependents.add (entry.getKey ());
+		return dependents;
+	}
+	
+	/**
+	 * Gets a private copy of an imported document.
+	 *
+	 * @param uri the location of the document
+	 * @return the document, or null if the document is not part of this graph
+	 */
+	Document getDocument (URI uri)
+	{
+		Document d = documents.get (uri.normalize ());
+		return d == null ? null : d.clone ();
+	}
+}
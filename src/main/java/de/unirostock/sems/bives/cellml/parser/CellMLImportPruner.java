@@ -0,0 +1,297 @@
+/**
+ *
+ */
+package de.unirostock.sems.bives.cellml.parser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jdom2.Attribute;
+import org.jdom2.Content;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.Namespace;
+
+
+/**
+ * The Class CellMLImportPruner strips an imported document down to the parts
+ * that are actually needed by an import.
+ *
+ * <p>
+ * The pruned document contains the referenced components, all components they
+ * encapsulate, all units they depend on, and the nested imports providing some
+ * of these. Connections and groups are restricted to the remaining components.
+ * Everything else, e.g. unused components, RDF and documentation at the model
+ * level, is dropped before the model is built.
+ * </p>
+ *
+ * @author Martin Scharm
+ */
+final class CellMLImportPruner
+{
+	
+	/** The model element of the document to prune. */
+	private Element model;
+	
+	/** The namespace of the CellML elements. */
+	private Namespace ns;
+	
+	/** The components that have to be kept. */
+	private Set<String> components;
+	
+	/** The units that have to be kept. */
+	private Set<String> units;
+	
+	/**
+	 * Instantiates a new pruner.
+	 *
+	 * @param doc the document to prune
+	 */
+	private CellMLImportPruner (Document doc)
+	{
+		model = doc.getRootElement ();
+		ns = model.getNamespace ();
+		components = new HashSet<String> ();
+		units = new HashSet<String> ();
+	}
+	
+	/**
+	 * Prunes an imported document in place, so that it only contains what is
+	 * needed to import the given components and units.
+	 *
+	 * @param doc the imported document
+	 * @param componentRefs the names of the components to import
+	 * @param unitRefs the names of the units to import
+	 */
+	static void prune (Document doc, Set<String> componentRefs, Set<String> unitRefs)
+	{
+		CellMLImportPruner pruner = new CellMLImportPruner (doc);
+		pruner.collectComponents (componentRefs);
+		pruner.collectUnits (unitRefs);
+		pruner.pruneModel ();
+	}
+	
+	/**
+	 * Collects the referenced components and all components encapsulated by them.
+	 *
+	 * @param refs the referenced components
+	 */
+	private void collectComponents (Set<String> refs)
+	{
+		// encapsulation hierarchy: parent -> children
+		Map<String, List<String>> encapsulated = new HashMap<String, List<String>> ();
+		for (Element group : model.getChildren ("group", ns))
+		{
+			boolean encapsulation = false;
+			for (Element rel : group.getChildren ("relationship_ref", ns))
+				if ("encapsulation".equals (rel.getAttributeValue ("relationship")))
+					encapsulation = true;
+			if (encapsulation)
+				collectHierarchy (group, encapsulated);
+		}
+		
+		List<String> todo = new ArrayList<String> (refs);
+		while (!todo.isEmpty ())
+		{
+			String name = todo.remove (todo.size () - 1);
+			if (!components.add (name))
+				continue;
+			List<String> kids = encapsulated.get (name);
+			if (kids != null)
+				todo.addAll (kids);
+		}
+	}
+	
+	/**
+	 * Collects the parent-child relations of the component references in a group.
+	 *
+	 * @param parent the group or a component reference
+	 * @param hierarchy the hierarchy, parent -> children
+	 */
+	private void collectHierarchy (Element parent, Map<String, List<String>> hierarchy)
+	{
+		String parentName = parent.getAttributeValue ("component");
+		for (Element ref : parent.getChildren ("component_ref", ns))
+		{
+			String name = ref.getAttributeValue ("component");
+			if (parentName != null && name != null)
+			{
+				List<String> kids = hierarchy.get (parentName);
+				if (kids == null)
+				{
+					kids = new ArrayList<String> ();
+					hierarchy.put (parentName, kids);
+				}
+				kids.add (name);
+			}
+			collectHierarchy (ref, hierarchy);
+		}
+	}
+	
+	/**
+	 * Collects the referenced units and all units the kept components and units
+	 * depend on.
+	 *
+	 * @param refs the referenced units
+	 */
+	private void collectUnits (Set<String> refs)
+	{
+		Map<String, Element> modelUnits = new HashMap<String, Element> ();
+		for (Element u : model.getChildren ("units", ns))
+			modelUnits.put (u.getAttributeValue ("name"), u);
+		
+		List<String> todo = new ArrayList<String> (refs);
+		for (Element component : model.getChildren ("component", ns))
+			if (components.contains (component.getAttributeValue ("name")))
+				collectUnitReferences (component, todo);
+		
+		while (!todo.isEmpty ())
+		{
+			String name = todo.remove (todo.size () - 1);
+			if (!units.add (name))
+				continue;
+			Element u = modelUnits.get (name);
+			if (u != null)
+				collectUnitReferences (u, todo);
+		}
+	}
+	
+	/**
+	 * Collects the names of all units referenced in a subtree, e.g. by variables,
+	 * unit definitions, or numbers in MathML.
+	 *
+	 * @param element the root of the subtree
+	 * @param names the list to add the referenced unit names to
+	 */
+	private static void collectUnitReferences (Element element, List<String> names)
+	{
+		for (Attribute a : element.getAttributes ())
+			if (a.getName ().equals ("units"))
+				names.add (a.getValue ());
+		for (Element kid : element.getChildren ())
+			collectUnitReferences (kid, names);
+	}
+	
+	/**
+	 * Removes everything from the model that is not needed.
+	 */
+	private void pruneModel ()
+	{
+		List<Content> drop = new ArrayList<Content> ();
+		for (Content content : model.getContent ())
+		{
+			if (!(content instanceof Element))
+			{
+				drop.add (content);
+				continue;
+			}
+			Element e = (Element) content;
+			if (!e.getNamespace ().equals (ns))
+			{
+				// rdf, documentation, extensions...
+				drop.add (e);
+				continue;
+			}
+			
+			String tag = e.getName ();
+			if (tag.equals ("component"))
+			{
+				if (!components.contains (e.getAttributeValue ("name")))
+					drop.add (e);
+			}
+			else if (tag.equals ("units"))
+			{
+				if (!units.contains (e.getAttributeValue ("name")))
+					drop.add (e);
+			}
+			else if (tag.equals ("import"))
+			{
+				if (!pruneImport (e))
+					drop.add (e);
+			}
+			else if (tag.equals ("connection"))
+			{
+				Element map = e.getChild ("map_components", ns);
+				if (map == null || !components.contains (map.getAttributeValue ("component_1")) || !components.contains (map.getAttributeValue ("component_2")))
+					drop.add (e);
+			}
+			else if (tag.equals ("group"))
+			{
+				if (!pruneGroup (e))
+					drop.add (e);
+			}
+		}
+		for (Content content : drop)
+			model.removeContent (content);
+	}
+	
+	/**
+	 * Prunes a nested import.
+	 *
+	 * @param imp the import element
+	 * @return true, if the import is still needed
+	 */
+	private boolean pruneImport (Element imp)
+	{
+		List<Element> drop = new ArrayList<Element> ();
+		for (Element kid : imp.getChildren ())
+		{
+			if (kid.getName ().equals ("component") && components.contains (kid.getAttributeValue ("name")))
+				continue;
+			if (kid.getName ().equals ("units") && units.contains (kid.getAttributeValue ("name")))
+				continue;
+			drop.add (kid);
+		}
+		for (Element kid : drop)
+			imp.removeContent (kid);
+		return imp.getChildren ().size () > 0;
+	}
+	
+	/**
+	 * Prunes a group. References to dropped components are removed, the
+	 * components they encapsulate are lifted to the next remaining ancestor.
+	 *
+	 * @param group the group element
+	 * @return true, if the group still defines some relationship
+	 */
+	private boolean pruneGroup (Element group)
+	{
+		pruneComponentRefs (group);
+		// a top-level reference without children doesn't relate to anything
+		List<Element> drop = new ArrayList<Element> ();
+		for (Element ref : group.getChildren ("component_ref", ns))
+			if (ref.getChildren ("component_ref", ns).isEmpty ())
+				drop.add (ref);
+		for (Element ref : drop)
+			group.removeContent (ref);
+		return !group.getChildren ("component_ref", ns).isEmpty ();
+	}
+	
+	/**
+	 * Recursively prunes the component references below a parent.
+	 *
+	 * @param parent the group or a component reference
+	 */
+	private void pruneComponentRefs (Element parent)
+	{
+		List<Element> refs = new ArrayList<Element> (parent.getChildren ("component_ref", ns));
+		for (Element ref : refs)
+		{
+			pruneComponentRefs (ref);
+			if (components.contains (ref.getAttributeValue ("component")))
+				continue;
+			
+			// lift the remaining children
+			int index = parent.indexOf (ref);
+			List<Element> kids = new ArrayList<Element> (ref.getChildren ("component_ref", ns));
+			for (Element kid : kids)
+				kid.detach ();
+			parent.removeContent (ref);
+			parent.addContent (index, kids);
+		}
+	}
+}
@@ -0,0 +1,32 @@
+/**
+ * 
+ */
+package de.unirostock.sems.bives.cellml.parser;
+
+import java.io.IOException;
+import java.net.URI;
+
+
+/**
+ * The Interface CellMLImportResolver to retrieve imported documents from
+ * alternative sources, such as a local mirror of a model repository.
+ * 
+ * <p>
+ * Resolvers are registered at the {@link CellMLImporter} and consulted in order
+ * of registration, before the document is retrieved from its actual location.
+ * </p>
+ *
+ * @author Martin Scharm
+ */
+public interface CellMLImportResolver
+{
+	
+	/**
+	 * Retrieves the content of the document at <code>uri</code>.
+	 *
+	 * @param uri the resolved location of the imported document
+	 * @return the content of the document, or null if this resolver does not know the document
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public byte [] resolve (URI uri) throws IOException;
+}
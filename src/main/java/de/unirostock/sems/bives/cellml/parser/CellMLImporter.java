@@ -3,14 +3,24 @@
  */
 package de.unirostock.sems.bives.cellml.parser;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
 
+
+import org.jdom2.Document;
 import org.jdom2.JDOMException;
 
 import de.binfalse.bflog.LOGGER;
@@ -22,8 +32,6 @@ import de.unirostock.sems.bives.exception.BivesLogicalException;
 import de.unirostock.sems.xmlutils.ds.DocumentNode;
 import de.unirostock.sems.xmlutils.ds.TreeDocument;
 import de.unirostock.sems.xmlutils.ds.TreeNode;
-import de.unirostock.sems.xmlutils.exception.XmlDocumentParseException;
-import de.unirostock.sems.xmlutils.tools.XmlTools;
 
 
 /**
@@ -34,9 +42,6 @@ import de.unirostock.sems.xmlutils.tools.XmlTools;
 public class CellMLImporter
 {
 	
-	/** The import mapper. */
-	//private static HashMap<URI, CellMLDocument> importMapper;
-	
 	/** The location of imported entities. */
 	private String href;
 	
@@ -45,6 +50,21 @@ public class CellMLImporter
 	
 	private CellMLModel model;
 	
+	/** The resolved model to import entities from. */
+	private CellMLModel modelToImport;
+	
+	/** The executor to resolve sibling imports concurrently, null if imports are resolved serially. */
+	private static volatile ExecutorService executor;
+	
+	/** The resolvers that are consulted before retrieving imported documents from their actual location. */
+	private static final List<CellMLImportResolver> resolvers = new CopyOnWriteArrayList<CellMLImportResolver> ();
+	
+	/** In offline mode only local files and documents known to a resolver can be imported. */
+	private static volatile boolean offline;
+	
+	/** In lazy mode only the referenced parts of imported documents are parsed. */
+	private static volatile boolean lazy;
+	
 	/**
 	 * Instantiates a new CellML importer.
 	 *
@@ -59,10 +79,107 @@ public class CellMLImporter
 		href = node.getAttributeValue ("href", "xlink");
 		if (href == null)
 			throw new BivesCellMLParseException ("href attribute in import is empty");
-		
-		//if (importMapper == null)
-			//importMapper = new HashMap<URI, CellMLDocument> ();
-		
+	}
+	
+	/**
+	 * Sets the executor to resolve sibling imports concurrently. Resolving an
+	 * import retrieves and parses the imported document and builds its model,
+	 * while the imported entities are always merged into the importing model in
+	 * document order.
+	 * Pass <code>null</code> (the default) to resolve imports one after another.
+	 *
+	 * @param executor the executor, or null to resolve imports serially
+	 */
+	public static void setExecutor (ExecutorService executor)
+	{
+		CellMLImporter.executor = executor;
+	}
+	
+	/**
+	 * Gets the executor used to resolve sibling imports.
+	 *
+	 * @return the executor, or null if imports are resolved serially
+	 */
+	public static ExecutorService getExecutor ()
+	{
+		return executor;
+	}
+	
+	/**
+	 * Registers a resolver for imported documents. Resolvers are consulted in
+	 * order of registration, the first one that knows a document wins. Documents
+	 * that are not known to any resolver are retrieved from their actual location,
+	 * unless the importer is {@link #setOffline(boolean) offline}.
+	 *
+	 * @param resolver the resolver
+	 */
+	public static void addResolver (CellMLImportResolver resolver)
+	{
+		resolvers.add (resolver);
+	}
+	
+	/**
+	 * Unregisters a resolver for imported documents.
+	 *
+	 * @param resolver the resolver
+	 */
+	public static void removeResolver (CellMLImportResolver resolver)
+	{
+		resolvers.remove (resolver);
+	}
+	
+	/**
+	 * Unregisters all resolvers for imported documents.
+	 */
+	public static void clearResolvers ()
+	{
+		resolvers.clear ();
+	}
+	
+	/**
+	 * Sets the offline mode. In offline mode only local files and documents that
+	 * are known to one of the registered resolvers can be imported, any other
+	 * import fails immediately instead of trying to download the document.
+	 *
+	 * @param offline should the importer work offline?
+	 */
+	public static void setOffline (boolean offline)
+	{
+		CellMLImporter.offline = offline;
+	}
+	
+	/**
+	 * Checks if the importer works offline.
+	 *
+	 * @return true, if in offline mode
+	 */
+	public static boolean isOffline ()
+	{
+		return offline;
+	}
+	
+	/**
+	 * Sets the lazy mode. In lazy mode an imported document is stripped down to
+	 * the referenced components, the components they encapsulate, and the units
+	 * they depend on before its model is built. Unreferenced components,
+	 * connections between them, and the RDF and documentation of the imported
+	 * model are skipped.
+	 *
+	 * @param lazy should imports be parsed lazily?
+	 */
+	public static void setLazy (boolean lazy)
+	{
+		CellMLImporter.lazy = lazy;
+	}
+	
+	/**
+	 * Checks if imports are parsed lazily.
+	 *
+	 * @return true, if in lazy mode
+	 */
+	public static boolean isLazy ()
+	{
+		return lazy;
 	}
 	
 	/**
@@ -72,6 +189,70 @@ public class CellMLImporter
 	 */
 	public void parse () throws BivesImportException
 	{
+		resolve ();
+		merge ();
+	}
+	
+	/**
+	 * Resolves the import, i.e. retrieves and parses the imported document.
+	 * This does not modify the importing model, so imports of the same model
+	 * can be resolved concurrently.
+	 *
+	 * @throws BivesImportException the bives import exception
+	 */
+	public void resolve () throws BivesImportException
+	{
+		try
+		{
+			URI baseUri = model.getDocument ().getBaseUri ();
+			LOGGER.info ("parsing import from ", href, " (base uri is: ", baseUri, ")");
+			
+			URI fileUri = FileRetriever.getUri (href, baseUri).normalize ();
+			// the import graph already parsed every imported document exactly once
+			CellMLImportGraph graph = model.getDocument ().getImportGraph ();
+			Document imported = graph.getDocument (fileUri);
+			if (imported == null)
+				imported = load (fileUri);
+			if (lazy)
+				CellMLImportPruner.prune (imported, getReferences ("component", "component_ref"), getReferences ("units", "units_ref"));
+		  TreeDocument tdoc = new TreeDocument (imported, null, fileUri);
+			modelToImport = new CellMLDocument (tdoc, graph).getModel ();
+		}
+		catch (Exception e)
+		{
+			throw new BivesImportException (href, e);
+		}
+	}
+	
+	/**
+	 * Gets the names of the entities that are referenced by this import.
+	 *
+	 * @param tag the tag name of the import elements, e.g. <code>units</code>
+	 * @param refAttribute the attribute holding the reference, e.g. <code>units_ref</code>
+	 * @return the referenced names
+	 */
+	private Set<String> getReferences (String tag, String refAttribute)
+	{
+		Set<String> refs = new HashSet<String> ();
+		for (TreeNode kid : node.getChildrenWithTag (tag))
+		{
+			String ref = ((DocumentNode) kid).getAttributeValue (refAttribute);
+			if (ref != null)
+				refs.add (ref);
+		}
+		return refs;
+	}
+	
+	/**
+	 * Merges the imported entities into the importing model. The import has to be
+	 * {@link #resolve() resolved} before.
+	 *
+	 * @throws BivesImportException the bives import exception
+	 */
+	public void merge () throws BivesImportException
+	{
+		if (modelToImport == null)
+			throw new IllegalStateException ("import from " + href + " wasn't resolved");
 		try
 		{
 			pparse ();
@@ -82,32 +263,17 @@ public class CellMLImporter
 		}
 	}
 
-
-
 	/**
-	 * Really do the parsing ;-).
+	 * Really do the merging ;-).
 	 *
-	 * @throws IOException Signals that an I/O exception has occurred.
-	 * @throws XmlDocumentParseException the xml document parse exception
-	 * @throws JDOMException the jDOM exception
-	 * @throws URISyntaxException the uRI syntax exception
 	 * @throws BivesCellMLParseException the bives cell ml parse exception
 	 * @throws BivesDocumentConsistencyException the bives document consistency exception
 	 * @throws BivesLogicalException the bives logical exception
-	 * @throws BivesImportException the bives import exception
 	 */
-	private void pparse () throws IOException, XmlDocumentParseException, JDOMException, URISyntaxException, BivesCellMLParseException, BivesDocumentConsistencyException, BivesLogicalException, BivesImportException
+	private void pparse () throws BivesCellMLParseException, BivesDocumentConsistencyException, BivesLogicalException
 	{
 		URI baseUri = model.getDocument ().getBaseUri ();
-		LOGGER.info ("parsing import from ", href, " (base uri is: ", baseUri, ")");
-		File tmp = File.createTempFile ("cellmlimporter", "cellml");
-		tmp.deleteOnExit ();
-		
-		URI fileUri = FileRetriever.getUri (href, baseUri);
-		FileRetriever.getFile (fileUri, tmp);
-	  TreeDocument tdoc = new TreeDocument (XmlTools.readDocument (tmp), null, fileUri);
-	  CellMLDocument toImport = new CellMLDocument (tdoc);
-		CellMLModel modelToImport = toImport.getModel ();
+		modelToImport.setImporter (model);
 		
 		List<Object> doubles = new ArrayList<Object> ();
 		
@@ -197,6 +363,189 @@ public class CellMLImporter
 	}
 	
 	
+	/**
+	 * Loads an imported document. The registered resolvers are asked first, so
+	 * they can redirect any location. Then the document is looked up in the
+	 * {@link CellMLImportCache in-memory cache} and in the
+	 * {@link CellMLImportDiskCache disk cache}, documents found on disk are
+	 * promoted to the in-memory cache. A valid disk entry of a local file (or of
+	 * a trusted remote document) tells the hash of the document, so it doesn't
+	 * need to be retrieved at all. Otherwise the document is retrieved, parsed,
+	 * and stored in both caches.
+	 *
+	 * @param fileUri the resolved location of the document
+	 * @return a private copy of the parsed document
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws URISyntaxException the uRI syntax exception
+	 * @throws JDOMException the jDOM exception
+	 */
+	static Document load (URI fileUri) throws IOException, URISyntaxException, JDOMException
+	{
+		byte [] content = resolveContent (fileUri);
+		String looked = null;
+		if (content == null)
+		{
+			String hash = CellMLImportDiskCache.getHash (fileUri);
+			if (hash != null)
+			{
+				Document doc = CellMLImportCache.get (fileUri, hash);
+				if (doc != null)
+					return doc;
+				doc = CellMLImportDiskCache.get (fileUri, hash);
+				if (doc != null)
+					return CellMLImportCache.put (fileUri, hash, doc);
+				looked = hash;
+			}
+			content = retrieve (fileUri);
+		}
+		
+		// the content is hashed exactly once
+		String hash = CellMLImportCache.sha256 (content);
+		if (!hash.equals (looked))
+		{
+			Document doc = CellMLImportCache.get (fileUri, hash);
+			if (doc != null)
+				return doc;
+		}
+		Document doc = CellMLImportDiskCache.getByContent (fileUri, hash);
+		if (doc == null)
+		{
+			doc = CellMLImportCache.parse (fileUri, content);
+			CellMLImportDiskCache.put (fileUri, hash, doc);
+		}
+		return CellMLImportCache.put (fileUri, hash, doc);
+	}
+	
+	/**
+	 * Asks the registered resolvers for the content of the document to import.
+	 *
+	 * @param fileUri the resolved location of the document
+	 * @return the content of the document, or null if no resolver knows it
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	static byte [] resolveContent (URI fileUri) throws IOException
+	{
+		for (CellMLImportResolver resolver : resolvers)
+		{
+			byte [] content = resolver.resolve (fileUri);
+			if (content != null)
+			{
+				LOGGER.debug ("resolved ", fileUri, " using ", resolver);
+				return content;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Retrieves the content of a document that is unknown to the resolvers.
+	 * Local files are read directly into memory and other documents are
+	 * downloaded using the {@link FileRetriever}.
+	 *
+	 * @param fileUri the resolved location of the document
+	 * @return the content of the document
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws URISyntaxException the uRI syntax exception
+	 */
+	static byte [] retrieve (URI fileUri) throws IOException, URISyntaxException
+	{
+		if ("file".equals (fileUri.getScheme ()))
+		{
+			File file = getLocalFile (fileUri);
+			if (file != null)
+				return readLocal (file);
+			// e.g. UNC paths or URIs with a fragment, let the URL handler open them
+			return readFully (fileUri.toURL ().openStream ());
+		}
+		
+		if (offline)
+			throw new IOException ("cannot retrieve " + fileUri + " in offline mode: none of the registered resolvers knows this document");
+		
+		File tmp = File.createTempFile ("cellmlimporter", "cellml");
+		try
+		{
+			FileRetriever.getFile (fileUri, tmp);
+			return readFully (new FileInputStream (tmp));
+		}
+		finally
+		{
+			if (!tmp.delete ())
+				tmp.deleteOnExit ();
+		}
+	}
+	
+	
+	/**
+	 * Gets the local file a <code>file:</code> URI points to.
+	 *
+	 * @param fileUri the URI of the file
+	 * @return the file, or null if the URI cannot be represented as a plain file, e.g. because it has an authority, a query, or a fragment
+	 */
+	static File getLocalFile (URI fileUri)
+	{
+		try
+		{
+			return new File (fileUri);
+		}
+		catch (IllegalArgumentException e)
+		{
+			LOGGER.debug ("cannot read ", fileUri, " as local file: ", e.getMessage ());
+			return null;
+		}
+	}
+	
+	
+	/**
+	 * Reads a local file into memory without copying it first.
+	 *
+	 * @param file the file to read
+	 * @return the content of the file
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	static byte [] readLocal (File file) throws IOException
+	{
+		long length = file.length ();
+		if (length > Integer.MAX_VALUE)
+			throw new IOException ("file " + file + " is too large to be imported");
+		DataInputStream in = new DataInputStream (new FileInputStream (file));
+		try
+		{
+			byte [] content = new byte [(int) length];
+			in.readFully (content);
+			return content;
+		}
+		finally
+		{
+			in.close ();
+		}
+	}
+	
+	
+	/**
+	 * Reads a stream until its end and closes it afterwards.
+	 *
+	 * @param in the stream to read
+	 * @return the bytes read from the stream
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	static byte [] readFully (InputStream in) throws IOException
+	{
+		try
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream ();
+			byte [] buffer = new byte [8192];
+			int read;
+			while ((read = in.read (buffer)) != -1)
+				out.write (buffer, 0, read);
+			return out.toByteArray ();
+		}
+		finally
+		{
+			in.close ();
+		}
+	}
+	
+	
 	/*private void pparseObsolete () throws IOException, URISyntaxException, ParserConfigurationException, SAXException, BivesCellMLParseException, BivesDocumentConsistencyException, BivesLogicalException, BivesImportException, XmlDocumentParseException
 	{
 		URI baseUri = model.getDocument ().getBaseUri ();
@@ -0,0 +1,113 @@
+/**
+ * 
+ */
+package de.unirostock.sems.bives.cellml.parser;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * The Class CellMLMemoryResolver serves imported documents from memory.
+ * 
+ * <p>
+ * Documents are stored by path. Without any rewrite rule the path of a
+ * document is the host and path of its URI, e.g. a document that is imported from
+ * <code>http://models.cellml.org/lib/units.cellml</code> has to be stored as
+ * <code>models.cellml.org/lib/units.cellml</code>. Use {@link #put(URI, byte[])}
+ * to store documents by their URI.
+ * </p>
+ *
+ * @author Martin Scharm
+ */
+public class CellMLMemoryResolver
+	extends CellMLMirrorResolver
+{
+	
+	/** The documents, path -> content. */
+	private ConcurrentHashMap<String, byte []> documents;
+	
+	/**
+	 * Instantiates a new, empty memory resolver.
+	 */
+	public CellMLMemoryResolver ()
+	{
+		documents = new ConcurrentHashMap<String, byte []> ();
+	}
+	
+	/**
+	 * Stores a document at a path.
+	 *
+	 * @param path the path
+	 * @param content the content of the document
+	 */
+	public void put (String path, byte [] content)
+	{
+		documents.put (normalizePath (path), content);
+	}
+	
+	/**
+	 * Stores a document at a path.
+	 *
+	 * @param path the path
+	 * @param content the XML code of the document
+	 */
+	public void put (String path, String content)
+	{
+		try
+		{
+			put (path, content.getBytes ("UTF-8"));
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			// every java platform has to support UTF-8
+			throw new RuntimeException (e);
+		}
+	}
+	
+	/**
+	 * Stores a document, that will be served for the given URI.
+	 *
+	 * @param uri the location of the document
+	 * @param content the content of the document
+	 * @throws IllegalArgumentException if the URI cannot be mapped to a path
+	 */
+	public void put (URI uri, byte [] content)
+	{
+		String path = getPath (uri);
+		if (path == null)
+			throw new IllegalArgumentException ("cannot map " + uri + " to a path");
+		documents.put (path, content);
+	}
+	
+	/**
+	 * Removes a document.
+	 *
+	 * @param path the path of the document
+	 */
+	public void remove (String path)
+	{
+		documents.remove (normalizePath (path));
+	}
+	
+	/* (non-Javadoc)
+	 * @see de.unirostock.sems.bives.cellml.parser.CellMLMirrorResolver#getIndex()
+	 */
+	@Override
+	public Set<String> getIndex ()
+	{
+		return Collections.unmodifiableSet (documents.keySet ());
+	}
+	
+	/* (non-Javadoc)
+	 * @see de.unirostock.sems.bives.cellml.parser.CellMLMirrorResolver#read(java.lang.String)
+	 */
+	@Override
+	protected byte [] read (String path)
+	{
+		return documents.get (path);
+	}
+}
@@ -0,0 +1,141 @@
+/**
+ * 
+ */
+package de.unirostock.sems.bives.cellml.parser;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+
+/**
+ * The Class CellMLMirrorResolver is the base for resolvers that serve imported
+ * documents from a mirror of their original locations.
+ * 
+ * <p>
+ * The location of a document in the mirror is obtained from a URI-rewrite
+ * table, which maps prefixes of URIs to prefixes of paths in the mirror. If
+ * several prefixes match, the longest one wins. URIs that do not match any
+ * prefix are looked up using the layout of a typical web mirror, that is
+ * <code>http://host/path/to/model.cellml</code> is expected at
+ * <code>host/path/to/model.cellml</code>.
+ * </p>
+ * 
+ * <p>
+ * Every mirror maintains an index of the paths it contains, so that a lookup
+ * of an unknown document doesn't need to touch the underlying storage.
+ * </p>
+ *
+ * @author Martin Scharm
+ */
+public abstract class CellMLMirrorResolver
+	implements CellMLImportResolver
+{
+	
+	/** The URI-rewrite table, URI prefix -> path prefix, ordered by the length of the URI prefix. */
+	private TreeMap<String, String> rewrites;
+	
+	/**
+	 * Instantiates a new mirror resolver.
+	 */
+	public CellMLMirrorResolver ()
+	{
+		// longer prefixes first
+		rewrites = new TreeMap<String, String> (Collections.reverseOrder ());
+	}
+	
+	/**
+	 * Adds an entry to the URI-rewrite table. Every URI starting with
+	 * <code>uriPrefix</code> will be looked up at the path obtained by replacing
+	 * the prefix with <code>pathPrefix</code>.
+	 *
+	 * @param uriPrefix the prefix of URIs to rewrite, e.g. <code>http://models.cellml.org/</code>
+	 * @param pathPrefix the corresponding prefix of paths in this mirror, e.g. <code>cellml/</code>
+	 */
+	public synchronized void addRewrite (String uriPrefix, String pathPrefix)
+	{
+		rewrites.put (uriPrefix, pathPrefix);
+	}
+	
+	/**
+	 * Gets the URI-rewrite table.
+	 *
+	 * @return the URI-rewrite table, URI prefix -> path prefix
+	 */
+	public synchronized Map<String, String> getRewrites ()
+	{
+		return Collections.unmodifiableMap (new TreeMap<String, String> (rewrites));
+	}
+	
+	/**
+	 * Gets the path of a document in this mirror.
+	 *
+	 * @param uri the location of the document
+	 * @return the path of the document, or null if the URI cannot be mapped to this mirror
+	 */
+	public String getPath (URI uri)
+	{
+		String u = uri.normalize ().toString ();
+		synchronized (this)
+		{
+			// reverse lexicographical order visits longer prefixes before their own prefixes
+			for (Map.Entry<String, String> rewrite : rewrites.entrySet ())
+				if (u.startsWith (rewrite.getKey ()))
+					return normalizePath (rewrite.getValue () + u.substring (rewrite.getKey ().length ()));
+		}
+		
+		if (uri.getHost () == null || uri.getRawPath () == null)
+			return null;
+		return normalizePath (uri.getHost () + "/" + uri.getPath ());
+	}
+	
+	/**
+	 * Normalizes a path, so that it can be looked up in the index.
+	 *
+	 * @param path the path
+	 * @return the normalized path
+	 */
+	protected static String normalizePath (String path)
+	{
+		path = path.replace ('\\', '/');
+		while (path.startsWith ("./"))
+			path = path.substring (2);
+		while (path.startsWith ("/"))
+			path = path.substring (1);
+		while (path.contains ("//"))
+			path = path.replace ("//", "/");
+		return path;
+	}
+	
+	/* (non-Javadoc)
+	 * @see de.unirostock.sems.bives.cellml.parser.CellMLImportResolver#resolve(java.net.URI)
+	 */
+	@Override
+	public byte [] resolve (URI uri) throws IOException
+	{
+		String path = getPath (uri);
+		if (path == null || !getIndex ().contains (path))
+			return null;
+		return read (path);
+	}
+	
+	/**
+	 * Gets the index of this mirror, i.e. the normalized paths of all documents that are available.
+	 *
+	 * @return the index
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public abstract Set<String> getIndex () throws IOException;
+	
+	/**
+	 * Reads a document from this mirror.
+	 *
+	 * @param path the normalized path of the document, as listed in the index
+	 * @return the content of the document
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected abstract byte [] read (String path) throws IOException;
+}
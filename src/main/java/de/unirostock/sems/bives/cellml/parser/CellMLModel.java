@@ -4,18 +4,29 @@
 package de.unirostock.sems.bives.cellml.parser;
 
 import java.io.IOException;
+import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 
 import org.jdom2.Element;
 
 import de.binfalse.bflog.LOGGER;
-import de.binfalse.bfutils.AlphabetIterator;
 import de.unirostock.sems.bives.cellml.exception.BivesCellMLParseException;
 import de.unirostock.sems.bives.cellml.parser.CellMLConnection.ConnectedComponents;
+import de.unirostock.sems.bives.cellml.tools.CellMLMetrics;
 import de.unirostock.sems.bives.ds.rdf.RDF;
 import de.unirostock.sems.bives.ds.rdf.RDFDescription;
 import de.unirostock.sems.bives.exception.BivesDocumentConsistencyException;
@@ -71,12 +82,30 @@ extends CellMLEntity
 	/** The connected components. */
 	private List<ConnectedComponents> connectedComponents;
 	
+	/** The analysis of the connections, might be outdated. */
+	private CellMLConnectionGraph connectionGraph;
+	
+	/** The model importing entities from this model, null if this model isn't imported. */
+	private volatile CellMLModel importer;
+	
+	/** The root variables, variable -&gt; root, null if the connections changed. */
+	private volatile Map<CellMLVariable, CellMLVariable> rootVariables;
+	
+	/** The number of changes to the connections of this model and the models it imports from. */
+	private volatile int connectionVersion;
+	
 	/** The rdf blocks. */
 	private List<RDF> rdfBlocks;
 	
 	/** The rdf mapper cmeta:id -> rdf. */
 	private Map<String, List<RDFDescription>> rdfMapper;
 	
+	/** The rdf blocks found by the component that is parsed in the current thread, null if blocks are registered directly. */
+	private ThreadLocal<List<RDF>> pendingRdfBlocks;
+	
+	/** The executor to parse components concurrently, null if components are parsed serially. */
+	private static volatile ExecutorService componentExecutor;
+	
 	/**
 	 * Instantiates a new model.
 	 *
@@ -110,6 +139,7 @@ extends CellMLEntity
 		
 		rdfBlocks = new ArrayList<RDF> ();
 		rdfMapper = new HashMap<String, List<RDFDescription>> ();
+		pendingRdfBlocks = new ThreadLocal<List<RDF>> ();
 		
 		registerMetaId (getMetaId (), this);
 		for (RDF block : getRdfBlocks ())
@@ -118,6 +148,31 @@ extends CellMLEntity
 		readDocument (rootNode);
 	}
 	
+	/**
+	 * Sets the executor to parse the components of a model concurrently, e.g. a
+	 * {@link java.util.concurrent.ForkJoinPool}. Components, including their units,
+	 * variables, reactions, and maths, are independent of each other until the
+	 * connections are read. They are added to the model in document order, and if
+	 * several components are broken the error of the first one is reported.
+	 * Pass <code>null</code> (the default) to parse components one after another.
+	 *
+	 * @param executor the executor, or null to parse components serially
+	 */
+	public static void setComponentExecutor (ExecutorService executor)
+	{
+		componentExecutor = executor;
+	}
+	
+	/**
+	 * Gets the executor used to parse components.
+	 *
+	 * @return the executor, or null if components are parsed serially
+	 */
+	public static ExecutorService getComponentExecutor ()
+	{
+		return componentExecutor;
+	}
+	
 	/**
 	 * Gets the name of the model.
 	 *
@@ -151,32 +206,48 @@ extends CellMLEntity
 	 */
 	private void readDocument (DocumentNode root) throws BivesCellMLParseException, BivesDocumentConsistencyException, BivesLogicalException, IOException, URISyntaxException, BivesImportException
 	{
+		URI uri = doc.getBaseUri ();
+		
 		// imports
-		LOGGER.info ("reading imports in ", doc.getBaseUri ());
-		readImports (root);
+		LOGGER.info ("reading imports in ", uri);
+		long start = CellMLMetrics.start ();
+		int n = readImports (root);
+		CellMLMetrics.finish (uri, CellMLMetrics.IMPORTS, start, n);
 
 		LOGGER.info ("after import:");
 		for (String c : components.keySet ())
 			LOGGER.info ("comp: ", c, " -> ", components.get (c).getName ());
 		
 		// units
-		LOGGER.info ("reading units in ", doc.getBaseUri ());
-		readUnits (root);
+		LOGGER.info ("reading units in ", uri);
+		start = CellMLMetrics.start ();
+		n = readUnits (root);
+		CellMLMetrics.finish (uri, CellMLMetrics.UNITS, start, n);
 		
 		// components
-		LOGGER.info ("reading components in ", doc.getBaseUri ());
-		readComponents (root);
+		LOGGER.info ("reading components in ", uri);
+		start = CellMLMetrics.start ();
+		n = readComponents (root);
+		CellMLMetrics.finish (uri, CellMLMetrics.COMPONENTS, start, n);
 		
 		// manage groups
-		LOGGER.info ("reading groups in ", doc.getBaseUri ());
-		readGroups (root);
+		LOGGER.info ("reading groups in ", uri);
+		start = CellMLMetrics.start ();
+		n = readGroups (root);
+		hierarchy.getEncapsulationIndex ();
+		CellMLMetrics.finish (uri, CellMLMetrics.GROUPS, start, n);
 		
 		// manage connections
-		LOGGER.info ("reading connections in ", doc.getBaseUri ());
-		readConnections (root);
+		LOGGER.info ("reading connections in ", uri);
+		start = CellMLMetrics.start ();
+		n = readConnections (root);
+		indexRootVariables ();
+		CellMLMetrics.finish (uri, CellMLMetrics.CONNECTIONS, start, n);
 
-		LOGGER.info ("evaluating rdf in ", doc.getBaseUri ());
-		evaluateRdf ();
+		LOGGER.info ("evaluating rdf in ", uri);
+		start = CellMLMetrics.start ();
+		n = evaluateRdf ();
+		CellMLMetrics.finish (uri, CellMLMetrics.RDF, start, n);
 	}
 	
 	/**
@@ -185,40 +256,15 @@ extends CellMLEntity
 	 * @param root the root node
 	 * @throws BivesDocumentConsistencyException the bives document consistency exception
 	 * @throws BivesCellMLParseException the bives cell ml parse exception
+	 * @return the number of units elements
 	 * @throws BivesLogicalException 
 	 */
-	private void readUnits (DocumentNode root) throws BivesDocumentConsistencyException, BivesCellMLParseException, BivesLogicalException
+	private int readUnits (DocumentNode root) throws BivesDocumentConsistencyException, BivesCellMLParseException, BivesLogicalException
 	{
-		List<TreeNode> kids = root.getChildrenWithTag ("units");
 		// units might be in unordered seq -> first unit might depend on last unit
-		boolean nextRound = true;
-		List<String> problems = new ArrayList<String> ();
-		while (nextRound && kids.size () > 0)
-		{
-			nextRound = false;
-			problems.clear ();
-			for (int i = kids.size () - 1; i >= 0; i--)
-			{
-				TreeNode kid = kids.get (i);
-				if (kid.getType () != TreeNode.DOC_NODE)
-					continue;
-				try
-				{
-					unitDict.addUnit (null, new CellMLUserUnit (model, unitDict, null, (DocumentNode) kid), false);
-				}
-				catch (BivesDocumentConsistencyException ex)
-				{
-					problems.add (ex.getMessage ());
-					continue;
-				}
-				kids.remove (i);
-				nextRound = true;
-			}
-			
-		}
-		if (kids.size () != 0)
-			throw new BivesDocumentConsistencyException ("inconsistencies for "+kids.size ()+" units, problems: " + problems);
-		
+		List<TreeNode> kids = root.getChildrenWithTag ("units");
+		CellMLUnitResolver.resolve (model, unitDict, null, kids);
+		return kids.size ();
 	}
 	
 	/**
@@ -231,19 +277,54 @@ extends CellMLEntity
 	 * @throws BivesDocumentConsistencyException the bives document consistency exception
 	 * @throws BivesLogicalException the bives logical exception
 	 * @throws BivesImportException the bives import exception
+	 * @return the number of imports
 	 */
-	private void readImports (DocumentNode root) throws BivesCellMLParseException, IOException, URISyntaxException, BivesDocumentConsistencyException, BivesLogicalException, BivesImportException
+	private int readImports (DocumentNode root) throws BivesCellMLParseException, IOException, URISyntaxException, BivesDocumentConsistencyException, BivesLogicalException, BivesImportException
 	{
 		List<TreeNode> kids = root.getChildrenWithTag ("import");
+		List<Callable<CellMLImporter>> resolvers = new ArrayList<Callable<CellMLImporter>> ();
 		for (TreeNode kid : kids)
 		{
 			if (kid.getType () != TreeNode.DOC_NODE)
 				continue;
 
-			CellMLImporter importer = new CellMLImporter ((DocumentNode) kid, this);
-			importer.parse ();
+			final CellMLImporter importer = new CellMLImporter ((DocumentNode) kid, this);
+			resolvers.add (new Callable<CellMLImporter> ()
+			{
+				public CellMLImporter call () throws BivesImportException
+				{
+					importer.resolve ();
+					return importer;
+				}
+			});
+		}
+		
+		// retrieving and parsing imported documents is independent of each other,
+		// but entities are merged in document order to keep naming deterministic
+		List<CellMLImporter> importers;
+		try
+		{
+			importers = CellMLTasks.invokeAll (CellMLImporter.getExecutor (), resolvers);
+		}
+		catch (BivesImportException e)
+		{
+			throw e;
+		}
+		catch (RuntimeException e)
+		{
+			throw e;
+		}
+		catch (Exception e)
+		{
+			throw new BivesLogicalException ("interrupted while resolving imports: " + e.getMessage ());
+		}
+		
+		for (CellMLImporter importer : importers)
+		{
+			importer.merge ();
 			containsImports = true;
 		}
+		return importers.size ();
 	}
 
 	/**
@@ -252,11 +333,13 @@ extends CellMLEntity
 	 * @param root the root node
 	 * @throws BivesCellMLParseException the bives cell ml parse exception
 	 * @throws BivesDocumentConsistencyException the bives document consistency exception
+	 * @return the number of connections
 	 * @throws BivesLogicalException the bives logical exception
 	 */
-	private void readConnections (DocumentNode root) throws BivesCellMLParseException, BivesDocumentConsistencyException, BivesLogicalException
+	private int readConnections (DocumentNode root) throws BivesCellMLParseException, BivesDocumentConsistencyException, BivesLogicalException
 	{
 		List<TreeNode> kids = root.getChildrenWithTag ("connection");
+		int n = 0;
 		for (TreeNode kid : kids)
 		{
 			if (kid.getType () != TreeNode.DOC_NODE)
@@ -265,7 +348,135 @@ extends CellMLEntity
 			ConnectedComponents c = CellMLConnection.parseConnection (this, hierarchy, (DocumentNode) kid, null);
 			if (c != null)
 				connectedComponents.add (c);
+			n++;
 		}
+		return n;
+	}
+
+	/**
+	 * Resolves the root variables of all variables once the connections are
+	 * known, so later lookups don't need to traverse the connections.
+	 */
+	private void indexRootVariables ()
+	{
+		for (CellMLComponent component : components.values ())
+			for (CellMLVariable var : component.getVariables ().values ())
+				getRootVariable (var);
+	}
+	
+	/**
+	 * Gets the root variable of a variable, obtained by traversing the
+	 * incoming interface connections.
+	 *
+	 * <p>
+	 * The root variables are indexed by the model at the top of the import
+	 * hierarchy, as connections of imported components may lead to variables of
+	 * the importing model. A lookup follows the incoming connections only up to
+	 * the first variable with a known root, and remembers the root for all
+	 * variables on the way. The index is built after the connections are read,
+	 * so lookups are answered in constant time. It is dropped if a connection of
+	 * this model or of an imported model changes, changes to other models
+	 * don't affect it.
+	 * </p>
+	 *
+	 * @param var the variable, which must belong to this model or to a model imported by this model
+	 * @return the root variable
+	 */
+	CellMLVariable getRootVariable (CellMLVariable var)
+	{
+		CellMLModel owner = getConnectionOwner ();
+		if (owner != this)
+			return owner.getRootVariable (var);
+		
+		Map<CellMLVariable, CellMLVariable> roots = rootVariables;
+		if (roots == null)
+			synchronized (this)
+			{
+				if (rootVariables == null)
+					rootVariables = new ConcurrentHashMap<CellMLVariable, CellMLVariable> ();
+				roots = rootVariables;
+			}
+		
+		CellMLVariable root = roots.get (var);
+		if (root != null)
+			return root;
+		
+		List<CellMLVariable> path = new ArrayList<CellMLVariable> ();
+		Set<CellMLVariable> visited = new HashSet<CellMLVariable> ();
+		CellMLVariable current = var;
+		while (root == null)
+		{
+			root = roots.get (current);
+			if (root != null)
+				break;
+			if (!visited.add (current))
+			{
+				LOGGER.warn ("variable ", var.getName (), " is connected to itself through a cycle of incoming interfaces (component: ", var.getComponent ().getName (), ")");
+				root = current;
+				break;
+			}
+			path.add (current);
+			CellMLVariable next = current.getIncomingConnection ();
+			if (next == null)
+				root = current;
+			else
+				current = next;
+		}
+		for (CellMLVariable v : path)
+			roots.put (v, root);
+		return root;
+	}
+	
+	/**
+	 * Gets the model at the top of the import hierarchy of this model, it
+	 * indexes the connections of all models in the hierarchy and owns the base
+	 * dimensions of their units.
+	 *
+	 * @return the top most importing model, or this model if it isn't imported
+	 */
+	CellMLModel getConnectionOwner ()
+	{
+		CellMLModel owner = this;
+		while (owner.importer != null)
+			owner = owner.importer;
+		return owner;
+	}
+	
+	/**
+	 * Sets the model importing entities from this model. Connections of the
+	 * imported entities are indexed by the importing model from now on.
+	 *
+	 * @param importer the importing model
+	 */
+	void setImporter (CellMLModel importer)
+	{
+		this.importer = importer;
+		importer.connectionsChanged ();
+	}
+	
+	/**
+	 * Notes that a connection of a variable of this model changed, drops the
+	 * index of root variables and outdates the connection graph.
+	 */
+	void connectionsChanged ()
+	{
+		CellMLModel owner = getConnectionOwner ();
+		synchronized (owner)
+		{
+			owner.rootVariables = null;
+			owner.connectionVersion++;
+		}
+	}
+	
+	/**
+	 * Gets the version of the connections of this model. It changes whenever a
+	 * connection of this model, or of a model in its import hierarchy, changes.
+	 *
+	 * @return the connection version
+	 */
+	int getConnectionVersion ()
+	{
+		return getConnectionOwner ().connectionVersion;
 	}
 
 	/**
@@ -273,18 +484,22 @@ extends CellMLEntity
 	 *
 	 * @param root the root node
 	 * @throws BivesCellMLParseException the bives cell ml parse exception
+	 * @return the number of groups
 	 * @throws BivesLogicalException the bives logical exception
 	 */
-	private void readGroups (DocumentNode root) throws BivesCellMLParseException, BivesLogicalException
+	private int readGroups (DocumentNode root) throws BivesCellMLParseException, BivesLogicalException
 	{
 		List<TreeNode> kids = root.getChildrenWithTag ("group");
+		int n = 0;
 		for (TreeNode kid : kids)
 		{
 			if (kid.getType () != TreeNode.DOC_NODE)
 				continue;
 
 			hierarchy.parseGroup ((DocumentNode) kid);
+			n++;
 		}
+		return n;
 	}
 
 	/**
@@ -293,22 +508,75 @@ extends CellMLEntity
 	 * @param root the root node
 	 * @throws BivesDocumentConsistencyException the bives document consistency exception
 	 * @throws BivesCellMLParseException the bives cell ml parse exception
+	 * @return the number of components
 	 * @throws BivesLogicalException the bives logical exception
 	 */
-	private void readComponents (DocumentNode root) throws BivesDocumentConsistencyException, BivesCellMLParseException, BivesLogicalException
+	private int readComponents (DocumentNode root) throws BivesDocumentConsistencyException, BivesCellMLParseException, BivesLogicalException
 	{
 		List<TreeNode> kids = root.getChildrenWithTag ("component");
+		List<Callable<CellMLComponent>> parsers = new ArrayList<Callable<CellMLComponent>> ();
+		// rdf blocks are collected per component to register them in document order
+		final List<List<RDF>> rdf = new ArrayList<List<RDF>> ();
 		for (TreeNode kid : kids)
 		{
 			if (kid.getType () != TreeNode.DOC_NODE)
 				continue;
-
-			addComponent (new CellMLComponent (this, (DocumentNode) kid));
-			//components.put (component.getName (), component);
+			
+			final DocumentNode node = (DocumentNode) kid;
+			final List<RDF> blocks = new ArrayList<RDF> ();
+			rdf.add (blocks);
+			parsers.add (new Callable<CellMLComponent> ()
+			{
+				public CellMLComponent call () throws Exception
+				{
+					pendingRdfBlocks.set (blocks);
+					try
+					{
+						return new CellMLComponent (CellMLModel.this, node);
+					}
+					finally
+					{
+						pendingRdfBlocks.remove ();
+					}
+				}
+			});
 		}
+		
+		List<CellMLComponent> parsed;
+		try
+		{
+			parsed = CellMLTasks.invokeAll (componentExecutor, parsers);
+		}
+		catch (BivesDocumentConsistencyException e)
+		{
+			throw e;
+		}
+		catch (BivesCellMLParseException e)
+		{
+			throw e;
+		}
+		catch (BivesLogicalException e)
+		{
+			throw e;
+		}
+		catch (RuntimeException e)
+		{
+			throw e;
+		}
+		catch (Exception e)
+		{
+			throw new BivesLogicalException ("interrupted while reading components: " + e.getMessage ());
+		}
+		
+		for (int i = 0; i < parsed.size (); i++)
+		{
+			addComponent (parsed.get (i));
+			rdfBlocks.addAll (rdf.get (i));
+		}
+		return parsed.size ();
 	}
 	
-	private void evaluateRdf ()
+	private int evaluateRdf ()
 	{
 		for (RDF rdf : rdfBlocks)
 		{
@@ -332,6 +600,7 @@ extends CellMLEntity
 				}
 			}
 		}
+		return rdfBlocks.size ();
 	}
 	
 	/**
@@ -424,6 +693,10 @@ extends CellMLEntity
 		if (components.get (component.getName ()) != null)
 			throw new BivesDocumentConsistencyException ("two components using the same name! ("+component.getName ()+")");
 		components.put (component.getName (), component);
+		synchronized (this)
+		{
+			connectionGraph = null;
+		}
 		//hierarchy.addUnencapsulatedComponent (component);
 	}
 	
@@ -452,51 +725,76 @@ extends CellMLEntity
 	{
 		final DocumentNode thisNode = getDocumentNode();
 		
-		// collect dependencies -> units & sub-hierarchical components
-		// two lists to prevent renaming of the correct import
-		Map<CellMLUserUnit, List<CellMLEntity>> unitsToImport = new HashMap<CellMLUserUnit, List<CellMLEntity>> ();
-		Map<CellMLUserUnit, List<CellMLEntity>> unitsToImportDependeny = new HashMap<CellMLUserUnit, List<CellMLEntity>> ();
-		for (CellMLUserUnit unit : importedUnits)
-		{
-			if (unitsToImport.get (unit) == null)
-				unitsToImport.put (unit, new ArrayList<CellMLEntity> ());
-			unitsToImport.get (unit).add (this);
-			unit.getDependencies (unitsToImportDependeny);
-		}
-		
-		// hierarchy to add
+		// collect the imported components and the components they encapsulate,
+		// every component is imported once
 		CellMLHierarchyNetwork hierarchyToAdd = new CellMLHierarchyNetwork ("bull", "shit");
-		
 		List<CellMLComponent> componentsToImport = new ArrayList<CellMLComponent> ();
 		List<CellMLComponent> componentsToImportDependency = new ArrayList<CellMLComponent> ();
+		Set<CellMLComponent> visited = new HashSet<CellMLComponent> ();
+		Set<CellMLComponent> encapsulated = new HashSet<CellMLComponent> ();
 		for (CellMLComponent component : importedComponents)
+			if (visited.add (component))
+				componentsToImport.add (component);
+		// a descendant that was itself imported by the model defining its parent
+		// encapsulates further components in the model it was imported from
+		Deque<CellMLComponent> subtrees = new ArrayDeque<CellMLComponent> (importedComponents);
+		while (!subtrees.isEmpty ())
 		{
-			componentsToImport.add (component);
-			component.getDependencies (unitsToImportDependeny);
-			// also add components below this component
-			CellMLHierarchyNetwork otherNetwork = component.getModel ().getHierarchy ().getEncapsulationHierarchyNetwork ();
-			CellMLHierarchyNode componentNode = otherNetwork.getNode (component);
-			List<CellMLHierarchyNode> todo = new ArrayList<CellMLHierarchyNode> ();
-			todo.add (componentNode);
-			while (!todo.isEmpty ())
+			CellMLComponent component = subtrees.poll ();
+			CellMLHierarchyIndex otherIndex = component.getModel ().getHierarchy ().getEncapsulationIndex ();
+			for (CellMLComponent kid : otherIndex.getDescendants (component))
 			{
-				CellMLHierarchyNode current = todo.remove (0);
-				if (current == null)
+				// nested imports share their descendants
+				if (!encapsulated.add (kid))
 					continue;
-				// iterate children
-				for (CellMLHierarchyNode child : current.getChildren ())
-				{
-					// corresponding component
-					CellMLComponent kid = child.getComponent ();
-					hierarchyToAdd.connectHierarchically (current.getComponent (), kid);
+				hierarchyToAdd.connectHierarchically (otherIndex.getParent (kid), kid);
+				if (visited.add (kid))
 					componentsToImportDependency.add (kid);
-					kid.getDependencies (unitsToImportDependeny);
-					// do the same for this node
-					todo.add (child);
-				}
+				if (kid.getModel () != component.getModel ())
+					subtrees.add (kid);
 			}
 		}
 		
+		// collect the closure of units the imported entities depend on
+		// two maps to prevent renaming of the correct import
+		Map<CellMLUserUnit, Set<CellMLEntity>> unitsToImport = new LinkedHashMap<CellMLUserUnit, Set<CellMLEntity>> ();
+		Map<CellMLUserUnit, Set<CellMLEntity>> unitsToImportDependeny = new LinkedHashMap<CellMLUserUnit, Set<CellMLEntity>> ();
+		Deque<CellMLUserUnit> todo = new ArrayDeque<CellMLUserUnit> ();
+		for (CellMLUserUnit unit : importedUnits)
+		{
+			addDependency (unitsToImport, unit, this);
+			todo.add (unit);
+		}
+		List<CellMLComponent> componentsToImportAll = new ArrayList<CellMLComponent> (componentsToImport);
+		componentsToImportAll.addAll (componentsToImportDependency);
+		for (CellMLComponent component : componentsToImportAll)
+			for (CellMLVariable var : component.getVariables ().values ())
+				if (!var.getUnit ().isStandardUnits () && addDependency (unitsToImportDependeny, (CellMLUserUnit) var.getUnit (), var))
+					todo.add ((CellMLUserUnit) var.getUnit ());
+		Set<CellMLUserUnit> expanded = new HashSet<CellMLUserUnit> ();
+		while (!todo.isEmpty ())
+		{
+			CellMLUserUnit unit = todo.poll ();
+			if (!expanded.add (unit))
+				continue;
+			for (CellMLUserUnit referenced : unit.getReferencedUnits ())
+				if (addDependency (unitsToImportDependeny, referenced, unit))
+					todo.add (referenced);
+		}
+		
+		// names that are taken, colliding imports will be renamed
+		final CellMLNameAllocator metaIds = new CellMLNameAllocator ("_imported");
+		for (String metaId : metaIdMapper.keySet ())
+			metaIds.reserve (metaId);
+		CellMLNameAllocator unitNames = new CellMLNameAllocator ("_imported");
+		for (String name : CellMLUnitDictionary.STANDARD_UNITS)
+			unitNames.reserve (name);
+		for (String name : unitDict.getModelUnits ().keySet ())
+			unitNames.reserve (name);
+		CellMLNameAllocator componentNames = new CellMLNameAllocator ("_imported");
+		for (String name : components.keySet ())
+			componentNames.reserve (name);
+		
 		final class RewriteMetaId
 		{
 			public void rewrite (CellMLEntity u) throws BivesLogicalException
@@ -504,15 +802,10 @@ extends CellMLEntity
 				String thisMetaId = u.getMetaId ();
 				if (thisMetaId != null)
 				{
-					if (metaIdMapper.get (thisMetaId) != null)
+					if (!metaIds.reserve (thisMetaId))
 					{
 						// rename meta id
-						String name = thisMetaId + "_imported";
-						String tmpStr = "";
-						AlphabetIterator ai = AlphabetIterator.getUpperCaseIterator ();
-						while (metaIdMapper.get (name + tmpStr) != null)
-							tmpStr = "_" + ai.next ();
-						String newId = name + tmpStr;
+						String newId = metaIds.allocate (thisMetaId);
 						u.setMetaId (newId);
 						for (RDFDescription descr : u.getRdfDescriptions ())
 							descr.setAbout (newId);
@@ -540,10 +833,13 @@ extends CellMLEntity
 		// copy all these nodes into this document
 		List<CellMLUserUnit> unitToWrite = new ArrayList<CellMLUserUnit> ();
 		Map<String, CellMLUserUnit> importedUnit = new HashMap<String, CellMLUserUnit> ();
+		// document#name of renamed units -> new name, units from the same document share the new name
+		Map<String, String> renamedUnits = new HashMap<String, String> ();
 		for (CellMLUserUnit unit : unitsToImport.keySet ())
 		{
 			LOGGER.info ("directly importing unit: ", unit.getName (), " => ", unit.markup (), " => ", unit.getMetaId (), " => ", unit);
 			importedUnit.put (unit.getName (), unit);
+			unitNames.reserve (unit.getName ());
 			//thisNode.addChild (unit.getDocumentNode ().extract ());
 			unitToWrite.add (unit);
 		}
@@ -554,56 +850,37 @@ extends CellMLEntity
 			if (done != null || org != null)
 			{
 				// check whether both units emerged from same document
-				if ((org != null && !unit.getModel ().getDocument ().getBaseUri ().equals (org.getModel ().getDocument ().getBaseUri ())) || (done != null && !unit.getModel ().getDocument ().getBaseUri ().equals (done.getModel ().getDocument ().getBaseUri ())))
+				if ((org != null && !sameSource (unit, org)) || (done != null && !sameSource (unit, done)))
 				{
 					LOGGER.info ("maybe renaming unit: ", unit.getName (), " => ", unit.markup ());
 					
-					String name = unit.getName () + "_imported";
-					String tmpStr = "";
-					AlphabetIterator ai = AlphabetIterator.getUpperCaseIterator ();
-					boolean renameOnly = false;
-					while (true)
+					String source = unit.getModel ().getDocument ().getBaseUri () + "#" + unit.getName ();
+					String newName = renamedUnits.get (source);
+					boolean renameOnly = newName != null;
+					if (newName == null)
 					{
-						if (unitDict.getUnit (name + tmpStr, null) == null)
-						{
-							if (importedUnit.get (name + tmpStr) != null)
-							{
-								CellMLUserUnit u = importedUnit.get (name + tmpStr);
-								if (u.getModel ().getDocument ().getBaseUri ().equals (unit.getModel ().getDocument ().getBaseUri ()))
-								{
-									renameOnly = true;
-									break;
-								}
-							}
-							else
-								break;
-						}
-						else if (unitDict.getUnit (name + tmpStr, null).getModel ().getDocument ().getBaseUri ().equals (unit.getModel ().getDocument ().getBaseUri ()))
-						{
-							renameOnly = true;
-							break;
-						}
-						tmpStr = "_" + ai.next ();
+						newName = unitNames.allocate (unit.getName ());
+						renamedUnits.put (source, newName);
 					}
-					LOGGER.info ("renaming unit to: ", name, tmpStr);
+					LOGGER.info ("renaming unit to: ", newName);
 					// TODO rename everywhere
-					List<CellMLEntity> depending = unitsToImportDependeny.get (unit);
+					Set<CellMLEntity> depending = unitsToImportDependeny.get (unit);
 					for (CellMLEntity entity : depending)
 					{
 						if (entity instanceof CellMLVariable)
 						{
 							CellMLVariable var = (CellMLVariable) entity;
-							var.renameUnit (unit.getName (), name + tmpStr);
+							var.renameUnit (unit.getName (), newName);
 						}
 						else if (entity instanceof CellMLUserUnit)
 						{
 							CellMLUserUnit u = (CellMLUserUnit) entity;
-							u.renameUnit (unit.getName (), name + tmpStr);
+							u.renameUnit (unit.getName (), newName);
 						}
 						else
 							throw new BivesFlattenException ("renaming of unit in depending entities failed");
 					}
-					unit.setName (name + tmpStr);
+					unit.setName (newName);
 					
 					LOGGER.info ("renaming unit only: ", renameOnly);
 					if (!renameOnly)
@@ -619,6 +896,7 @@ extends CellMLEntity
 				LOGGER.info ("importing unit: ", unit.getName (), " => ", unit.markup (), " => ", unit.getMetaId (), " => ", unit);
 				unitToWrite.add (unit);
 				importedUnit.put (unit.getName (), unit);
+				unitNames.reserve (unit.getName ());
 			}
 		}
 		for (CellMLUserUnit u : unitToWrite)
@@ -630,42 +908,24 @@ extends CellMLEntity
 		
 		// check if our network not already contains hierarchy
 		List<CellMLComponent> componentToWrite = new ArrayList<CellMLComponent> ();
-		Map<String, CellMLComponent> importedComponents = new HashMap<String, CellMLComponent> ();
 		for (CellMLComponent component : componentsToImport)
 		{
 			LOGGER.info ("directly importing component: ", component.getName (), " => ", component.getMetaId ());
-			importedComponents.put (component.getName (), component);
-			//thisNode.addChild (component.getDocumentNode ().extract ());
+			componentNames.reserve (component.getName ());
 			componentToWrite.add (component);
 		}
 		for (CellMLComponent component : componentsToImportDependency)
 		{
-			CellMLComponent done = importedComponents.get (component.getName ());
-			CellMLComponent org = components.get (component.getName ());
-			if (done != null || org != null)
+			if (!componentNames.reserve (component.getName ()))
 			{
 				LOGGER.info ("mmh component: ", component.getName (), " => ", component.getMetaId ());
-				
-				String name = component.getName () + "_imported";
-				String tmpStr = "";
-				AlphabetIterator ai = AlphabetIterator.getUpperCaseIterator ();
-				while (importedComponents.get (name + tmpStr) != null || components.get (name + tmpStr) != null)
-				{
-
-					tmpStr = "_" + ai.next ();
-				}
-				LOGGER.info ("renaming to: ", name, tmpStr);
-				component.setName (name + tmpStr);
-				importedComponents.put (component.getName (), component);
-				//thisNode.addChild (component.getDocumentNode ().extract ());
-				componentToWrite.add (component);
+				String name = componentNames.allocate (component.getName ());
+				LOGGER.info ("renaming to: ", name);
+				component.setName (name);
 			}
 			else
-			{
 				LOGGER.info ("importing component: ", component.getName (), " => ", component.getMetaId ());
-				importedComponents.put (component.getName (), component);
-				componentToWrite.add (component);
-			}
+			componentToWrite.add (component);
 		}
 		for (CellMLComponent u : componentToWrite)
 		{
@@ -678,6 +938,7 @@ extends CellMLEntity
 		
 		
 		// do not forget connections and hierarchy
+		int groups = thisNode.getChildrenWithTag ("group").size ();
 		for (CellMLHierarchyNode node : hierarchyToAdd.getNodes ())
 		{
 			List<CellMLHierarchyNode> kids = node.getChildren ();
@@ -699,66 +960,52 @@ extends CellMLEntity
 				}
 				if (add)
 					thisNode.addChild (new DocumentNode (group, thisNode, thisNode.getDocument (),
-						thisNode.getWeighter (), thisNode.getChildrenWithTag (group.getName ()).size () + 1, thisNode.getLevel () + 1));
+						thisNode.getWeighter (), ++groups, thisNode.getLevel () + 1));
 			}
 		}
 		
-		// connections
-		class VarConnection
+		// connections between imported components that don't exist yet, ordered
+		// by the position of the components in the list of imported components
+		Map<CellMLComponent, Integer> position = new HashMap<CellMLComponent, Integer> ();
+		for (CellMLComponent component : componentsToImportAll)
+			position.put (component, position.size ());
+		Map<CellMLComponent, Set<CellMLComponent>> existing = new HashMap<CellMLComponent, Set<CellMLComponent>> ();
+		for (ConnectedComponents con : connectedComponents)
 		{
-			public CellMLVariable varI, varJ;
-			public VarConnection (CellMLVariable varI, CellMLVariable varJ)
-			{
-				this.varI = varI;
-				this.varJ = varJ;
-			}
+			if (existing.get (con.component_1) == null)
+				existing.put (con.component_1, new HashSet<CellMLComponent> ());
+			existing.get (con.component_1).add (con.component_2);
+			if (existing.get (con.component_2) == null)
+				existing.put (con.component_2, new HashSet<CellMLComponent> ());
+			existing.get (con.component_2).add (con.component_1);
 		}
-		
-		List<CellMLComponent> componentsToImportAll = new ArrayList<CellMLComponent> ();
-		componentsToImportAll.addAll (componentsToImport);
-		componentsToImportAll.addAll (componentsToImportDependency);
-		
+		int connections = thisNode.getChildrenWithTag ("connection").size ();
 		for (int i = 0; i < componentsToImportAll.size (); i++)
 		{
 			CellMLComponent componentI = componentsToImportAll.get (i);
-			for (int j = i + 1; j < componentsToImportAll.size (); j++)
+			Set<CellMLComponent> connected = existing.get (componentI);
+			
+			// mappings to components that come later in the list, by their position
+			TreeMap<Integer, List<CellMLVariable []>> mappings = new TreeMap<Integer, List<CellMLVariable []>> ();
+			for (CellMLVariable var : componentI.getVariables ().values ())
 			{
-				CellMLComponent componentJ = componentsToImportAll.get (j);
-				
-				boolean exists = false;
-				for (ConnectedComponents con :  connectedComponents)
-					if ((con.component_1 == componentI && con.component_2 == componentJ) || 
-						(con.component_1 == componentJ && con.component_2 == componentI))
-					{
-						exists = true;
-						break;
-					}
-				if (exists)
-					continue;
+				for (CellMLVariable con : var.getPrivateInterfaceConnections ())
+					addMapping (mappings, position, i, connected, var, con);
+				for (CellMLVariable con : var.getPublicInterfaceConnections ())
+					addMapping (mappings, position, i, connected, var, con);
+			}
+			
+			for (List<CellMLVariable []> mapping : mappings.values ())
+			{
+				CellMLComponent componentJ = mapping.get (0)[1].getComponent ();
+				LOGGER.info ("found ", mapping.size (), " connections between ", componentI.getName (), " and ", componentJ.getName ());
+				Element connection = new Element ("connection", thisNode.getNameSpacePrefix (), thisNode.getNameSpaceUri ());
+				connection.addContent (new Element ("map_components", thisNode.getNameSpacePrefix (), thisNode.getNameSpaceUri ()).setAttribute ("component_1", componentI.getName ()).setAttribute ("component_2", componentJ.getName ()));
+				for (CellMLVariable [] con : mapping)
+					connection.addContent (new Element ("map_variables", thisNode.getNameSpacePrefix (), thisNode.getNameSpaceUri ()).setAttribute ("variable_1", con[0].getName ()).setAttribute ("variable_2", con[1].getName ()));
 				
-				List<VarConnection> mappings = new ArrayList<VarConnection> ();
-				for (CellMLVariable var : componentI.getVariables ().values ())
-				{
-					List<CellMLVariable> connections = var.getPrivateInterfaceConnections ();
-					for (CellMLVariable con : connections)
-						if (con.getComponent () == componentJ)
-							mappings.add (new VarConnection (var, con));
-					connections = var.getPublicInterfaceConnections ();
-					for (CellMLVariable con : connections)
-						if (con.getComponent () == componentJ)
-							mappings.add (new VarConnection (var, con));
-				}
-				LOGGER.info ("found ", mappings.size (), " connections between ", componentI.getName (), " and ", componentJ.getName ());
-				if (mappings.size () > 0)
-				{
-					Element connection = new Element ("connection", thisNode.getNameSpacePrefix (), thisNode.getNameSpaceUri ());
-					connection.addContent (new Element ("map_components", thisNode.getNameSpacePrefix (), thisNode.getNameSpaceUri ()).setAttribute ("component_1", componentI.getName ()).setAttribute ("component_2", componentJ.getName ()));
-					for (VarConnection con: mappings)
-						connection.addContent (new Element ("map_variables", thisNode.getNameSpacePrefix (), thisNode.getNameSpaceUri ()).setAttribute ("variable_1", con.varI.getName ()).setAttribute ("variable_2", con.varJ.getName ()));
-
-					thisNode.addChild (new DocumentNode (connection, thisNode, thisNode.getDocument (),
-						thisNode.getWeighter (), thisNode.getChildrenWithTag (connection.getName ()).size () + 1, thisNode.getLevel () + 1));
-				}
+				thisNode.addChild (new DocumentNode (connection, thisNode, thisNode.getDocument (),
+					thisNode.getWeighter (), ++connections, thisNode.getLevel () + 1));
 			}
 		}
 		
@@ -777,6 +1024,79 @@ extends CellMLEntity
 		containsImports = false;
 	}
 	
+	/**
+	 * Adds a dependent entity to the entities depending on a unit.
+	 *
+	 * @param dependencies the dependencies, unit -&gt; depending entities, in insertion order
+	 * @param unit the unit
+	 * @param entity the entity depending on the unit
+	 * @return true, if the unit wasn't known before
+	 */
+	private static boolean addDependency (Map<CellMLUserUnit, Set<CellMLEntity>> dependencies, CellMLUserUnit unit, CellMLEntity entity)
+	{
+		Set<CellMLEntity> set = dependencies.get (unit);
+		boolean added = set == null;
+		if (added)
+		{
+			set = new LinkedHashSet<CellMLEntity> ();
+			dependencies.put (unit, set);
+		}
+		set.add (entity);
+		return added;
+	}
+	
+	/**
+	 * Checks whether two entities emerged from the same document.
+	 *
+	 * @param a the first entity
+	 * @param b the second entity
+	 * @return true, if both were defined in the same document
+	 */
+	private static boolean sameSource (CellMLEntity a, CellMLEntity b)
+	{
+		return a.getModel () == b.getModel () || a.getModel ().getDocument ().getBaseUri ().equals (b.getModel ().getDocument ().getBaseUri ());
+	}
+	
+	/**
+	 * Adds a mapping between two variables of imported components to the
+	 * connections to be written, if the connected component comes later in the
+	 * list of imported components and isn't connected yet.
+	 *
+	 * @param mappings the mappings, position of the connected component -&gt; pairs of variables
+	 * @param position the positions of the imported components
+	 * @param i the position of the component of <code>var</code>
+	 * @param connected the components that are already connected to the component of <code>var</code>, may be null
+	 * @param var the variable
+	 * @param con the connected variable
+	 */
+	private static void addMapping (Map<Integer, List<CellMLVariable []>> mappings, Map<CellMLComponent, Integer> position, int i, Set<CellMLComponent> connected, CellMLVariable var, CellMLVariable con)
+	{
+		Integer j = position.get (con.getComponent ());
+		if (j == null || j <= i || (connected != null && connected.contains (con.getComponent ())))
+			return;
+		List<CellMLVariable []> list = mappings.get (j);
+		if (list == null)
+		{
+			list = new ArrayList<CellMLVariable []> ();
+			mappings.put (j, list);
+		}
+		list.add (new CellMLVariable [] {var, con});
+	}
+	
+	/**
+	 * Gets the analysis of the connections between the variables of this model.
+	 * The analysis is cached until the connections or the components change.
+	 *
+	 * @return the connection graph
+	 */
+	public synchronized CellMLConnectionGraph getConnectionGraph ()
+	{
+		int version = getConnectionVersion ();
+		if (connectionGraph == null || connectionGraph.getVersion () != version)
+			connectionGraph = new CellMLConnectionGraph (components.values (), connectedComponents, version);
+		return connectionGraph;
+	}
+	
 	/**
 	 * Gets the hierarchy.
 	 *
@@ -793,7 +1113,7 @@ extends CellMLEntity
 	 * @param node the document node
 	 * @param entity the entity
 	 */
-	public void mapNode (DocumentNode node, CellMLEntity entity)
+	public synchronized void mapNode (DocumentNode node, CellMLEntity entity)
 	{
 		nodeMapper.put (node, entity);
 	}
@@ -804,7 +1124,7 @@ extends CellMLEntity
 	 * @param node the node
 	 * @return the from node
 	 */
-	public CellMLEntity getFromNode (TreeNode node)
+	public synchronized CellMLEntity getFromNode (TreeNode node)
 	{
 		return nodeMapper.get (node);
 	}
@@ -815,7 +1135,7 @@ extends CellMLEntity
 	 * @param metaId the meta id
 	 * @return the corresponding entity
 	 */
-	public CellMLEntity getEntityByMetaId (String metaId)
+	public synchronized CellMLEntity getEntityByMetaId (String metaId)
 	{
 		return metaIdMapper.get (metaId);
 	}
@@ -827,7 +1147,7 @@ extends CellMLEntity
 	 * @param cellMLEntity the CellML entity
 	 * @throws BivesLogicalException 
 	 */
-	public void registerMetaId (String metaId, CellMLEntity cellMLEntity) throws BivesLogicalException
+	public synchronized void registerMetaId (String metaId, CellMLEntity cellMLEntity) throws BivesLogicalException
 	{
 		if (metaIdMapper.get (metaId) != null)
 			throw new BivesLogicalException ("meta id already registered: " + metaId);
@@ -841,7 +1161,16 @@ extends CellMLEntity
 	 */
 	public void registerRdfBlock (RDF rdf)
 	{
-		this.rdfBlocks.add (rdf);
+		List<RDF> pending = pendingRdfBlocks.get ();
+		if (pending != null)
+		{
+			pending.add (rdf);
+			return;
+		}
+		synchronized (this)
+		{
+			rdfBlocks.add (rdf);
+		}
 	}
 	
 	/**
@@ -863,7 +1192,7 @@ extends CellMLEntity
 	 *
 	 * @param metaId the meta id to remove from mapper
 	 */
-	public void unregisterMetaId (String metaId)
+	public synchronized void unregisterMetaId (String metaId)
 	{
 		metaIdMapper.remove (metaId);
 	}
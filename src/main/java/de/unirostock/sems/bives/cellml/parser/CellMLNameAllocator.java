@@ -0,0 +1,130 @@
+/**
+ *
+ */
+package de.unirostock.sems.bives.cellml.parser;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * The Class CellMLNameAllocator hands out unique names within a namespace, e.g.
+ * the unit names or the meta ids of a model. It is used to resolve collisions
+ * when imported entities are written into a model.
+ *
+ * <p>
+ * A name that collides with a reserved name is replaced by
+ * <code>base + suffix</code>, then <code>base + suffix + "_A"</code>,
+ * <code>base + suffix + "_B"</code>, ..., <code>"_Z"</code>,
+ * <code>"_AA"</code>, and so on, the first of these candidates that isn't
+ * reserved yet wins. The allocator remembers for every base name how far it
+ * already got, so allocating many names for the same base, e.g. hundreds of
+ * imported <code>per_second</code> units, doesn't start from the beginning
+ * every time. Allocation is thus amortized constant time and deterministic:
+ * the same sequence of reservations and allocations always yields the same
+ * names.
+ * </p>
+ *
+ * @author Martin Scharm
+ */
+public class CellMLNameAllocator
+{
+	
+	/** The suffix appended to colliding names. */
+	private String suffix;
+	
+	/** The names that are already taken. */
+	private Set<String> reserved;
+	
+	/** The next candidate to try, base name -&gt; index of the candidate. */
+	private Map<String, Integer> next;
+	
+	
+	/**
+	 * Instantiates a new name allocator.
+	 *
+	 * @param suffix the suffix appended to colliding names, e.g. <code>_imported</code>
+	 */
+	public CellMLNameAllocator (String suffix)
+	{
+		this.suffix = suffix;
+		reserved = new HashSet<String> ();
+		next = new HashMap<String, Integer> ();
+	}
+	
+	
+	/**
+	 * Reserves a name, so that it won't be allocated.
+	 *
+	 * @param name the name
+	 * @return true, if the name wasn't reserved before
+	 */
+	public boolean reserve (String name)
+	{
+		return reserved.add (name);
+	}
+	
+	
+	/**
+	 * Checks if a name is reserved.
+	 *
+	 * @param name the name
+	 * @return true, if the name is reserved
+	 */
+	public boolean isReserved (String name)
+	{
+		return reserved.contains (name);
+	}
+	
+	
+	/**
+	 * Allocates a new name derived from <code>base</code>, which is reserved
+	 * afterwards.
+	 *
+	 * @param base the base name, typically the colliding name
+	 * @return the new name
+	 */
+	public String allocate (String base)
+	{
+		Integer start = next.get (base);
+		int index = start == null ? 0 : start;
+		String name = candidate (base, index);
+		while (reserved.contains (name))
+			name = candidate (base, ++index);
+		next.put (base, index + 1);
+		reserved.add (name);
+		return name;
+	}
+	
+	
+	/**
+	 * Gets a candidate name.
+	 *
+	 * @param base the base name
+	 * @param index the index of the candidate
+	 * @return the candidate
+	 */
+	private String candidate (String base, int index)
+	{
+		if (index == 0)
+			return base + suffix;
+		return base + suffix + "_" + label (index - 1);
+	}
+	
+	
+	/**
+	 * Gets the label of a candidate: A, B, ..., Z, AA, AB, ...
+	 *
+	 * @param index the index of the label, starting at 0
+	 * @return the label
+	 */
+	static String label (int index)
+	{
+		StringBuilder sb = new StringBuilder ();
+		for (int n = index + 1; n > 0; n = (n - 1) / 26)
+			sb.append ((char) ('A' + (n - 1) % 26));
+		return sb.reverse ().toString ();
+	}
+}
@@ -0,0 +1,436 @@
+/**
+ *
+ */
+package de.unirostock.sems.bives.cellml.parser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jdom2.Attribute;
+import org.jdom2.CDATA;
+import org.jdom2.Comment;
+import org.jdom2.Content;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.Namespace;
+import org.jdom2.ProcessingInstruction;
+import org.jdom2.Text;
+
+import de.unirostock.sems.bives.cellml.exception.BivesCellMLParseException;
+import de.unirostock.sems.bives.exception.BivesDocumentConsistencyException;
+import de.unirostock.sems.bives.exception.BivesImportException;
+import de.unirostock.sems.bives.exception.BivesLogicalException;
+import de.unirostock.sems.xmlutils.ds.TreeDocument;
+import de.unirostock.sems.xmlutils.exception.XmlDocumentParseException;
+import de.unirostock.sems.xmlutils.tools.DocumentTools;
+
+
+/**
+ * The Class CellMLSnapshot reads and writes parsed documents in a compact
+ * binary format, which can be loaded much faster than the original XML.
+ *
+ * <p>
+ * A snapshot starts with a magic number and a format version, followed by a
+ * table of all distinct strings (tag names, attribute names and values, texts,
+ * comments and namespaces) and the tree itself, which refers to the strings by their
+ * index in the table. Integers are stored with a variable length encoding.
+ * </p>
+ *
+ * <p>
+ * A snapshot of a {@link CellMLDocument} bundles the snapshots of the document
+ * and of all documents it imports, directly or indirectly. Thus, it can be
+ * loaded without parsing any XML and without retrieving any imports. The CellML
+ * entities refer to the nodes of the document tree, so they are rebuilt from
+ * the restored trees instead of being stored.
+ * </p>
+ *
+ * @author Martin Scharm
+ */
+public final class CellMLSnapshot
+{
+	
+	/** The magic number introducing every snapshot. */
+	private static final int MAGIC = 0x434d4c53; // CMLS
+	
+	/** The magic number introducing every snapshot of a CellML document. */
+	private static final int DOCUMENT_MAGIC = 0x434d4c44; // CMLD
+	
+	/** The current version of the format. */
+	public static final int VERSION = 1;
+	
+	/** Content type: element. */
+	private static final int ELEMENT = 0;
+	
+	/** Content type: text. */
+	private static final int TEXT = 1;
+	
+	/** Content type: CDATA section. */
+	private static final int CDATA_SECTION = 2;
+	
+	/** Content type: comment. */
+	private static final int COMMENT = 3;
+	
+	/** Content type: processing instruction. */
+	private static final int PROCESSING_INSTRUCTION = 4;
+	
+	/** The string table, string -> index. */
+	private Map<String, Integer> strings;
+	
+	/** The string table in order of first occurrence. */
+	private List<String> table;
+	
+	/**
+	 * Instantiates a new snapshot writer.
+	 */
+	private CellMLSnapshot ()
+	{
+		strings = new HashMap<String, Integer> ();
+		table = new ArrayList<String> ();
+	}
+	
+	/**
+	 * Writes a snapshot of a document. The stream will not be closed.
+	 *
+	 * @param doc the document
+	 * @param out the stream to write to
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static void write (Document doc, OutputStream out) throws IOException
+	{
+		CellMLSnapshot snapshot = new CellMLSnapshot ();
+		
+		// write the tree first to collect the strings
+		ByteArrayOutputStream tree = new ByteArrayOutputStream ();
+		DataOutputStream treeOut = new DataOutputStream (tree);
+		snapshot.writeElement (doc.getRootElement (), treeOut);
+		treeOut.flush ();
+		
+		DataOutputStream dout = new DataOutputStream (out);
+		dout.writeInt (MAGIC);
+		writeVarInt (dout, VERSION);
+		writeVarInt (dout, snapshot.table.size ());
+		for (String s : snapshot.table)
+			writeString (dout, s);
+		tree.writeTo (dout);
+		dout.flush ();
+	}
+	
+	/**
+	 * Reads a snapshot of a document. The stream will not be closed.
+	 *
+	 * @param in the stream to read from
+	 * @return the document
+	 * @throws IOException if the stream does not contain a valid snapshot
+	 */
+	public static Document read (InputStream in) throws IOException
+	{
+		DataInputStream din = new DataInputStream (in);
+		if (din.readInt () != MAGIC)
+			throw new IOException ("not a snapshot");
+		int version = readVarInt (din);
+		if (version != VERSION)
+			throw new IOException ("unsupported snapshot version " + version);
+		
+		String [] table = new String [readVarInt (din)];
+		for (int i = 0; i < table.length; i++)
+			table[i] = CellMLStringPool.intern (readString (din));
+		
+		return new Document (readElement (din, table));
+	}
+	
+	/**
+	 * Writes a snapshot of a CellML document, including all documents it imports.
+	 * The stream will not be closed.
+	 *
+	 * @param doc the CellML document
+	 * @param out the stream to write to
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static void write (CellMLDocument doc, OutputStream out) throws IOException
+	{
+		DataOutputStream dout = new DataOutputStream (out);
+		dout.writeInt (DOCUMENT_MAGIC);
+		writeVarInt (dout, VERSION);
+		writeString (dout, doc.getBaseUri () == null ? "" : doc.getBaseUri ().toString ());
+		
+		CellMLImportGraph graph = doc.getImportGraph ();
+		List<URI> imports = graph.getTopologicalOrder ();
+		writeVarInt (dout, imports.size ());
+		for (URI uri : imports)
+		{
+			writeString (dout, uri.toString ());
+			write (graph.getDocument (uri), dout);
+		}
+		write (DocumentTools.getDoc (doc.getTreeDocument ()), dout);
+		dout.flush ();
+	}
+	
+	/**
+	 * Reads a snapshot of a CellML document. Imports are served from the
+	 * snapshot, so no document has to be retrieved. The stream will not be closed.
+	 *
+	 * @param in the stream to read from
+	 * @return the CellML document
+	 * @throws IOException if the stream does not contain a valid snapshot
+	 * @throws XmlDocumentParseException the xml document parse exception
+	 * @throws BivesCellMLParseException the bives cell ml parse exception
+	 * @throws BivesDocumentConsistencyException the bives document consistency exception
+	 * @throws BivesLogicalException the bives logical exception
+	 * @throws URISyntaxException the uRI syntax exception
+	 * @throws BivesImportException the bives import exception
+	 */
+	public static CellMLDocument readDocument (InputStream in) throws IOException, XmlDocumentParseException, BivesCellMLParseException, BivesDocumentConsistencyException, BivesLogicalException, URISyntaxException, BivesImportException
+	{
+		DataInputStream din = new DataInputStream (in);
+		if (din.readInt () != DOCUMENT_MAGIC)
+			throw new IOException ("not a snapshot of a CellML document");
+		int version = readVarInt (din);
+		if (version != VERSION)
+			throw new IOException ("unsupported snapshot version " + version);
+		String base = readString (din);
+		URI baseUri = base.length () == 0 ? null : new URI (base);
+		
+		Map<URI, Document> imports = new HashMap<URI, Document> ();
+		for (int i = readVarInt (din); i > 0; i--)
+		{
+			URI uri = new URI (readString (din));
+			imports.put (uri, read (din));
+		}
+		
+		TreeDocument tree = new TreeDocument (read (din), baseUri);
+		return new CellMLDocument (tree, new CellMLImportGraph (tree, imports));
+	}
+	
+	/**
+	 * Writes a string.
+	 *
+	 * @param out the stream
+	 * @param s the string
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static void writeString (DataOutputStream out, String s) throws IOException
+	{
+		byte [] bytes = s.getBytes ("UTF-8");
+		writeVarInt (out, bytes.length);
+		out.write (bytes);
+	}
+	
+	/**
+	 * Reads a string.
+	 *
+	 * @param in the stream
+	 * @return the string
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static String readString (DataInputStream in) throws IOException
+	{
+		byte [] bytes = new byte [readVarInt (in)];
+		in.readFully (bytes);
+		return new String (bytes, "UTF-8");
+	}
+	
+	/**
+	 * Gets the index of a string in the string table, adding it if necessary.
+	 *
+	 * @param s the string
+	 * @return the index
+	 */
+	private int index (String s)
+	{
+		Integer i = strings.get (s);
+		if (i == null)
+		{
+			i = table.size ();
+			strings.put (s, i);
+			table.add (s);
+		}
+		return i;
+	}
+	
+	/**
+	 * Writes a namespace.
+	 *
+	 * @param ns the namespace
+	 * @param out the stream
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void writeNamespace (Namespace ns, DataOutputStream out) throws IOException
+	{
+		writeVarInt (out, index (ns.getPrefix ()));
+		writeVarInt (out, index (ns.getURI ()));
+	}
+	
+	/**
+	 * Recursively writes an element.
+	 *
+	 * @param element the element
+	 * @param out the stream
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void writeElement (Element element, DataOutputStream out) throws IOException
+	{
+		writeVarInt (out, index (element.getName ()));
+		writeNamespace (element.getNamespace (), out);
+		
+		List<Namespace> additional = element.getAdditionalNamespaces ();
+		writeVarInt (out, additional.size ());
+		for (Namespace ns : additional)
+			writeNamespace (ns, out);
+		
+		List<Attribute> attributes = element.getAttributes ();
+		writeVarInt (out, attributes.size ());
+		for (Attribute a : attributes)
+		{
+			writeVarInt (out, index (a.getName ()));
+			writeNamespace (a.getNamespace (), out);
+			writeVarInt (out, index (a.getValue ()));
+		}
+		
+		List<Content> content = new ArrayList<Content> ();
+		for (Content c : element.getContent ())
+			if (c instanceof Element || c instanceof Text || c instanceof Comment || c instanceof ProcessingInstruction)
+				content.add (c);
+		writeVarInt (out, content.size ());
+		for (Content c : content)
+		{
+			if (c instanceof Element)
+			{
+				out.writeByte (ELEMENT);
+				writeElement ((Element) c, out);
+			}
+			else if (c instanceof CDATA)
+			{
+				out.writeByte (CDATA_SECTION);
+				writeVarInt (out, index (((CDATA) c).getText ()));
+			}
+			else if (c instanceof Text)
+			{
+				out.writeByte (TEXT);
+				writeVarInt (out, index (((Text) c).getText ()));
+			}
+			else if (c instanceof Comment)
+			{
+				out.writeByte (COMMENT);
+				writeVarInt (out, index (((Comment) c).getText ()));
+			}
+			else
+			{
+				out.writeByte (PROCESSING_INSTRUCTION);
+				writeVarInt (out, index (((ProcessingInstruction) c).getTarget ()));
+				writeVarInt (out, index (((ProcessingInstruction) c).getData ()));
+			}
+		}
+	}
+	
+	/**
+	 * Reads a namespace.
+	 *
+	 * @param in the stream
+	 * @param table the string table
+	 * @return the namespace
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static Namespace readNamespace (DataInputStream in, String [] table) throws IOException
+	{
+		String prefix = table[readVarInt (in)];
+		return Namespace.getNamespace (prefix, table[readVarInt (in)]);
+	}
+	
+	/**
+	 * Recursively reads an element.
+	 *
+	 * @param in the stream
+	 * @param table the string table
+	 * @return the element
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static Element readElement (DataInputStream in, String [] table) throws IOException
+	{
+		String name = table[readVarInt (in)];
+		Element element = new Element (name, readNamespace (in, table));
+		
+		for (int i = readVarInt (in); i > 0; i--)
+			element.addNamespaceDeclaration (readNamespace (in, table));
+		
+		for (int i = readVarInt (in); i > 0; i--)
+		{
+			String attName = table[readVarInt (in)];
+			Namespace ns = readNamespace (in, table);
+			element.setAttribute (new Attribute (attName, table[readVarInt (in)], ns));
+		}
+		
+		for (int i = readVarInt (in); i > 0; i--)
+		{
+			int type = in.readByte ();
+			switch (type)
+			{
+				case ELEMENT:
+					element.addContent (readElement (in, table));
+					break;
+				case TEXT:
+					element.addContent (new Text (table[readVarInt (in)]));
+					break;
+				case CDATA_SECTION:
+					element.addContent (new CDATA (table[readVarInt (in)]));
+					break;
+				case COMMENT:
+					element.addContent (new Comment (table[readVarInt (in)]));
+					break;
+				case PROCESSING_INSTRUCTION:
+					String target = table[readVarInt (in)];
+					element.addContent (new ProcessingInstruction (target, table[readVarInt (in)]));
+					break;
+				default:
+					throw new IOException ("corrupt snapshot: unknown content type " + type);
+			}
+		}
+		return element;
+	}
+	
+	/**
+	 * Writes a non-negative integer using a variable number of bytes.
+	 *
+	 * @param out the stream
+	 * @param value the value
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	static void writeVarInt (DataOutputStream out, int value) throws IOException
+	{
+		while ((value & ~0x7F) != 0)
+		{
+			out.writeByte ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte (value);
+	}
+	
+	/**
+	 * Reads a non-negative integer that was written by {@link #writeVarInt(DataOutputStream, int)}.
+	 *
+	 * @param in the stream
+	 * @return the value
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	static int readVarInt (DataInputStream in) throws IOException
+	{
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7)
+		{
+			int b = in.readUnsignedByte ();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException ("corrupt snapshot: invalid integer");
+	}
+}
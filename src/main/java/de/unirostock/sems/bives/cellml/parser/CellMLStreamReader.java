@@ -0,0 +1,296 @@
+/**
+ *
+ */
+package de.unirostock.sems.bives.cellml.parser;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.jdom2.Attribute;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.Namespace;
+
+import de.unirostock.sems.bives.cellml.exception.BivesCellMLParseException;
+import de.unirostock.sems.bives.exception.BivesDocumentConsistencyException;
+import de.unirostock.sems.bives.exception.BivesImportException;
+import de.unirostock.sems.bives.exception.BivesLogicalException;
+import de.unirostock.sems.xmlutils.ds.TreeDocument;
+import de.unirostock.sems.xmlutils.exception.XmlDocumentParseException;
+
+
+/**
+ * The Class CellMLStreamReader reads CellML documents for single-model
+ * analytics, such as validation, statistics, or graphs.
+ *
+ * <p>
+ * The XML is read with StAX and only the parts that are needed to build the
+ * CellML entities end up in the trees: the CellML elements and their
+ * attributes, and the MathML subtrees. Documentation, RDF, extension elements,
+ * comments, and whitespace are dropped while reading, and attribute values and
+ * MathML text are interned in the {@link CellMLStringPool}.
+ * </p>
+ *
+ * <p>
+ * This is not a constant-memory parser. The trimmed content is still built
+ * into a JDOM document, which is converted into the {@link TreeDocument} the
+ * CellML entities are parsed from, and the model keeps that TreeDocument. So
+ * both trees exist while parsing and the memory still grows with the size of
+ * the model. The savings are limited to the dropped nodes: for the models in
+ * the test directory 3 to 16 percent of the elements and more than 80 percent
+ * of the remaining nodes, mostly whitespace, never get created. Models with
+ * extensive annotations profit the most.
+ * </p>
+ *
+ * <p>
+ * As a consequence, documents read this way don't know about any annotations
+ * and shouldn't be used to compute diffs.
+ * </p>
+ *
+ * @author Martin Scharm
+ */
+public final class CellMLStreamReader
+{
+	
+	/** The namespace of CellML 1.0. */
+	public static final String	CELLML_1_0	= "http://www.cellml.org/cellml/1.0#";
+	
+	/** The namespace of CellML 1.1. */
+	public static final String	CELLML_1_1	= "http://www.cellml.org/cellml/1.1#";
+	
+	/** The namespace of MathML. */
+	public static final String	MATHML			= "http://www.w3.org/1998/Math/MathML";
+	
+	/** The factory for stream readers. */
+	private static final XMLInputFactory FACTORY = createFactory ();
+	
+	
+	/**
+	 * Static class, don't instantiate.
+	 */
+	private CellMLStreamReader ()
+	{
+	}
+	
+	
+	/**
+	 * Reads a CellML document from a file.
+	 *
+	 * @param file the file containing the model
+	 * @return the CellML document
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws BivesCellMLParseException the bives cell ml parse exception
+	 * @throws BivesDocumentConsistencyException the bives document consistency exception
+	 * @throws BivesLogicalException the bives logical exception
+	 * @throws URISyntaxException the uRI syntax exception
+	 * @throws BivesImportException the bives import exception
+	 * @throws XmlDocumentParseException the xml document parse exception
+	 */
+	public static CellMLDocument parse (File file) throws XmlDocumentParseException, IOException, BivesCellMLParseException, BivesDocumentConsistencyException, BivesLogicalException, URISyntaxException, BivesImportException
+	{
+		InputStream in = new BufferedInputStream (new FileInputStream (file));
+		try
+		{
+			return parse (in, file.toURI ());
+		}
+		finally
+		{
+			in.close ();
+		}
+	}
+	
+	
+	/**
+	 * Reads a CellML document from a stream. The stream will not be closed.
+	 *
+	 * @param in the stream containing the model
+	 * @param baseUri the location of the model, used to resolve imports, may be null
+	 * @return the CellML document
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws BivesCellMLParseException the bives cell ml parse exception
+	 * @throws BivesDocumentConsistencyException the bives document consistency exception
+	 * @throws BivesLogicalException the bives logical exception
+	 * @throws URISyntaxException the uRI syntax exception
+	 * @throws BivesImportException the bives import exception
+	 * @throws XmlDocumentParseException the xml document parse exception
+	 */
+	public static CellMLDocument parse (InputStream in, URI baseUri) throws XmlDocumentParseException, IOException, BivesCellMLParseException, BivesDocumentConsistencyException, BivesLogicalException, URISyntaxException, BivesImportException
+	{
+		Document doc = read (in, baseUri == null ? null : baseUri.toString ());
+		return new CellMLDocument (new TreeDocument (doc, baseUri));
+	}
+	
+	
+	/**
+	 * Reads a document with StAX and keeps only the CellML elements and the
+	 * MathML subtrees. The stream will not be closed.
+	 *
+	 * @param in the stream containing the model
+	 * @param systemId the system id of the document, may be null
+	 * @return the trimmed document
+	 * @throws IOException if the stream cannot be read or doesn't contain well-formed XML
+	 */
+	public static Document read (InputStream in, String systemId) throws IOException
+	{
+		try
+		{
+			XMLStreamReader reader = FACTORY.createXMLStreamReader (systemId, in);
+			try
+			{
+				return read (reader);
+			}
+			finally
+			{
+				reader.close ();
+			}
+		}
+		catch (XMLStreamException e)
+		{
+			throw new IOException ("cannot parse " + systemId + ": " + e.getMessage (), e);
+		}
+	}
+	
+	
+	/**
+	 * Builds the trimmed document from a stream reader.
+	 *
+	 * @param reader the reader
+	 * @return the trimmed document
+	 * @throws XMLStreamException the XML stream exception
+	 */
+	private static Document read (XMLStreamReader reader) throws XMLStreamException
+	{
+		Element root = null;
+		Deque<Element> open = new ArrayDeque<Element> ();
+		// depth of the subtree that is currently skipped, 0 if nothing is skipped
+		int skip = 0;
+		// depth of the MathML subtree that is currently read, 0 if not in MathML
+		int math = 0;
+		
+		while (reader.hasNext ())
+		{
+			switch (reader.next ())
+			{
+				case XMLStreamConstants.START_ELEMENT:
+					if (skip > 0)
+					{
+						skip++;
+						break;
+					}
+					String ns = reader.getNamespaceURI ();
+					if (math > 0)
+						math++;
+					else if (MATHML.equals (ns))
+						math = 1;
+					else if (!CELLML_1_0.equals (ns) && !CELLML_1_1.equals (ns) && root != null)
+					{
+						skip = 1;
+						break;
+					}
+					
+					Element element = createElement (reader);
+					if (root == null)
+						root = element;
+					else
+						open.peek ().addContent (element);
+					open.push (element);
+					break;
+				
+				case XMLStreamConstants.END_ELEMENT:
+					if (skip > 0)
+					{
+						skip--;
+						break;
+					}
+					if (math > 0)
+						math--;
+					open.pop ();
+					break;
+				
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+					// only the MathML carries meaningful text
+					if (skip == 0 && math > 0 && !reader.isWhiteSpace ())
+					{
+						String text = reader.getText ().trim ();
+						if (text.length () > 0)
+							open.peek ().addContent (CellMLStringPool.intern (text));
+					}
+					break;
+			}
+		}
+		
+		if (root == null)
+			throw new XMLStreamException ("document doesn't contain any element");
+		return new Document (root);
+	}
+	
+	
+	/**
+	 * Creates an element for the current start tag, including its namespace
+	 * declarations and attributes.
+	 *
+	 * @param reader the reader positioned at a start tag
+	 * @return the element
+	 */
+	private static Element createElement (XMLStreamReader reader)
+	{
+		Element element = new Element (reader.getLocalName (), namespace (reader.getPrefix (), reader.getNamespaceURI ()));
+		
+		for (int i = 0; i < reader.getNamespaceCount (); i++)
+		{
+			Namespace ns = namespace (reader.getNamespacePrefix (i), reader.getNamespaceURI (i));
+			if (ns != element.getNamespace ())
+				element.addNamespaceDeclaration (ns);
+		}
+		
+		for (int i = 0; i < reader.getAttributeCount (); i++)
+			element.setAttribute (new Attribute (reader.getAttributeLocalName (i), CellMLStringPool.intern (reader.getAttributeValue (i)), namespace (reader.getAttributePrefix (i), reader.getAttributeNamespace (i))));
+		
+		return element;
+	}
+	
+	
+	/**
+	 * Gets a JDOM namespace.
+	 *
+	 * @param prefix the prefix, may be null
+	 * @param uri the uri, may be null
+	 * @return the namespace
+	 */
+	private static Namespace namespace (String prefix, String uri)
+	{
+		if (uri == null || uri.length () == 0)
+			return Namespace.NO_NAMESPACE;
+		return Namespace.getNamespace (prefix == null ? "" : prefix, uri);
+	}
+	
+	
+	/**
+	 * Creates the factory for stream readers. DTDs and external entities are
+	 * ignored, CellML doesn't need them.
+	 *
+	 * @return the factory
+	 */
+	private static XMLInputFactory createFactory ()
+	{
+		XMLInputFactory factory = XMLInputFactory.newInstance ();
+		factory.setProperty (XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		factory.setProperty (XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		factory.setProperty (XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty (XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		return factory;
+	}
+}
@@ -0,0 +1,223 @@
+/**
+ *
+ */
+package de.unirostock.sems.bives.cellml.parser;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.WeakHashMap;
+
+import org.jdom2.Attribute;
+import org.jdom2.AttributeType;
+import org.jdom2.DefaultJDOMFactory;
+import org.jdom2.Namespace;
+import org.jdom2.Text;
+import org.jdom2.input.SAXBuilder;
+
+
+/**
+ * The Class CellMLStringPool shares equal strings among all parsed CellML
+ * models, such as the names of variables, components, and units, or the
+ * identifiers in the maths.
+ *
+ * <p>
+ * Every attribute value and text of a parsed document usually is a string of
+ * its own, so names like <code>time</code> or <code>millisecond</code> are
+ * stored over and over again if many models are loaded. The pool hands out a
+ * canonical instance of every string instead. It only keeps weak references,
+ * so strings that are not used anymore can still be garbage collected.
+ * Strings longer than {@link #getMaxLength()} characters, e.g. documentation,
+ * are rarely repeated and won't be pooled.
+ * </p>
+ *
+ * @author Martin Scharm
+ */
+public final class CellMLStringPool
+{
+	
+	/** The default maximum length of pooled strings. */
+	public static final int DEFAULT_MAX_LENGTH = 64;
+	
+	/** The number of independently locked parts of the pool, a power of two. */
+	private static final int STRIPES = 16;
+	
+	/** The parts of the pool, string -> canonical instance. */
+	private static final List<WeakHashMap<String, WeakReference<String>>> pool = createPool ();
+	
+	/** The factory interning the attribute values and texts of parsed documents. */
+	private static final DefaultJDOMFactory FACTORY = new InterningFactory ();
+	
+	/** Is the pool enabled?. */
+	private static volatile boolean enabled = true;
+	
+	/** The maximum length of pooled strings. */
+	private static volatile int maxLength = DEFAULT_MAX_LENGTH;
+	
+	
+	/**
+	 * The Class InterningFactory creates JDOM content with pooled strings.
+	 */
+	private static class InterningFactory
+		extends DefaultJDOMFactory
+	{
+		
+		/* (non-Javadoc)
+		 * @see org.jdom2.DefaultJDOMFactory#attribute(java.lang.String, java.lang.String, org.jdom2.AttributeType, org.jdom2.Namespace)
+		 */
+		@Override
+		public Attribute attribute (String name, String value, AttributeType type, Namespace namespace)
+		{
+			return super.attribute (name, intern (value), type, namespace);
+		}
+		
+		
+		/* (non-Javadoc)
+		 * @see org.jdom2.DefaultJDOMFactory#text(int, int, java.lang.String)
+		 */
+		@Override
+		public Text text (int line, int col, String text)
+		{
+			return super.text (line, col, intern (text));
+		}
+	}
+	
+	
+	/**
+	 * Static class, don't instantiate.
+	 */
+	private CellMLStringPool ()
+	{
+	}
+	
+	
+	/**
+	 * Creates the parts of the pool.
+	 *
+	 * @return the empty parts
+	 */
+	private static List<WeakHashMap<String, WeakReference<String>>> createPool ()
+	{
+		List<WeakHashMap<String, WeakReference<String>>> parts = new ArrayList<WeakHashMap<String, WeakReference<String>>> (STRIPES);
+		for (int i = 0; i < STRIPES; i++)
+			parts.add (new WeakHashMap<String, WeakReference<String>> ());
+		return parts;
+	}
+	
+	
+	/**
+	 * Gets the canonical instance of a string.
+	 *
+	 * @param s the string, may be null
+	 * @return the pooled string equal to <code>s</code>, or <code>s</code> itself if it is not pooled
+	 */
+	public static String intern (String s)
+	{
+		if (s == null || !enabled || s.length () > maxLength)
+			return s;
+		WeakHashMap<String, WeakReference<String>> part = pool.get (s.hashCode () & (STRIPES - 1));
+		synchronized (part)
+		{
+			WeakReference<String> ref = part.get (s);
+			String canonical = ref == null ? null : ref.get ();
+			if (canonical != null)
+				return canonical;
+			part.put (s, new WeakReference<String> (s));
+			return s;
+		}
+	}
+	
+	
+	/**
+	 * Creates a SAX builder whose documents use pooled strings for attribute
+	 * values and texts.
+	 *
+	 * @return the SAX builder
+	 */
+	public static SAXBuilder createSAXBuilder ()
+	{
+		SAXBuilder builder = new SAXBuilder ();
+		builder.setJDOMFactory (FACTORY);
+		return builder;
+	}
+	
+	
+	/**
+	 * Checks if the pool is enabled.
+	 *
+	 * @return true, if strings are pooled
+	 */
+	public static boolean isEnabled ()
+	{
+		return enabled;
+	}
+	
+	
+	/**
+	 * Enables or disables the pool. Disabling the pool also drops all pooled
+	 * strings.
+	 *
+	 * @param enabled should strings be pooled?
+	 */
+	public static void setEnabled (boolean enabled)
+	{
+		CellMLStringPool.enabled = enabled;
+		if (!enabled)
+			clear ();
+	}
+	
+	
+	/**
+	 * Gets the maximum length of pooled strings.
+	 *
+	 * @return the maximum length
+	 */
+	public static int getMaxLength ()
+	{
+		return maxLength;
+	}
+	
+	
+	/**
+	 * Sets the maximum length of pooled strings.
+	 *
+	 * @param maxLength the new maximum length
+	 */
+	public static void setMaxLength (int maxLength)
+	{
+		if (maxLength < 0)
+			throw new IllegalArgumentException ("maximum length of pooled strings must not be negative");
+		CellMLStringPool.maxLength = maxLength;
+	}
+	
+	
+	/**
+	 * Gets the number of pooled strings, including those that are about to be
+	 * garbage collected.
+	 *
+	 * @return the number of strings in the pool
+	 */
+	public static int size ()
+	{
+		int size = 0;
+		for (WeakHashMap<String, WeakReference<String>> part : pool)
+			synchronized (part)
+			{
+				size += part.size ();
+			}
+		return size;
+	}
+	
+	
+	/**
+	 * Drops all pooled strings.
+	 */
+	public static void clear ()
+	{
+		for (WeakHashMap<String, WeakReference<String>> part : pool)
+			synchronized (part)
+			{
+				part.clear ();
+			}
+	}
+}
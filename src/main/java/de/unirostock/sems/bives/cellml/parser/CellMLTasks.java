@@ -0,0 +1,111 @@
+/**
+ *
+ */
+package de.unirostock.sems.bives.cellml.parser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+
+/**
+ * The Class CellMLTasks runs independent tasks, such as parsing components or
+ * checking them, either one after another or concurrently on an executor.
+ *
+ * <p>
+ * Tasks may spawn further tasks, e.g. an imported document that itself contains
+ * imports. To avoid exhausting a bounded executor with tasks waiting for their
+ * children, tasks that are submitted from a thread that is already executing a
+ * task are run in that thread.
+ * </p>
+ *
+ * @author Martin Scharm
+ */
+public final class CellMLTasks
+{
+	
+	/** Is the current thread executing a task?. */
+	private static final ThreadLocal<Boolean> inTask = new ThreadLocal<Boolean> ();
+	
+	
+	/**
+	 * Static class, don't instantiate.
+	 */
+	private CellMLTasks ()
+	{
+	}
+	
+	
+	/**
+	 * Runs a list of tasks and returns their results in the order of the tasks.
+	 * If <code>executor</code> is <code>null</code>, if there is only a single task,
+	 * or if the current thread is already running a task, all tasks are executed
+	 * in the current thread. Otherwise they are executed concurrently on the
+	 * executor.
+	 *
+	 * <p>
+	 * If some tasks fail, the exception of the first failing task (in the order of
+	 * the list) is thrown.
+	 * </p>
+	 *
+	 * @param <T> the type of the results
+	 * @param executor the executor, may be null
+	 * @param tasks the tasks to run
+	 * @return the results of the tasks
+	 * @throws Exception the exception thrown by the first failing task
+	 */
+	public static <T> List<T> invokeAll (ExecutorService executor, List<Callable<T>> tasks) throws Exception
+	{
+		List<T> results = new ArrayList<T> (tasks.size ());
+		if (executor == null || tasks.size () < 2 || inTask.get () != null)
+		{
+			for (Callable<T> task : tasks)
+				results.add (task.call ());
+			return results;
+		}
+		
+		List<Future<T>> futures = new ArrayList<Future<T>> (tasks.size ());
+		for (final Callable<T> task : tasks)
+			futures.add (executor.submit (new Callable<T> ()
+			{
+				public T call () throws Exception
+				{
+					inTask.set (Boolean.TRUE);
+					try
+					{
+						return task.call ();
+					}
+					finally
+					{
+						inTask.remove ();
+					}
+				}
+			}));
+		
+		try
+		{
+			for (Future<T> future : futures)
+				results.add (future.get ());
+		}
+		catch (ExecutionException e)
+		{
+			for (Future<T> future : futures)
+				future.cancel (true);
+			Throwable cause = e.getCause ();
+			if (cause instanceof Exception)
+				throw (Exception) cause;
+			throw (Error) cause;
+		}
+		catch (InterruptedException e)
+		{
+			for (Future<T> future : futures)
+				future.cancel (true);
+			Thread.currentThread ().interrupt ();
+			throw e;
+		}
+		return results;
+	}
+}
@@ -24,7 +24,9 @@ extends CellMLEntity
 	
 	
 	/**
-	 * Instantiates a standard CellML unit.
+	 * Instantiates a standard CellML unit. Models share the standard units of
+	 * the {@link CellMLUnitDictionary}, see
+	 * {@link CellMLUnitDictionary#getStandardUnit(String)}.
 	 *
 	 * @param name the name of the unit
 	 * @return the CellML unit
@@ -63,12 +65,14 @@ extends CellMLEntity
 	}
 	
 	/**
-	 * Sets the name of this unit.
+	 * Sets the name of this unit. Standard units cannot be renamed.
 	 *
 	 * @param name the new name
 	 */
 	public void setName (String name)
 	{
+		if (standard_units)
+			throw new UnsupportedOperationException ("standard unit " + this.name + " cannot be renamed");
 		this.name = name;
 		if (getDocumentNode () != null)
 			getDocumentNode ().setAttribute ("name", name);
@@ -82,6 +86,17 @@ extends CellMLEntity
 		return name;
 	}
 	
+	/**
+	 * Gets the canonical form of this unit, that is its dimension in terms of SI
+	 * base units plus a scale factor and an offset.
+	 *
+	 * @return the canonical form, or null if it cannot be determined
+	 */
+	public CellMLUnitDimension getDimension ()
+	{
+		return CellMLUnitDimension.getStandardDimension (name);
+	}
+	
 	/**
 	 * Checks if it is a standard unit.
 	 *
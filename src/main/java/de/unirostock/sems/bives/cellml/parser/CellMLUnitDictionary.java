@@ -3,7 +3,11 @@
  */
 package de.unirostock.sems.bives.cellml.parser;
 
+import java.net.URI;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import de.unirostock.sems.bives.exception.BivesDocumentConsistencyException;
 import de.unirostock.sems.bives.exception.BivesLogicalException;
@@ -22,14 +26,14 @@ public class CellMLUnitDictionary
 	/** The corresponding model. */
 	private CellMLModel model;
 	
-	/** The standard units. */
-	private HashMap<String, CellMLUnit> standardUnits;
-	
 	/** The units defined in the model. */
 	private HashMap<String, CellMLUserUnit> modelUnits;
 	
-	/** The units defined in certain components. */
-	private HashMap<CellMLComponent, HashMap<String, CellMLUserUnit>> componentUnits;
+	/** The units defined in certain components, components may be parsed concurrently. */
+	private Map<CellMLComponent, HashMap<String, CellMLUserUnit>> componentUnits;
+	
+	/** The base dimensions of units defined with <code>base_units="yes"</code>, defining document#[component/]name -&gt; canonical form. */
+	private Map<String, CellMLUnitDimension> baseDimensions;
 	
 	/**
 	 * Instantiates a new CellML unit dictionary.
@@ -40,11 +44,62 @@ public class CellMLUnitDictionary
 	public CellMLUnitDictionary (CellMLModel model) throws BivesLogicalException
 	{
 		this.model = model;
-		standardUnits = new HashMap<String, CellMLUnit> ();
 		modelUnits = new HashMap<String, CellMLUserUnit> ();
-		componentUnits = new HashMap<CellMLComponent, HashMap<String, CellMLUserUnit>> ();
+		componentUnits = new ConcurrentHashMap<CellMLComponent, HashMap<String, CellMLUserUnit>> ();
+		baseDimensions = new HashMap<String, CellMLUnitDimension> ();
+	}
+	
+	/**
+	 * The Class StandardUnits holds the standard units, which are shared by all
+	 * dictionaries. They are created when they are needed for the first time.
+	 */
+	private static class StandardUnits
+	{
+		
+		/** The standard units, name -&gt; unit. */
+		private static final Map<String, CellMLUnit> UNITS = create ();
+		
 		
-		init ();
+		/**
+		 * Creates the standard units.
+		 *
+		 * @return the standard units
+		 */
+		private static Map<String, CellMLUnit> create ()
+		{
+			Map<String, CellMLUnit> units = new HashMap<String, CellMLUnit> ();
+			try
+			{
+				for (String c : STANDARD_UNITS)
+					units.put (c, CellMLUnit.createStandardUnit (c));
+			}
+			catch (BivesLogicalException e)
+			{
+				throw new IllegalStateException ("cannot create standard units", e);
+			}
+			return Collections.unmodifiableMap (units);
+		}
+	}
+	
+	/**
+	 * Gets a standard unit. Standard units are shared by all models.
+	 *
+	 * @param name the name of the unit
+	 * @return the standard unit, or null if there is no standard unit called <code>name</code>
+	 */
+	public static CellMLUnit getStandardUnit (String name)
+	{
+		return StandardUnits.UNITS.get (name);
+	}
+	
+	/**
+	 * Gets all standard units.
+	 *
+	 * @return the standard units, name -&gt; unit
+	 */
+	public static Map<String, CellMLUnit> getStandardUnits ()
+	{
+		return StandardUnits.UNITS;
 	}
 	
 	/**
@@ -56,7 +111,7 @@ public class CellMLUnitDictionary
 	 */
 	public CellMLUnit getUnit (String name, CellMLComponent c)
 	{
-		HashMap<String, CellMLUserUnit> cu = componentUnits.get (c);
+		HashMap<String, CellMLUserUnit> cu = c == null ? null : componentUnits.get (c);
 		if (cu != null)
 		{
 			CellMLUserUnit u = cu.get (name);
@@ -68,11 +123,7 @@ public class CellMLUnitDictionary
 		if (u != null)
 			return u;
 
-		u = standardUnits.get (name);
-		if (u != null)
-			return u;
-		
-		return null;
+		return StandardUnits.UNITS.get (name);
 	}
 	
 	/**
@@ -83,9 +134,41 @@ public class CellMLUnitDictionary
 	 */
 	public HashMap<String, CellMLUserUnit> getComponentUnits (CellMLComponent component)
 	{
+		if (component == null)
+			return null;
 		return componentUnits.get (component);
 	}
 	
+	/**
+	 * Gets the base dimension of a unit that is defined with
+	 * <code>base_units="yes"</code>. Base dimensions are owned by the dictionary
+	 * of the model at the top of the import hierarchy, so the same unit
+	 * imported through different imports of the same document is the same
+	 * dimension, while units of unrelated models are never compatible.
+	 *
+	 * @param document the URI of the defining document, may be null
+	 * @param name the name the unit is defined with, prefixed by its component if defined locally
+	 * @return the canonical form of the base unit
+	 */
+	CellMLUnitDimension getBaseDimension (URI document, String name)
+	{
+		CellMLUnitDictionary owner = model.getConnectionOwner ().getUnits ();
+		if (owner != this)
+			return owner.getBaseDimension (document, name);
+		
+		String id = (document == null ? "" : document.normalize ().toString ()) + "#" + name;
+		synchronized (baseDimensions)
+		{
+			CellMLUnitDimension dim = baseDimensions.get (id);
+			if (dim == null)
+			{
+				dim = CellMLUnitDimension.createBaseDimension (name, baseDimensions.size ());
+				baseDimensions.put (id, dim);
+			}
+			return dim;
+		}
+	}
+	
 	/**
 	 * Gets the units defined globally in the model.
 	 *
@@ -106,7 +189,7 @@ public class CellMLUnitDictionary
 	 */
 	public void addUnit (CellMLComponent c, CellMLUserUnit u, boolean imported) throws BivesDocumentConsistencyException
 	{
-		if (standardUnits.get (u.getName ()) != null)
+		if (StandardUnits.UNITS.containsKey (u.getName ()))
 			throw new BivesDocumentConsistencyException ("not allowed to overwrite unit: " + u.getName ());
 		
 		//if (u.getModel () != model)
@@ -147,14 +230,4 @@ public class CellMLUnitDictionary
 		if (!a.getModel ().getDocument ().getBaseUri ().equals (b.getModel ().getDocument ().getBaseUri ()))
 			throw new BivesDocumentConsistencyException ("unit name is not unique: " + a.getName ());
 	}
-	
-	/**
-	 * Initialises the dictionary.
-	 * @throws BivesLogicalException 
-	 */
-	private void init () throws BivesLogicalException
-	{
-		for (String c : STANDARD_UNITS)
-			standardUnits.put (c, CellMLUnit.createStandardUnit (c));
-	}
 }
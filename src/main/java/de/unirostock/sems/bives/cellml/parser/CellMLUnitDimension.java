@@ -0,0 +1,583 @@
+/**
+ *
+ */
+package de.unirostock.sems.bives.cellml.parser;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * The Class CellMLUnitDimension is the canonical form of a unit: a vector of
+ * exponents over the SI base units plus a scale factor and an offset relative
+ * to the corresponding SI unit. A value <code>v</code> given in the unit
+ * corresponds to <code>factor * v + offset</code> in SI units.
+ *
+ * <p>
+ * Units that are defined with <code>base_units="yes"</code> introduce a new
+ * base dimension of their own. These are owned by the unit dictionary of the
+ * model at the top of an import hierarchy, see
+ * {@link CellMLUnitDictionary#getBaseDimension(URI, String)}, and compared by
+ * identity. Units of different models are compared through their
+ * {@link #getSignature() signature}, which names base dimensions by the
+ * component and unit that define them. Exponents of these dimensions are stored
+ * sparsely, sorted by their name. Exponents are rational numbers, stored
+ * as integer numerators over a common denominator, which is 1 for the vast
+ * majority of units. The factor is rounded to 12 significant digits, so that
+ * equivalent definitions yield equal canonical forms. Instances are immutable,
+ * compatibility and equivalence checks compare a handful of integers.
+ * </p>
+ *
+ * @author Martin Scharm
+ */
+public final class CellMLUnitDimension
+{
+	
+	/** The SI base units, in the order of the exponent vector. */
+	public static final String [] BASE_UNITS = new String [] {"metre", "kilogram", "second", "ampere", "kelvin", "mole", "candela"};
+	
+	/** The largest denominator of rational exponents. */
+	private static final int MAX_DENOMINATOR = 1000;
+	
+	/** The precision of the canonical factor. */
+	private static final MathContext PRECISION = new MathContext (12);
+	
+	/** No user-defined base dimensions. */
+	private static final UserBase [] NO_BASES = new UserBase [0];
+	
+	/** No exponents. */
+	private static final int [] NO_EXPONENTS = new int [0];
+	
+	/** The dimensionless unit. */
+	public static final CellMLUnitDimension DIMENSIONLESS = new CellMLUnitDimension (NO_EXPONENTS, NO_BASES, NO_EXPONENTS, 1, 1, 0);
+	
+	/** The canonical forms of the standard units. */
+	private static final Map<String, CellMLUnitDimension> STANDARD = createStandard ();
+	
+	/** The numerators of the exponents of the SI base units, without trailing zeros. */
+	private final int [] exponents;
+	
+	/** The user-defined base dimensions, sorted. */
+	private final UserBase [] bases;
+	
+	/** The numerators of the exponents of the user-defined base dimensions, none is zero. */
+	private final int [] baseExponents;
+	
+	/** The common denominator of the exponents. */
+	private final int denominator;
+	
+	/** The scale factor. */
+	private final double factor;
+	
+	/** The offset. */
+	private final double offset;
+	
+	/** The hash of the dimension, excluding factor and offset. */
+	private final int dimensionHash;
+	
+	
+	/**
+	 * The Class UserBase identifies a base dimension that is introduced by a unit
+	 * with <code>base_units="yes"</code>.
+	 */
+	private static final class UserBase
+	implements Comparable<UserBase>
+	{
+		
+		/** The name, the unit's name prefixed by its component if defined locally. */
+		private final String name;
+		
+		/** The index in the owning dictionary, orders bases of equal names. */
+		private final int index;
+		
+		
+		/**
+		 * Instantiates a new user-defined base dimension.
+		 *
+		 * @param name the name
+		 * @param index the index in the owning dictionary
+		 */
+		public UserBase (String name, int index)
+		{
+			this.name = name;
+			this.index = index;
+		}
+		
+		
+		/* (non-Javadoc)
+		 * @see java.lang.Comparable#compareTo(java.lang.Object)
+		 */
+		@Override
+		public int compareTo (UserBase other)
+		{
+			int c = name.compareTo (other.name);
+			return c != 0 ? c : index - other.index;
+		}
+	}
+	
+	
+	/**
+	 * Instantiates a new canonical form. Normalises the exponents and rounds the
+	 * factor.
+	 *
+	 * @param exponents the numerators of the exponents of the SI base units
+	 * @param bases the user-defined base dimensions, sorted
+	 * @param baseExponents the numerators of the exponents of the user-defined base dimensions
+	 * @param denominator the common denominator, positive
+	 * @param factor the scale factor
+	 * @param offset the offset
+	 */
+	private CellMLUnitDimension (int [] exponents, UserBase [] bases, int [] baseExponents, int denominator, double factor, double offset)
+	{
+		int gcd = denominator;
+		int length = 0;
+		for (int i = 0; i < exponents.length; i++)
+			if (exponents[i] != 0)
+			{
+				gcd = gcd (gcd, Math.abs (exponents[i]));
+				length = i + 1;
+			}
+		int nonZero = 0;
+		for (int i = 0; i < baseExponents.length; i++)
+			if (baseExponents[i] != 0)
+			{
+				gcd = gcd (gcd, Math.abs (baseExponents[i]));
+				nonZero++;
+			}
+		this.exponents = length == 0 ? NO_EXPONENTS : new int [length];
+		for (int i = 0; i < length; i++)
+			this.exponents[i] = exponents[i] / gcd;
+		this.bases = nonZero == 0 ? NO_BASES : new UserBase [nonZero];
+		this.baseExponents = nonZero == 0 ? NO_EXPONENTS : new int [nonZero];
+		for (int i = 0, j = 0; i < baseExponents.length; i++)
+			if (baseExponents[i] != 0)
+			{
+				this.bases[j] = bases[i];
+				this.baseExponents[j++] = baseExponents[i] / gcd;
+			}
+		this.denominator = denominator / gcd;
+		this.factor = round (factor);
+		this.offset = round (offset);
+		dimensionHash = 31 * (31 * Arrays.hashCode (this.exponents) + Arrays.hashCode (this.bases) * 31 + Arrays.hashCode (this.baseExponents)) + this.denominator;
+	}
+	
+	
+	/**
+	 * Computes the greatest common divisor.
+	 *
+	 * @param a the first number
+	 * @param b the second number
+	 * @return the greatest common divisor
+	 */
+	private static int gcd (int a, int b)
+	{
+		while (b != 0)
+		{
+			int t = a % b;
+			a = b;
+			b = t;
+		}
+		return a;
+	}
+	
+	
+	/**
+	 * Rounds a number to the canonical precision.
+	 *
+	 * @param d the number
+	 * @return the rounded number
+	 */
+	private static double round (double d)
+	{
+		if (d == 0 || Double.isNaN (d) || Double.isInfinite (d))
+			return d;
+		return new BigDecimal (d).round (PRECISION).doubleValue ();
+	}
+	
+	
+	/**
+	 * Creates the canonical forms of the standard units.
+	 *
+	 * @return the standard units, name -&gt; canonical form
+	 */
+	private static Map<String, CellMLUnitDimension> createStandard ()
+	{
+		Map<String, CellMLUnitDimension> std = new HashMap<String, CellMLUnitDimension> ();
+		// factor, exponents of metre, kilogram, second, ampere, kelvin, mole, candela
+		std.put ("metre", si (1, 1, 0, 0, 0, 0, 0, 0));
+		std.put ("meter", std.get ("metre"));
+		std.put ("kilogram", si (1, 0, 1, 0, 0, 0, 0, 0));
+		std.put ("second", si (1, 0, 0, 1, 0, 0, 0, 0));
+		std.put ("ampere", si (1, 0, 0, 0, 1, 0, 0, 0));
+		std.put ("kelvin", si (1, 0, 0, 0, 0, 1, 0, 0));
+		std.put ("mole", si (1, 0, 0, 0, 0, 0, 1, 0));
+		std.put ("candela", si (1, 0, 0, 0, 0, 0, 0, 1));
+		std.put ("gram", si (1e-3, 0, 1, 0, 0, 0, 0, 0));
+		std.put ("liter", si (1e-3, 3, 0, 0, 0, 0, 0, 0));
+		std.put ("litre", std.get ("liter"));
+		std.put ("celsius", new CellMLUnitDimension (new int [] {0, 0, 0, 0, 1}, NO_BASES, NO_EXPONENTS, 1, 1, 273.15));
+		std.put ("dimensionless", DIMENSIONLESS);
+		std.put ("radian", DIMENSIONLESS);
+		std.put ("steradian", DIMENSIONLESS);
+		std.put ("becquerel", si (1, 0, 0, -1, 0, 0, 0, 0));
+		std.put ("hertz", si (1, 0, 0, -1, 0, 0, 0, 0));
+		std.put ("coulomb", si (1, 0, 0, 1, 1, 0, 0, 0));
+		std.put ("farad", si (1, -2, -1, 4, 2, 0, 0, 0));
+		std.put ("gray", si (1, 2, 0, -2, 0, 0, 0, 0));
+		std.put ("sievert", si (1, 2, 0, -2, 0, 0, 0, 0));
+		std.put ("henry", si (1, 2, 1, -2, -2, 0, 0, 0));
+		std.put ("joule", si (1, 2, 1, -2, 0, 0, 0, 0));
+		std.put ("katal", si (1, 0, 0, -1, 0, 0, 1, 0));
+		std.put ("lumen", si (1, 0, 0, 0, 0, 0, 0, 1));
+		std.put ("lux", si (1, -2, 0, 0, 0, 0, 0, 1));
+		std.put ("newton", si (1, 1, 1, -2, 0, 0, 0, 0));
+		std.put ("ohm", si (1, 2, 1, -3, -2, 0, 0, 0));
+		std.put ("pascal", si (1, -1, 1, -2, 0, 0, 0, 0));
+		std.put ("siemens", si (1, -2, -1, 3, 2, 0, 0, 0));
+		std.put ("tesla", si (1, 0, 1, -2, -1, 0, 0, 0));
+		std.put ("volt", si (1, 2, 1, -3, -1, 0, 0, 0));
+		std.put ("watt", si (1, 2, 1, -3, 0, 0, 0, 0));
+		std.put ("weber", si (1, 2, 1, -2, -1, 0, 0, 0));
+		return std;
+	}
+	
+	
+	/**
+	 * Creates the canonical form of a derived SI unit.
+	 *
+	 * @param factor the scale factor
+	 * @param exponents the integer exponents of metre, kilogram, second, ampere, kelvin, mole, and candela
+	 * @return the canonical form
+	 */
+	private static CellMLUnitDimension si (double factor, int... exponents)
+	{
+		return new CellMLUnitDimension (exponents, NO_BASES, NO_EXPONENTS, 1, factor, 0);
+	}
+	
+	
+	/**
+	 * Gets the canonical form of a standard unit.
+	 *
+	 * @param name the name of the standard unit
+	 * @return the canonical form, or null if there is no such standard unit
+	 */
+	public static CellMLUnitDimension getStandardDimension (String name)
+	{
+		return STANDARD.get (name);
+	}
+	
+	
+	/**
+	 * Creates a new base dimension for a unit that is defined with
+	 * <code>base_units="yes"</code>. It is compatible to no other base
+	 * dimension, use {@link CellMLUnitDictionary#getBaseDimension(URI, String)}
+	 * to share it among the models of an import hierarchy.
+	 *
+	 * @param name the name of the unit, prefixed by its component if defined locally
+	 * @param index the index in the owning dictionary
+	 * @return the canonical form of the base unit
+	 */
+	static CellMLUnitDimension createBaseDimension (String name, int index)
+	{
+		return new CellMLUnitDimension (NO_EXPONENTS, new UserBase [] {new UserBase (name, index)}, new int [] {1}, 1, 1, 0);
+	}
+	
+	
+	/**
+	 * Computes the canonical form of a unit that is defined by a list of
+	 * (multiplier * (10^prefix * unit)^exponent) terms. An offset is only taken
+	 * into account if the unit consists of a single term with exponent 1,
+	 * otherwise offsets are meaningless.
+	 *
+	 * @param units the canonical forms of the referenced units
+	 * @param multipliers the multipliers
+	 * @param prefixes the prefixes (powers of ten)
+	 * @param exponents the exponents
+	 * @param offsets the offsets
+	 * @return the canonical form of the product
+	 */
+	static CellMLUnitDimension product (CellMLUnitDimension [] units, double [] multipliers, int [] prefixes, double [] exponents, double [] offsets)
+	{
+		// the exponent of term i is numerator[i] / denominator[i], mostly 1 / 1
+		int [] numerator = new int [units.length];
+		int [] denominator = new int [units.length];
+		int common = 1;
+		int dimensions = 0;
+		boolean userBases = false;
+		for (int i = 0; i < units.length; i++)
+		{
+			int d = 1;
+			while (d < MAX_DENOMINATOR && Math.abs (exponents[i] * d - Math.rint (exponents[i] * d)) > 1e-6 * d)
+				d++;
+			numerator[i] = (int) Math.rint (exponents[i] * d);
+			denominator[i] = d * units[i].denominator;
+			common = common / gcd (common, denominator[i]) * denominator[i];
+			dimensions = Math.max (dimensions, units[i].exponents.length);
+			userBases |= units[i].bases.length > 0;
+		}
+		
+		int [] result = new int [dimensions];
+		// user-defined base dimensions are rare, only these get a sorted map
+		TreeMap<UserBase, Integer> baseResult = userBases ? new TreeMap<UserBase, Integer> () : null;
+		double factor = 1;
+		for (int i = 0; i < units.length; i++)
+		{
+			CellMLUnitDimension u = units[i];
+			int scale = common / denominator[i];
+			for (int k = 0; k < u.exponents.length; k++)
+				result[k] += numerator[i] * u.exponents[k] * scale;
+			for (int k = 0; k < u.bases.length; k++)
+			{
+				Integer current = baseResult.get (u.bases[k]);
+				baseResult.put (u.bases[k], (current == null ? 0 : current) + numerator[i] * u.baseExponents[k] * scale);
+			}
+			factor *= multipliers[i] * Math.pow (Math.pow (10, prefixes[i]) * u.factor, exponents[i]);
+		}
+		
+		UserBase [] bases = NO_BASES;
+		int [] baseExponents = NO_EXPONENTS;
+		if (baseResult != null)
+		{
+			bases = baseResult.keySet ().toArray (new UserBase [baseResult.size ()]);
+			baseExponents = new int [bases.length];
+			for (int k = 0; k < bases.length; k++)
+				baseExponents[k] = baseResult.get (bases[k]);
+		}
+		
+		double offset = 0;
+		if (units.length == 1 && exponents[0] == 1)
+			offset = units[0].factor * offsets[0] + units[0].offset;
+		return new CellMLUnitDimension (result, bases, baseExponents, common, factor, offset);
+	}
+	
+	
+	/**
+	 * Multiplies this unit with another unit.
+	 *
+	 * @param other the other unit
+	 * @return the canonical form of the product
+	 */
+	public CellMLUnitDimension multiply (CellMLUnitDimension other)
+	{
+		return product (new CellMLUnitDimension [] {this, other}, new double [] {1, 1}, new int [] {0, 0}, new double [] {1, 1}, new double [] {0, 0});
+	}
+	
+	
+	/**
+	 * Divides this unit by another unit.
+	 *
+	 * @param other the other unit
+	 * @return the canonical form of the quotient
+	 */
+	public CellMLUnitDimension divide (CellMLUnitDimension other)
+	{
+		return product (new CellMLUnitDimension [] {this, other}, new double [] {1, 1}, new int [] {0, 0}, new double [] {1, -1}, new double [] {0, 0});
+	}
+	
+	
+	/**
+	 * Raises this unit to a power.
+	 *
+	 * @param exponent the exponent
+	 * @return the canonical form of the power
+	 */
+	public CellMLUnitDimension power (double exponent)
+	{
+		return product (new CellMLUnitDimension [] {this}, new double [] {1}, new int [] {0}, new double [] {exponent}, new double [] {0});
+	}
+	
+	
+	/**
+	 * Gets the exponent of an SI base dimension.
+	 *
+	 * @param dimension the index of the SI base dimension, see {@link #BASE_UNITS}
+	 * @return the exponent
+	 */
+	public double getExponent (int dimension)
+	{
+		if (dimension < 0 || dimension >= exponents.length)
+			return 0;
+		return (double) exponents[dimension] / denominator;
+	}
+	
+	
+	/**
+	 * Gets the exponent of an SI base unit.
+	 *
+	 * @param baseUnit the name of the SI base unit, e.g. <code>second</code>
+	 * @return the exponent
+	 */
+	public double getExponent (String baseUnit)
+	{
+		for (int i = 0; i < BASE_UNITS.length; i++)
+			if (BASE_UNITS[i].equals (baseUnit))
+				return getExponent (i);
+		throw new IllegalArgumentException (baseUnit + " is not an SI base unit");
+	}
+	
+	
+	/**
+	 * Gets the scale factor relative to the SI unit.
+	 *
+	 * @return the factor
+	 */
+	public double getFactor ()
+	{
+		return factor;
+	}
+	
+	
+	/**
+	 * Gets the offset relative to the SI unit.
+	 *
+	 * @return the offset
+	 */
+	public double getOffset ()
+	{
+		return offset;
+	}
+	
+	
+	/**
+	 * Checks if the unit is dimensionless.
+	 *
+	 * @return true, if all exponents are zero
+	 */
+	public boolean isDimensionless ()
+	{
+		return exponents.length == 0 && bases.length == 0;
+	}
+	
+	
+	/**
+	 * Checks if values of this unit can be converted into values of another
+	 * unit, that is both units have the same dimension.
+	 *
+	 * @param other the other unit
+	 * @return true, if the units are compatible
+	 */
+	public boolean isCompatible (CellMLUnitDimension other)
+	{
+		if (this == other)
+			return true;
+		return other != null && dimensionHash == other.dimensionHash && denominator == other.denominator && Arrays.equals (exponents, other.exponents)
+			&& Arrays.equals (baseExponents, other.baseExponents) && Arrays.equals (bases, other.bases);
+	}
+	
+	
+	/**
+	 * Checks if this unit is equivalent to another unit, that is both units
+	 * have the same dimension, factor, and offset.
+	 *
+	 * @param other the other unit
+	 * @return true, if the units are equivalent
+	 */
+	public boolean isEquivalent (CellMLUnitDimension other)
+	{
+		return isCompatible (other) && factor == other.factor && offset == other.offset;
+	}
+	
+	
+	/**
+	 * Gets the factor to convert values given in this unit into values of
+	 * another compatible unit, ignoring offsets.
+	 *
+	 * @param other the target unit
+	 * @return the conversion factor
+	 * @throws IllegalArgumentException if the units are not compatible
+	 */
+	public double getConversionFactor (CellMLUnitDimension other)
+	{
+		if (!isCompatible (other))
+			throw new IllegalArgumentException ("cannot convert " + this + " into " + other);
+		return factor / other.factor;
+	}
+	
+	
+	/* (non-Javadoc)
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals (Object obj)
+	{
+		return obj instanceof CellMLUnitDimension && isEquivalent ((CellMLUnitDimension) obj);
+	}
+	
+	
+	/* (non-Javadoc)
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode ()
+	{
+		long bits = Double.doubleToLongBits (factor) * 31 + Double.doubleToLongBits (offset);
+		return dimensionHash * 31 + (int) (bits ^ (bits >>> 32));
+	}
+	
+	
+	/**
+	 * Gets a textual representation of this unit that doesn't depend on the
+	 * model it was computed for. Equivalent units have equal signatures. Units
+	 * of different models, e.g. two versions of a document, have equal
+	 * signatures if they are equivalent and their user-defined base dimensions
+	 * have the same names.
+	 *
+	 * @return the signature
+	 */
+	public String getSignature ()
+	{
+		StringBuilder sb = new StringBuilder ();
+		sb.append (factor).append (" [");
+		for (int i = 0; i < exponents.length; i++)
+			if (exponents[i] != 0)
+			{
+				if (sb.charAt (sb.length () - 1) != '[')
+					sb.append (" ");
+				appendExponent (sb, BASE_UNITS[i], exponents[i]);
+			}
+		for (int i = 0; i < bases.length; i++)
+		{
+			if (sb.charAt (sb.length () - 1) != '[')
+				sb.append (" ");
+			appendExponent (sb, bases[i].name, baseExponents[i]);
+		}
+		sb.append ("]");
+		if (offset != 0)
+			sb.append (" + ").append (offset);
+		return sb.toString ();
+	}
+	
+	
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString ()
+	{
+		return getSignature ();
+	}
+	
+	
+	/**
+	 * Appends a base dimension and its exponent to a textual representation.
+	 *
+	 * @param sb the textual representation
+	 * @param base the name of the base dimension
+	 * @param numerator the numerator of the exponent
+	 */
+	private void appendExponent (StringBuilder sb, String base, int numerator)
+	{
+		sb.append (base);
+		if (numerator != denominator)
+		{
+			sb.append ("^").append (numerator);
+			if (denominator != 1)
+				sb.append ("/").append (denominator);
+		}
+	}
+}
@@ -0,0 +1,165 @@
+/**
+ *
+ */
+package de.unirostock.sems.bives.cellml.parser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import de.unirostock.sems.bives.cellml.exception.BivesCellMLParseException;
+import de.unirostock.sems.bives.exception.BivesDocumentConsistencyException;
+import de.unirostock.sems.bives.exception.BivesLogicalException;
+import de.unirostock.sems.xmlutils.ds.DocumentNode;
+import de.unirostock.sems.xmlutils.ds.TreeNode;
+
+
+/**
+ * The Class CellMLUnitResolver builds the units defined in a model or in a
+ * component in the order of their dependencies.
+ *
+ * <p>
+ * Units may be defined in any order, so a unit might be based on a unit that is
+ * defined later in the document. The resolver scans the <code>units</code>
+ * attributes of all <code>unit</code> elements, sorts the definitions
+ * topologically, and builds every {@link CellMLUserUnit} exactly once. Units
+ * that are not defined and cyclic definitions are reported precisely before any
+ * unit is built.
+ * </p>
+ *
+ * @author Martin Scharm
+ */
+final class CellMLUnitResolver
+{
+	
+	/**
+	 * Static class, don't instantiate.
+	 */
+	private CellMLUnitResolver ()
+	{
+	}
+	
+	/**
+	 * Builds the units defined by some <code>units</code> elements and adds them
+	 * to the dictionary.
+	 *
+	 * @param model the model that defines the units
+	 * @param dict the unit dictionary
+	 * @param component the component that defines the units, or null for units defined globally
+	 * @param kids the <code>units</code> elements
+	 * @throws BivesDocumentConsistencyException if units are undefined, cyclic or not unique
+	 * @throws BivesCellMLParseException the bives cell ml parse exception
+	 * @throws BivesLogicalException the bives logical exception
+	 */
+	static void resolve (CellMLModel model, CellMLUnitDictionary dict, CellMLComponent component, List<TreeNode> kids) throws BivesDocumentConsistencyException, BivesCellMLParseException, BivesLogicalException
+	{
+		// the definitions in document order
+		List<DocumentNode> defs = new ArrayList<DocumentNode> ();
+		Map<String, Integer> local = new HashMap<String, Integer> ();
+		for (TreeNode kid : kids)
+		{
+			if (kid.getType () != TreeNode.DOC_NODE)
+				continue;
+			DocumentNode def = (DocumentNode) kid;
+			String name = def.getAttributeValue ("name");
+			if (name != null && !local.containsKey (name))
+				local.put (name, defs.size ());
+			defs.add (def);
+		}
+		if (defs.isEmpty ())
+			return;
+		
+		// dependencies between the local definitions
+		int n = defs.size ();
+		int [] pending = new int [n];
+		List<List<Integer>> dependents = new ArrayList<List<Integer>> (n);
+		for (int i = 0; i < n; i++)
+			dependents.add (new ArrayList<Integer> ());
+		List<String> missing = new ArrayList<String> ();
+		for (int i = 0; i < n; i++)
+			for (TreeNode unit : defs.get (i).getChildrenWithTag ("unit"))
+			{
+				String ref = ((DocumentNode) unit).getAttributeValue ("units");
+				Integer dep = ref == null ? null : local.get (ref);
+				if (dep != null)
+				{
+					pending[i]++;
+					dependents.get (dep).add (i);
+				}
+				else if (ref == null || dict.getUnit (ref, component) == null)
+					missing.add ("units " + ref + " (used by " + defs.get (i).getAttributeValue ("name") + ")");
+			}
+		if (!missing.isEmpty ())
+			throw new BivesDocumentConsistencyException ("undefined units" + scope (component) + ": " + missing);
+		
+		// kahn's algorithm, preferring document order
+		TreeSet<Integer> ready = new TreeSet<Integer> ();
+		for (int i = 0; i < n; i++)
+			if (pending[i] == 0)
+				ready.add (i);
+		List<Integer> order = new ArrayList<Integer> (n);
+		while (!ready.isEmpty ())
+		{
+			int i = ready.pollFirst ();
+			order.add (i);
+			for (int dependent : dependents.get (i))
+				if (--pending[dependent] == 0)
+					ready.add (dependent);
+		}
+		if (order.size () < n)
+			throw new BivesDocumentConsistencyException ("cyclic unit definition" + scope (component) + ": " + cycle (defs, local, pending));
+		
+		for (int i : order)
+			dict.addUnit (component, new CellMLUserUnit (model, dict, component, defs.get (i)), false);
+	}
+	
+	/**
+	 * Describes the scope of some units for error messages.
+	 *
+	 * @param component the component defining the units, or null
+	 * @return the description
+	 */
+	private static String scope (CellMLComponent component)
+	{
+		return component == null ? "" : " in component " + component.getName ();
+	}
+	
+	/**
+	 * Finds a cycle among the definitions that could not be sorted.
+	 *
+	 * @param defs the definitions
+	 * @param local the local definitions, name -> index
+	 * @param pending the number of unresolved dependencies for every definition
+	 * @return a description of the cycle, e.g. <code>a -&gt; b -&gt; a</code>
+	 */
+	private static String cycle (List<DocumentNode> defs, Map<String, Integer> local, int [] pending)
+	{
+		int start = 0;
+		while (pending[start] == 0)
+			start++;
+		
+		// every unsorted definition depends on another unsorted one, so we'll run into a cycle
+		List<Integer> path = new ArrayList<Integer> ();
+		int current = start;
+		while (!path.contains (current))
+		{
+			path.add (current);
+			for (TreeNode unit : defs.get (current).getChildrenWithTag ("unit"))
+			{
+				Integer dep = local.get (((DocumentNode) unit).getAttributeValue ("units"));
+				if (dep != null && pending[dep] > 0)
+				{
+					current = dep;
+					break;
+				}
+			}
+		}
+		
+		StringBuilder sb = new StringBuilder ();
+		for (int i = path.indexOf (current); i < path.size (); i++)
+			sb.append (defs.get (path.get (i)).getAttributeValue ("name")).append (" -> ");
+		return sb.append (defs.get (current).getAttributeValue ("name")).toString ();
+	}
+}
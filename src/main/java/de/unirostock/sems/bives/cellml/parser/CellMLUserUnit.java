@@ -3,6 +3,7 @@
  */
 package de.unirostock.sems.bives.cellml.parser;
 
+import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -46,6 +47,15 @@ public class CellMLUserUnit
 	/** The base quantities this unit uses to define itself. */
 	private List<BaseQuantity> baseQuantities;
 	
+	/** The canonical form, computed on first request. */
+	private volatile CellMLUnitDimension dimension;
+	
+	/** The document defining this unit, if it is a base unit. */
+	private URI baseDocument;
+	
+	/** The name this unit is defined with, prefixed by its component, if it is a base unit. */
+	private String baseName;
+	
 	/**
 	 * The Class BaseQuantity.
 	 */
@@ -179,16 +189,19 @@ public class CellMLUserUnit
 	 */
 	public CellMLUserUnit (CellMLModel model, CellMLUnitDictionary dict, CellMLComponent component, DocumentNode node) throws BivesCellMLParseException, BivesDocumentConsistencyException, BivesLogicalException
 	{
-		super (model, node.getAttributeValue ("name"), node);
+		super (model, CellMLStringPool.intern (node.getAttributeValue ("name")), node);
 		//System.out.println ("should be mapped: " + node.getXPath () + model);
 		
 		this.dict = dict;
 		this.component = component;
 		
-		String base = node.getAttributeValue ("name");
+		String base = node.getAttributeValue ("base_units");
 		if (base != null && base.equals ("yes"))
 		{
 			base_units = true;
+			// identified by the names it is defined with, imports may rename it later on
+			baseDocument = model.getDocument () == null ? null : model.getDocument ().getBaseUri ();
+			baseName = component == null ? getName () : component.getName () + "/" + getName ();
 			return;
 		}
 		
@@ -279,6 +292,74 @@ public class CellMLUserUnit
 		return ret.toString ();
 	}
 
+	/**
+	 * Gets the canonical form of this unit. It is computed from the base
+	 * quantities on first request and cached afterwards, units that are defined
+	 * with <code>base_units="yes"</code> are a base dimension of their own, see
+	 * {@link CellMLUnitDictionary#getBaseDimension(URI, String)}.
+	 *
+	 * @return the canonical form, or null if a base quantity refers to a unit without canonical form
+	 */
+	@Override
+	public CellMLUnitDimension getDimension ()
+	{
+		CellMLUnitDimension dim = dimension;
+		if (dim != null)
+			return dim;
+		synchronized (this)
+		{
+			if (dimension != null)
+				return dimension;
+			
+			if (base_units)
+				dim = dict.getBaseDimension (baseDocument, baseName);
+			else if (baseQuantities == null)
+				return null;
+			else
+			{
+				int n = baseQuantities.size ();
+				CellMLUnitDimension [] units = new CellMLUnitDimension [n];
+				double [] multipliers = new double [n];
+				int [] prefixes = new int [n];
+				double [] exponents = new double [n];
+				double [] offsets = new double [n];
+				for (int i = 0; i < n; i++)
+				{
+					BaseQuantity bq = baseQuantities.get (i);
+					units[i] = bq.unit.getDimension ();
+					if (units[i] == null)
+					{
+						LOGGER.warn ("cannot determine dimension of unit ", getName (), ": no dimension for ", bq.unit.getName ());
+						return null;
+					}
+					multipliers[i] = bq.multiplier;
+					prefixes[i] = bq.prefix;
+					exponents[i] = bq.exponent;
+					offsets[i] = bq.offset;
+				}
+				dim = CellMLUnitDimension.product (units, multipliers, prefixes, exponents, offsets);
+			}
+			dimension = dim;
+			return dim;
+		}
+	}
+	
+	/**
+	 * Gets the user-defined units this unit is directly defined by.
+	 *
+	 * @return the referenced units, without duplicates
+	 */
+	public List<CellMLUserUnit> getReferencedUnits ()
+	{
+		List<CellMLUserUnit> units = new ArrayList<CellMLUserUnit> ();
+		if (base_units || baseQuantities == null)
+			return units;
+		for (BaseQuantity bq : baseQuantities)
+			if (!bq.unit.isStandardUnits () && !units.contains (bq.unit))
+				units.add ((CellMLUserUnit) bq.unit);
+		return units;
+	}
+	
 	/**
 	 * Add the units this unit depends on to a global list of dependencies.
 	 *
@@ -331,6 +412,9 @@ public class CellMLUserUnit
 		{
 			me.addValue (MarkupDocument.delete ("old definition: " + oldDef));
 			me.addValue (MarkupDocument.insert ("new definition: " + newDef));
+			CellMLUnitDimension dimA = a.getDimension ();
+			if (dimA != null && dimA.equals (b.getDimension ()))
+				me.addValue ("definitions are equivalent");
 		}
 		
 		BivesTools.genAttributeMarkupStats (a.getDocumentNode (), b.getDocumentNode (), me);
@@ -373,14 +457,15 @@ public class CellMLUserUnit
 	public void renameUnit (String original, String newName) throws BivesLogicalException
 	{
 		boolean renamed = false;
-		for (BaseQuantity bq : baseQuantities)
-		{
-			if (!bq.unit.isStandardUnits () && bq.unit.getName ().equals (original))
+		if (baseQuantities != null)
+			for (BaseQuantity bq : baseQuantities)
 			{
-				bq.renameUnit (original, newName);
-				renamed = true;
+				if (!bq.unit.isStandardUnits () && bq.unit.getName ().equals (original))
+				{
+					bq.renameUnit (original, newName);
+					renamed = true;
+				}
 			}
-		}
 		if (!renamed)
 			throw new BivesLogicalException ("cannot rename unit from " + original + " to " + newName + " (we don't know this unit)");
 	}
@@ -3,9 +3,11 @@
  */
 package de.unirostock.sems.bives.cellml.parser;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
 
 import org.jdom2.Attribute;
 
@@ -39,6 +41,9 @@ implements DiffReporter
 	/** The flag INTERFACE_OUT = outgoing interface. */
 	public static final int INTERFACE_OUT = 1;
 	
+	/** The shared array of a variable without further connections. */
+	private static final CellMLVariable [] NO_CONNECTIONS = new CellMLVariable [0];
+	
 	/** The component. */
 	private CellMLComponent component;
 	
@@ -49,20 +54,124 @@ implements DiffReporter
 	private CellMLUnit unit;
 	
 	/** This attribute provides a convenient means for specifying the value of a scalar real variable when all independent variables in the model have a value of 0.0. Independent variables are those whose values do not depend on others.*/
-	private Double d_initial_value;
+	private double d_initial_value;
+	
+	/** Is d_initial_value specified?. */
+	private boolean has_initial_value;
+	
+	/** The variable providing the initial value. */
 	private CellMLVariable v_initial_value;
 	
+	/** The name of the variable providing the initial value, until it is resolved. */
+	private String initialValueRef;
+	
 	/**This attribute specifies the interface exposed to components in the parent and sibling sets (see below). The public interface must have a value of "in", "out", or "none". The absence of a public_interface attribute implies a default value of "none".*/
 	private int public_interface;
 	
-	/** The public_interface_connection. */
-	private List<CellMLVariable> public_interface_connection;
+	/** The connection of the public interface if it is 'in', or its first connection otherwise. */
+	private CellMLVariable public_interface_connection;
+	
+	/** The further connections of an outgoing public interface, exactly sized. */
+	private CellMLVariable [] public_interface_fanout = NO_CONNECTIONS;
 	
 	/** This attribute specifies the interface exposed to components in the encapsulated set (see below). The private interface must have a value of "in", "out", or "none". The absence of a private_interface attribute implies a default value of "none".*/
 	private int private_interface;
 	
-	/** The private_interface_connection. */
-	private List<CellMLVariable> private_interface_connection;
+	/** The connection of the private interface if it is 'in', or its first connection otherwise. */
+	private CellMLVariable private_interface_connection;
+	
+	/** The further connections of an outgoing private interface, exactly sized. */
+	private CellMLVariable [] private_interface_fanout = NO_CONNECTIONS;
+	
+	
+	/**
+	 * The Class Connections is a view on the connections of one of the
+	 * interfaces. Most variables have at most one connection per interface, so
+	 * the first connection is stored in a single field of the variable and only
+	 * the fan-out of outgoing interfaces ends up in an array.
+	 */
+	private class Connections
+		extends AbstractList<CellMLVariable>
+		implements RandomAccess
+	{
+		
+		/** Is this a view on the public interface? */
+		private final boolean pub;
+		
+		
+		/**
+		 * Instantiates a new view.
+		 *
+		 * @param pub is this a view on the public interface?
+		 */
+		public Connections (boolean pub)
+		{
+			this.pub = pub;
+		}
+		
+		
+		/* (non-Javadoc)
+		 * @see java.util.AbstractList#get(int)
+		 */
+		@Override
+		public CellMLVariable get (int index)
+		{
+			CellMLVariable first = pub ? public_interface_connection : private_interface_connection;
+			CellMLVariable [] fanout = pub ? public_interface_fanout : private_interface_fanout;
+			if (index < 0 || first == null || index > fanout.length)
+				throw new IndexOutOfBoundsException ("index: " + index + ", size: " + size ());
+			return index == 0 ? first : fanout[index - 1];
+		}
+		
+		
+		/* (non-Javadoc)
+		 * @see java.util.AbstractCollection#size()
+		 */
+		@Override
+		public int size ()
+		{
+			if (pub)
+				return public_interface_connection == null ? 0 : 1 + public_interface_fanout.length;
+			return private_interface_connection == null ? 0 : 1 + private_interface_fanout.length;
+		}
+		
+		
+		/* (non-Javadoc)
+		 * @see java.util.AbstractList#remove(int)
+		 */
+		@Override
+		public CellMLVariable remove (int index)
+		{
+			CellMLVariable removed = get (index);
+			CellMLVariable first = pub ? public_interface_connection : private_interface_connection;
+			CellMLVariable [] fanout = pub ? public_interface_fanout : private_interface_fanout;
+			if (index == 0)
+			{
+				first = fanout.length > 0 ? fanout[0] : null;
+				index = 1;
+			}
+			if (fanout.length > 0)
+			{
+				CellMLVariable [] shrunk = fanout.length == 1 ? NO_CONNECTIONS : new CellMLVariable [fanout.length - 1];
+				System.arraycopy (fanout, 0, shrunk, 0, index - 1);
+				System.arraycopy (fanout, index, shrunk, index - 1, fanout.length - index);
+				fanout = shrunk;
+			}
+			if (pub)
+			{
+				public_interface_connection = first;
+				public_interface_fanout = fanout;
+			}
+			else
+			{
+				private_interface_connection = first;
+				private_interface_fanout = fanout;
+			}
+			modCount++;
+			connectionsChanged ();
+			return removed;
+		}
+	}
 	
 	/**
 	 * Instantiates a new CellML variable.
@@ -77,7 +186,7 @@ implements DiffReporter
 	{
 		super (node, model);
 		this.component = component;
-		name = node.getAttributeValue ("name");
+		name = CellMLStringPool.intern (node.getAttributeValue ("name"));
 		if (name == null || name.length () < 1)
 			throw new BivesCellMLParseException ("variable doesn't have a name. (component: "+component.getName ()+")");
 		unit = component.getUnit (node.getAttributeValue ("units"));
@@ -90,9 +199,6 @@ implements DiffReporter
 		if (public_interface == private_interface && public_interface == INTERFACE_IN)
 			throw new BivesLogicalException ("variable " + name + " defines public and private interface to be 'in'. (component: "+component.getName ()+")");
 		
-		private_interface_connection = new ArrayList<CellMLVariable> ();
-		public_interface_connection = new ArrayList<CellMLVariable> ();
-		
 		// An initial_value attribute must not be defined on a <variable> element with a public_interface or private_interface attribute with a value of "in". [ These variables receive their value from variables belonging to another component. ]
 		
 		String attr = node.getAttributeValue ("initial_value");
@@ -103,23 +209,40 @@ implements DiffReporter
 			try
 			{
 				d_initial_value = Double.parseDouble (attr);
+				has_initial_value = true;
 			}
 			catch (NumberFormatException ex)
 			{
 				// If present, the value of the initial_value attribute may be a real number or the value of the name attribute of a <variable> element declared in the current component.
-				try
-				{
-					v_initial_value = component.getVariable (attr);
-				}
-				catch (BivesDocumentConsistencyException e)
-				{
-					throw new BivesCellMLParseException ("cannot understand an initial concentration of '" + attr + "' in variable " + name + " (component: "+component.getName ()+")");
-				}
+				// that variable might be declared later, see resolveInitialValue
+				initialValueRef = attr;
 			}
 		}
 		
 	}
 	
+	/**
+	 * Resolves an initial value that is specified by another variable of the
+	 * component. Needs to be called once all variables of the component are known.
+	 *
+	 * @return a description of the problem, or null if the initial value is fine
+	 */
+	String resolveInitialValue ()
+	{
+		if (initialValueRef == null)
+			return null;
+		try
+		{
+			v_initial_value = component.getVariable (initialValueRef);
+			initialValueRef = null;
+			return null;
+		}
+		catch (BivesDocumentConsistencyException e)
+		{
+			return "cannot understand an initial concentration of '" + initialValueRef + "' in variable " + name;
+		}
+	}
+	
 	/**
 	 * Gets the component.
 	 *
@@ -178,9 +301,13 @@ implements DiffReporter
 	 */
 	public void addPublicInterfaceConnection (CellMLVariable var) throws BivesLogicalException
 	{
-		if (public_interface == INTERFACE_IN && public_interface_connection.size () > 0)
+		connectionsChanged ();
+		if (public_interface_connection == null)
+			public_interface_connection = var;
+		else if (public_interface == INTERFACE_IN)
 			throw new BivesLogicalException ("variable " + name + " defines public interface to be 'in' but wants to add more than one connection. (component: "+component.getName ()+")");
-		public_interface_connection.add (var);
+		else
+			public_interface_fanout = append (public_interface_fanout, var);
 	}
 	
 	/**
@@ -191,43 +318,88 @@ implements DiffReporter
 	 */
 	public void addPrivateInterfaceConnection (CellMLVariable var) throws BivesLogicalException
 	{
-		if (private_interface == INTERFACE_IN && private_interface_connection.size () > 0)
+		connectionsChanged ();
+		if (private_interface_connection == null)
+			private_interface_connection = var;
+		else if (private_interface == INTERFACE_IN)
 			throw new BivesLogicalException ("variable " + name + " defines private interface to be 'in' but wants to add more than one connection. (component: "+component.getName ()+")");
-		private_interface_connection.add (var);
+		else
+			private_interface_fanout = append (private_interface_fanout, var);
+	}
+	
+	/**
+	 * Appends a connection to the fan-out of an interface.
+	 *
+	 * @param fanout the current fan-out
+	 * @param var the variable to connect
+	 * @return the extended fan-out
+	 */
+	private static CellMLVariable [] append (CellMLVariable [] fanout, CellMLVariable var)
+	{
+		CellMLVariable [] extended = new CellMLVariable [fanout.length + 1];
+		System.arraycopy (fanout, 0, extended, 0, fanout.length);
+		extended[fanout.length] = var;
+		return extended;
 	}
 	
 	/**
 	 * Gets the public interface connections as a list of CellML variables.
+	 * The list is a view on the connections of this variable, connections can
+	 * be removed but not added through the list.
 	 *
 	 * @return the public interface connections
 	 */
 	public List<CellMLVariable> getPublicInterfaceConnections ()
 	{
-		return public_interface_connection;
+		return new Connections (true);
 	}
 	
 	/**
 	 * Gets the private interface connections as a list of CellML variables.
+	 * The list is a view on the connections of this variable, connections can
+	 * be removed but not added through the list.
 	 *
 	 * @return the private interface connections
 	 */
 	public List<CellMLVariable> getPrivateInterfaceConnections ()
 	{
-		return private_interface_connection;
+		return new Connections (false);
 	}
 	
 	/**
 	 * Gets the root variable, obtained by traversing the interface connections.
+	 * The root variables are indexed by the model, see
+	 * {@link CellMLModel#getRootVariable(CellMLVariable)}.
 	 *
 	 * @return the root variable
 	 */
 	public CellMLVariable getRootVariable ()
 	{
-		if (private_interface == INTERFACE_IN && private_interface_connection.size () == 1)
-			return private_interface_connection.get (0).getRootVariable ();
-		if (public_interface == INTERFACE_IN && public_interface_connection.size () == 1)
-			return public_interface_connection.get (0).getRootVariable ();
-		return this;
+		return model.getRootVariable (this);
+	}
+	
+	/**
+	 * Gets the variable this variable receives its value from.
+	 *
+	 * @return the variable connected to an incoming interface, or null if this variable doesn't have an incoming connection
+	 */
+	public CellMLVariable getIncomingConnection ()
+	{
+		if (private_interface == INTERFACE_IN && private_interface_connection != null)
+			return private_interface_connection;
+		if (public_interface == INTERFACE_IN && public_interface_connection != null)
+			return public_interface_connection;
+		return null;
+	}
+	
+	/**
+	 * Notes that a connection of this variable changed, so the root variables
+	 * and the connection graph of the model are stale.
+	 */
+	private void connectionsChanged ()
+	{
+		if (model != null)
+			model.connectionsChanged ();
 	}
 	
 	/**
@@ -243,11 +415,21 @@ implements DiffReporter
 	/**
 	 * Gets the initial value, if explicitly specified by a scalar value.
 	 *
-	 * @return the initial value
+	 * @return the initial value, or null if there is no scalar initial value
 	 */
 	public Double getInitialValue ()
 	{
-		return d_initial_value;
+		return has_initial_value ? d_initial_value : null;
+	}
+	
+	/**
+	 * Checks if the initial value is explicitly specified by a scalar value.
+	 *
+	 * @return true, if there is a scalar initial value
+	 */
+	public boolean hasInitialValue ()
+	{
+		return has_initial_value;
 	}
 	
 	/**
@@ -255,8 +437,11 @@ implements DiffReporter
 	 */
 	public void unconnect ()
 	{
-		public_interface_connection = new ArrayList<CellMLVariable> (); 
-		private_interface_connection = new ArrayList<CellMLVariable> (); 
+		public_interface_connection = null;
+		public_interface_fanout = NO_CONNECTIONS;
+		private_interface_connection = null;
+		private_interface_fanout = NO_CONNECTIONS;
+		connectionsChanged ();
 	}
 	
 	/**
@@ -300,6 +485,16 @@ implements DiffReporter
 	{
 		return name;
 	}
+	
+	/**
+	 * Gets the unit of this variable.
+	 *
+	 * @return the unit
+	 */
+	public CellMLUnit getUnit ()
+	{
+		return unit;
+	}
 
 	/**
 	 * Adds the unit this variable depends on to a global list of dependencies.
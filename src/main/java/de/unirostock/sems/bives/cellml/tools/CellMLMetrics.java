@@ -0,0 +1,122 @@
+/**
+ *
+ */
+package de.unirostock.sems.bives.cellml.tools;
+
+import java.net.URI;
+
+
+/**
+ * The Class CellMLMetrics reports the durations of the phases of parsing,
+ * flattening, and comparing CellML documents to a {@link CellMLMetricsListener}.
+ *
+ * <p>
+ * Without a listener (the default) measuring is a no-op: no clock is read and
+ * nothing is allocated. A phase is measured like this:
+ * </p>
+ * 
+ * <pre>
+ * long start = CellMLMetrics.start ();
+ * int count = doSomething ();
+ * CellMLMetrics.finish (uri, CellMLMetrics.UNITS, start, count);
+ * </pre>
+ *
+ * @author Martin Scharm
+ */
+public final class CellMLMetrics
+{
+	
+	/** Parse phase: retrieving, parsing, and merging imports. The count is the number of import elements. */
+	public static final String IMPORTS = "imports";
+	
+	/** Parse phase: building the global units. The count is the number of units elements. */
+	public static final String UNITS = "units";
+	
+	/** Parse phase: building the components. The count is the number of components. */
+	public static final String COMPONENTS = "components";
+	
+	/** Parse phase: reading the groups. The count is the number of groups. */
+	public static final String GROUPS = "groups";
+	
+	/** Parse phase: reading the connections. The count is the number of connections. */
+	public static final String CONNECTIONS = "connections";
+	
+	/** Parse phase: associating RDF descriptions. The count is the number of RDF blocks. */
+	public static final String RDF = "rdf";
+	
+	/** Flattening a model. The count is the number of components after flattening. */
+	public static final String FLATTEN = "flatten";
+	
+	/** Diff stage: mapping the trees. The count is the number of nodes in both trees. */
+	public static final String DIFF_MAP_TREES = "mapTrees";
+	
+	/** Diff stage: computing the patch. The count is the number of nodes in both trees. */
+	public static final String DIFF_PATCH = "patch";
+	
+	/** Diff stage: interpreting the changes and typesetting the report. The count is the number of nodes in both trees. */
+	public static final String DIFF_REPORT = "report";
+	
+	/** Diff stage: producing a graph. The count is the number of nodes in both trees. */
+	public static final String DIFF_GRAPH = "graph";
+	
+	/** The listener, null if metrics are disabled. */
+	private static volatile CellMLMetricsListener listener;
+	
+	
+	/**
+	 * Static class, don't instantiate.
+	 */
+	private CellMLMetrics ()
+	{
+	}
+	
+	
+	/**
+	 * Sets the listener. Pass <code>null</code> (the default) to disable metrics.
+	 *
+	 * @param listener the listener, or null
+	 */
+	public static void setListener (CellMLMetricsListener listener)
+	{
+		CellMLMetrics.listener = listener;
+	}
+	
+	
+	/**
+	 * Gets the listener.
+	 *
+	 * @return the listener, or null if metrics are disabled
+	 */
+	public static CellMLMetricsListener getListener ()
+	{
+		return listener;
+	}
+	
+	
+	/**
+	 * Starts measuring a phase.
+	 *
+	 * @return the start time to pass to {@link #finish(URI, String, long, int)}, or 0 if metrics are disabled
+	 */
+	public static long start ()
+	{
+		return listener == null ? 0 : System.nanoTime ();
+	}
+	
+	
+	/**
+	 * Finishes measuring a phase and reports it to the listener.
+	 *
+	 * @param document the location of the processed document, may be null
+	 * @param phase the phase
+	 * @param start the start time as returned by {@link #start()}
+	 * @param count the number of elements processed in this phase
+	 */
+	public static void finish (URI document, String phase, long start, int count)
+	{
+		CellMLMetricsListener l = listener;
+		// the listener might have been installed while the phase was running
+		if (l != null && start != 0)
+			l.phaseFinished (document, phase, System.nanoTime () - start, count);
+	}
+}
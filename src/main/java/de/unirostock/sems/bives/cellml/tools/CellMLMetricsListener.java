@@ -0,0 +1,33 @@
+/**
+ *
+ */
+package de.unirostock.sems.bives.cellml.tools;
+
+import java.net.URI;
+
+
+/**
+ * The Interface CellMLMetricsListener receives the durations of the phases of
+ * parsing, flattening, and comparing CellML documents.
+ *
+ * <p>
+ * Listeners are called from the thread that ran the phase, so they need to be
+ * thread-safe if documents are processed concurrently.
+ * </p>
+ *
+ * @author Martin Scharm
+ * @see CellMLMetrics
+ */
+public interface CellMLMetricsListener
+{
+	
+	/**
+	 * Called when a phase is finished.
+	 *
+	 * @param document the location of the processed document, may be null
+	 * @param phase the phase, one of the constants in {@link CellMLMetrics}
+	 * @param nanos the duration of the phase in nanoseconds
+	 * @param count the number of elements processed in this phase
+	 */
+	void phaseFinished (URI document, String phase, long nanos, int count);
+}
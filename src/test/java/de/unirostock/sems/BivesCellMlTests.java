@@ -13,7 +13,7 @@ import org.junit.runners.Suite.SuiteClasses;
  *
  */
 @RunWith(Suite.class)
-@SuiteClasses({ TestDiffinterpreter.class, TestForChaste.class, TestParser.class, TestAnnotations.class })
+@SuiteClasses({ TestDiffinterpreter.class, TestForChaste.class, TestParser.class, TestAnnotations.class, TestImports.class, TestUnits.class })
 public class BivesCellMlTests
 {
 	
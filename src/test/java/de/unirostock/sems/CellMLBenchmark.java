@@ -0,0 +1,116 @@
+/**
+ * 
+ */
+package de.unirostock.sems;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import de.unirostock.sems.bives.cellml.parser.CellMLDocument;
+import de.unirostock.sems.bives.cellml.parser.CellMLImportCache;
+import de.unirostock.sems.bives.cellml.parser.CellMLSnapshot;
+import de.unirostock.sems.xmlutils.ds.TreeDocument;
+import de.unirostock.sems.xmlutils.tools.XmlTools;
+
+
+/**
+ * Benchmarks for large models. These are not part of the test suite, run them
+ * explicitly, e.g. using
+ * <code>mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=de.unirostock.sems.CellMLBenchmark</code>
+ *
+ * @author Martin Scharm
+ *
+ */
+public class CellMLBenchmark
+{
+
+	/** The bundled test models used to compare XML and snapshots. */
+	static final String [] SNAPSHOT_MODELS = new String [] {"test/bhalla_model_1999-version1-from-budhat", "test/cloutier_2009-v1.cellml", "test/decker_2009-fixed-from-chastefc.cellml", "test/priebe_beuckelmann_1998-v1.cellml"};
+
+
+	/**
+	 * Runs the benchmarks.
+	 *
+	 * @param args optionally the levels, the fan-out and the chain length of the import tree
+	 * @throws Exception the exception
+	 */
+	public static void main (String[] args) throws Exception
+	{
+		int levels = args.length > 0 ? Integer.parseInt (args[0]) : 5;
+		int fanOut = args.length > 1 ? Integer.parseInt (args[1]) : 4;
+		int chain = args.length > 2 ? Integer.parseInt (args[2]) : 8;
+		importTree (levels, fanOut, chain);
+		snapshots (5);
+	}
+
+
+	/**
+	 * Compares loading the bundled test models from XML and from snapshots.
+	 *
+	 * @param rounds the number of loads to average over
+	 * @throws Exception the exception
+	 */
+	public static void snapshots (int rounds) throws Exception
+	{
+		for (String name : SNAPSHOT_MODELS)
+		{
+			File f = new File (name);
+			CellMLDocument doc = new CellMLDocument (new TreeDocument (XmlTools.readDocument (f), f.toURI ()));
+			ByteArrayOutputStream out = new ByteArrayOutputStream ();
+			CellMLSnapshot.write (doc, out);
+			byte [] snapshot = out.toByteArray ();
+
+			long xml = System.nanoTime ();
+			for (int i = 0; i < rounds; i++)
+				new CellMLDocument (new TreeDocument (XmlTools.readDocument (f), f.toURI ()));
+			xml = System.nanoTime () - xml;
+
+			long bin = System.nanoTime ();
+			for (int i = 0; i < rounds; i++)
+				CellMLSnapshot.readDocument (new ByteArrayInputStream (snapshot));
+			bin = System.nanoTime () - bin;
+
+			System.out.println (name + ": " + f.length () + " bytes xml in " + xml / rounds / 1000 + " us, " + snapshot.length + " bytes snapshot in " + bin / rounds / 1000 + " us");
+		}
+	}
+
+
+	/**
+	 * Benchmarks parsing and flattening a tree of nested imports, see
+	 * {@link TestImports#writeImportTree(File, int, int, int)}.
+	 *
+	 * @param levels the number of levels of nested imports
+	 * @param fanOut the number of imports per level
+	 * @param chain the length of the chain in the last level
+	 * @throws Exception the exception
+	 */
+	public static void importTree (int levels, int fanOut, int chain) throws Exception
+	{
+		File dir = File.createTempFile ("bives-cellml-benchmark", "");
+		dir.delete ();
+		dir.mkdir ();
+		try
+		{
+			File top = TestImports.writeImportTree (dir, levels, fanOut, chain);
+			CellMLImportCache.clear ();
+
+			long time = System.nanoTime ();
+			CellMLDocument doc = new CellMLDocument (new TreeDocument (XmlTools.readDocument (top), top.toURI ()));
+			long parsed = System.nanoTime () - time;
+
+			time = System.nanoTime ();
+			doc.flatten ();
+			long flattened = System.nanoTime () - time;
+
+			System.out.println ("import tree of " + levels + " levels, fan-out " + fanOut + ", chain " + chain + ": "
+				+ doc.getModel ().getComponents ().size () + " components, parsed in " + parsed / 1000000 + " ms, flattened in " + flattened / 1000000 + " ms");
+		}
+		finally
+		{
+			for (File f : dir.listFiles ())
+				f.delete ();
+			dir.delete ();
+		}
+	}
+}
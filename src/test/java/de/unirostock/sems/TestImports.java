@@ -0,0 +1,694 @@
+/**
+ *
+ */
+package de.unirostock.sems;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.jdom2.Document;
+import org.jdom2.output.XMLOutputter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import de.unirostock.sems.bives.cellml.algorithm.CellMLValidator;
+import de.unirostock.sems.bives.cellml.parser.CellMLDirectoryResolver;
+import de.unirostock.sems.bives.cellml.parser.CellMLDocument;
+import de.unirostock.sems.bives.cellml.parser.CellMLImportCache;
+import de.unirostock.sems.bives.cellml.parser.CellMLImportDiskCache;
+import de.unirostock.sems.bives.cellml.parser.CellMLImportGraph;
+import de.unirostock.sems.bives.cellml.parser.CellMLImporter;
+import de.unirostock.sems.bives.cellml.parser.CellMLMemoryResolver;
+import de.unirostock.sems.bives.cellml.parser.CellMLModel;
+import de.unirostock.sems.bives.cellml.parser.CellMLNameAllocator;
+import de.unirostock.sems.bives.cellml.parser.CellMLSnapshot;
+import de.unirostock.sems.bives.cellml.parser.CellMLUnitDimension;
+import de.unirostock.sems.xmlutils.ds.TreeDocument;
+import de.unirostock.sems.xmlutils.tools.DocumentTools;
+import de.unirostock.sems.xmlutils.tools.XmlTools;
+
+/**
+ * Tests for importing entities from other CellML documents.
+ *
+ * @author Martin Scharm
+ *
+ */
+@RunWith(JUnit4.class)
+public class TestImports
+{
+	/** The CellML 1.1 header. */
+	public static final String HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+		+ "<model xmlns=\"http://www.cellml.org/cellml/1.1#\" xmlns:cellml=\"http://www.cellml.org/cellml/1.1#\" xmlns:xlink=\"http://www.w3.org/1999/xlink\" name=\"";
+	
+	/** The library that is imported by the test models. */
+	public static final String LIBRARY = HEADER + "library\">\n"
+		+ "<units name=\"per_second\"><unit units=\"second\" exponent=\"-1\"/></units>\n"
+		+ "<component name=\"decay\">\n"
+		+ "<variable name=\"time\" units=\"second\" public_interface=\"in\"/>\n"
+		+ "<variable name=\"k\" units=\"per_second\" initial_value=\"0.5\"/>\n"
+		+ "<variable name=\"x\" units=\"dimensionless\" initial_value=\"1\" public_interface=\"out\"/>\n"
+		+ "<math xmlns=\"http://www.w3.org/1998/Math/MathML\"><apply><eq/><apply><diff/><bvar><ci>time</ci></bvar><ci>x</ci></apply><apply><times/><apply><minus/><ci>k</ci></apply><ci>x</ci></apply></apply></math>\n"
+		+ "</component>\n"
+		+ "</model>\n";
+	
+	/** The temporary directory containing the test models. */
+	private File dir;
+	
+	
+	/**
+	 * Creates a library and some models importing it.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Before
+	public void setUp () throws IOException
+	{
+		dir = File.createTempFile ("bives-cellml-imports", "");
+		dir.delete ();
+		dir.mkdir ();
+		write ("library.cellml", LIBRARY);
+		for (int i = 0; i < 3; i++)
+			write ("model" + i + ".cellml", importingModel ("model" + i, "library.cellml"));
+		
+		StringBuilder composite = new StringBuilder (HEADER + "composite\">\n");
+		for (int i = 0; i < 4; i++)
+			composite.append ("<import xlink:href=\"model" + i % 3 + ".cellml\"><component name=\"decay_" + i + "\" component_ref=\"imported_decay\"/></import>\n");
+		write ("composite.cellml", composite.append ("</model>\n").toString ());
+	}
+	
+	
+	/**
+	 * Removes the test models.
+	 */
+	@After
+	public void tearDown ()
+	{
+		for (File f : dir.listFiles ())
+			f.delete ();
+		dir.delete ();
+	}
+	
+	
+	/**
+	 * Creates a model that imports the decay component from a library.
+	 *
+	 * @param name the name of the model
+	 * @param href the location of the library
+	 * @return the model's code
+	 */
+	public static String importingModel (String name, String href)
+	{
+		return HEADER + name + "\">\n"
+			+ "<import xlink:href=\"" + href + "\">\n"
+			+ "<units name=\"rate\" units_ref=\"per_second\"/>\n"
+			+ "<component name=\"imported_decay\" component_ref=\"decay\"/>\n"
+			+ "</import>\n"
+			+ "<component name=\"environment\"><variable name=\"time\" units=\"second\" public_interface=\"out\"/></component>\n"
+			+ "<connection><map_components component_1=\"environment\" component_2=\"imported_decay\"/><map_variables variable_1=\"time\" variable_2=\"time\"/></connection>\n"
+			+ "</model>\n";
+	}
+	
+	
+	/**
+	 * Writes a file to the temporary directory.
+	 *
+	 * @param name the name of the file
+	 * @param content the content
+	 * @return the file
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private File write (String name, String content) throws IOException
+	{
+		return write (dir, name, content);
+	}
+	
+	
+	/**
+	 * Writes a file to a directory.
+	 *
+	 * @param dir the directory
+	 * @param name the name of the file
+	 * @param content the content
+	 * @return the file
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	static File write (File dir, String name, String content) throws IOException
+	{
+		File f = new File (dir, name);
+		Writer w = new OutputStreamWriter (new FileOutputStream (f), "UTF-8");
+		try
+		{
+			w.write (content);
+		}
+		finally
+		{
+			w.close ();
+		}
+		return f;
+	}
+	
+	
+	/**
+	 * Parses a model from the temporary directory.
+	 *
+	 * @param name the name of the file
+	 * @return the CellML document
+	 */
+	private CellMLDocument parse (String name)
+	{
+		CellMLValidator validator = new CellMLValidator ();
+		if (!validator.validate (new File (dir, name)))
+		{
+			validator.getError ().printStackTrace ();
+			fail ("validator fails on " + name + ": " + validator.getError ());
+		}
+		return validator.getDocument ();
+	}
+	
+	
+	/**
+	 * Test importing a library.
+	 */
+	@Test
+	public void testImport ()
+	{
+		CellMLModel model = parse ("model0.cellml").getModel ();
+		assertNotNull ("component wasn't imported", model.getComponent ("imported_decay"));
+		assertNotNull ("unit wasn't imported", model.getUnits ().getUnit ("rate", null));
+		
+		try
+		{
+			parse ("model1.cellml").flatten ();
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace ();
+			fail ("couldn't flatten model importing a library");
+		}
+	}
+	
+	
+	/**
+	 * Test importing local files, given as absolute URI and with a fragment.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testLocalImport () throws IOException
+	{
+		String library = new File (dir, "library.cellml").toURI ().toString ();
+		write ("absolute.cellml", importingModel ("absolute", library));
+		write ("fragment.cellml", importingModel ("fragment", "library.cellml#decay"));
+		
+		assertNotNull ("couldn't import local file by absolute uri", parse ("absolute.cellml").getModel ().getComponent ("imported_decay"));
+		assertNotNull ("couldn't import local file with fragment", parse ("fragment.cellml").getModel ().getComponent ("imported_decay"));
+	}
+	
+	
+	/**
+	 * Test resolving sibling imports concurrently.
+	 */
+	@Test
+	public void testParallelImports ()
+	{
+		List<String> serial = new ArrayList<String> (parse ("composite.cellml").getModel ().getComponents ().keySet ());
+		
+		ExecutorService executor = Executors.newFixedThreadPool (2);
+		CellMLImporter.setExecutor (executor);
+		try
+		{
+			for (int i = 0; i < 5; i++)
+			{
+				CellMLDocument doc = parse ("composite.cellml");
+				List<String> parallel = new ArrayList<String> (doc.getModel ().getComponents ().keySet ());
+				assertEquals ("parallel import should result in the same components", serial, parallel);
+				for (int j = 0; j < 4; j++)
+					assertNotNull ("component wasn't imported", doc.getModel ().getComponent ("decay_" + j));
+			}
+		}
+		finally
+		{
+			CellMLImporter.setExecutor (null);
+			executor.shutdown ();
+		}
+	}
+	
+	
+	/**
+	 * Test serving http imports from a local mirror without network access.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testOfflineResolvers () throws IOException
+	{
+		write ("remote.cellml", importingModel ("remote", "http://models.example.org/lib/library.cellml"));
+		
+		CellMLImporter.setOffline (true);
+		try
+		{
+			// nothing registered -> must fail fast
+			CellMLValidator validator = new CellMLValidator ();
+			assertFalse ("offline import of unknown document should fail", validator.validate (new File (dir, "remote.cellml")));
+			
+			CellMLMemoryResolver memory = new CellMLMemoryResolver ();
+			memory.put ("models.example.org/lib/library.cellml", LIBRARY);
+			CellMLImporter.addResolver (memory);
+			assertNotNull ("component wasn't imported from memory", parse ("remote.cellml").getModel ().getComponent ("imported_decay"));
+			CellMLImporter.clearResolvers ();
+			
+			CellMLDirectoryResolver mirror = new CellMLDirectoryResolver (dir);
+			mirror.addRewrite ("http://models.example.org/lib/", "");
+			CellMLImporter.addResolver (mirror);
+			assertTrue ("library not indexed", mirror.getIndex ().contains ("library.cellml"));
+			assertNotNull ("component wasn't imported from mirror", parse ("remote.cellml").getModel ().getComponent ("imported_decay"));
+		}
+		finally
+		{
+			CellMLImporter.clearResolvers ();
+			CellMLImporter.setOffline (false);
+		}
+	}
+	
+	
+	/**
+	 * Test importing lazily, parsing only what is referenced.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testLazyImport () throws IOException
+	{
+		// a library with an unreferenced component and a nested import that nobody needs
+		write ("big.cellml", HEADER + "big\">\n"
+			+ "<import xlink:href=\"library.cellml\"><component name=\"other_decay\" component_ref=\"decay\"/></import>\n"
+			+ "<units name=\"per_second\"><unit units=\"second\" exponent=\"-1\"/></units>\n"
+			+ "<units name=\"unused\"><unit units=\"metre\"/></units>\n"
+			+ LIBRARY.substring (LIBRARY.indexOf ("<component"), LIBRARY.indexOf ("</model>"))
+			+ "<component name=\"unreferenced\"><variable name=\"y\" units=\"unused\" public_interface=\"out\"/></component>\n"
+			+ "<connection><map_components component_1=\"decay\" component_2=\"other_decay\"/><map_variables variable_1=\"time\" variable_2=\"time\"/></connection>\n"
+			+ "</model>\n");
+		write ("lazy.cellml", importingModel ("lazy", "big.cellml"));
+		
+		CellMLModel eager = parse ("lazy.cellml").getModel ();
+		CellMLImporter.setLazy (true);
+		try
+		{
+			CellMLDocument doc = parse ("lazy.cellml");
+			CellMLModel model = doc.getModel ();
+			assertNotNull ("component wasn't imported", model.getComponent ("imported_decay"));
+			assertNotNull ("unit wasn't imported", model.getUnits ().getUnit ("rate", null));
+			assertEquals ("lazy import should import the same components", eager.getComponents ().keySet (), model.getComponents ().keySet ());
+			doc.flatten ();
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace ();
+			fail ("couldn't flatten lazily imported model");
+		}
+		finally
+		{
+			CellMLImporter.setLazy (false);
+		}
+	}
+	
+	
+	/**
+	 * Test the persistent cache of imported documents.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testDiskCache () throws IOException
+	{
+		File cacheDir = new File (dir, "cache");
+		CellMLImportDiskCache.setDirectory (cacheDir);
+		try
+		{
+			CellMLImportCache.clear ();
+			assertNotNull ("component wasn't imported", parse ("model0.cellml").getModel ().getComponent ("imported_decay"));
+			assertEquals ("library should have been stored", 1, cacheDir.listFiles ().length);
+			
+			// a fresh JVM wouldn't have the library in memory
+			CellMLImportCache.clear ();
+			assertNotNull ("component wasn't imported from disk cache", parse ("model1.cellml").getModel ().getComponent ("imported_decay"));
+			assertEquals ("loading from disk should count as a miss in memory", 1, CellMLImportCache.getMisses ());
+			assertEquals ("library shouldn't be served from memory", 0, CellMLImportCache.getHits ());
+			
+			// documents loaded from disk are kept in memory
+			long hits = CellMLImportCache.getHits ();
+			assertNotNull ("component wasn't imported from memory", parse ("model2.cellml").getModel ().getComponent ("imported_decay"));
+			assertTrue ("library should be served from memory", CellMLImportCache.getHits () > hits);
+			assertEquals ("library should be promoted to memory", 1, CellMLImportCache.size ());
+			
+			// resolvers take precedence over both caches
+			CellMLMemoryResolver memory = new CellMLMemoryResolver ();
+			memory.addRewrite (dir.toURI ().toString (), "redirected/");
+			memory.put ("redirected/library.cellml", LIBRARY.replace ("name=\"x\"", "name=\"y\"").replace ("<ci>x</ci>", "<ci>y</ci>"));
+			CellMLImporter.addResolver (memory);
+			assertNotNull ("redirect of resolver was ignored", parse ("model0.cellml").getModel ().getComponent ("imported_decay").getVariables ().get ("y"));
+		}
+		finally
+		{
+			CellMLImporter.clearResolvers ();
+			CellMLImportDiskCache.clear ();
+			CellMLImportDiskCache.setDirectory (null);
+			cacheDir.delete ();
+		}
+	}
+	
+	
+	/**
+	 * Test the round trip of a document through a snapshot.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testSnapshot () throws Exception
+	{
+		Document doc = XmlTools.readDocument (new File ("test/bhalla_model_1999-version1-from-budhat"));
+		ByteArrayOutputStream out = new ByteArrayOutputStream ();
+		CellMLSnapshot.write (doc, out);
+		Document copy = CellMLSnapshot.read (new ByteArrayInputStream (out.toByteArray ()));
+		
+		XMLOutputter xml = new XMLOutputter ();
+		assertEquals ("snapshot should preserve the document", xml.outputString (doc.getRootElement ()), xml.outputString (copy.getRootElement ()));
+	}
+	
+	
+	/**
+	 * Test snapshots of a CellML document including its imports.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testDocumentSnapshot () throws Exception
+	{
+		CellMLDocument doc = parse ("composite.cellml");
+		ByteArrayOutputStream out = new ByteArrayOutputStream ();
+		CellMLSnapshot.write (doc, out);
+		
+		// the snapshot mustn't need the imported files
+		for (File f : dir.listFiles ())
+			f.delete ();
+		CellMLImportCache.clear ();
+		
+		CellMLDocument copy = CellMLSnapshot.readDocument (new ByteArrayInputStream (out.toByteArray ()));
+		assertEquals ("snapshot should preserve the base uri", doc.getBaseUri (), copy.getBaseUri ());
+		assertEquals ("snapshot should preserve the components", doc.getModel ().getComponents ().keySet (), copy.getModel ().getComponents ().keySet ());
+		assertEquals ("snapshot should preserve the import graph", doc.getImportGraph ().getTopologicalOrder (), copy.getImportGraph ().getTopologicalOrder ());
+		assertEquals ("no document should be parsed", 0, CellMLImportCache.getMisses ());
+		copy.flatten ();
+	}
+	
+	
+	/**
+	 * Test that snapshots of the bundled test models preserve their components.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testSnapshotRoundTrip () throws Exception
+	{
+		for (String name : CellMLBenchmark.SNAPSHOT_MODELS)
+		{
+			File f = new File (name);
+			CellMLDocument doc = new CellMLDocument (new TreeDocument (XmlTools.readDocument (f), f.toURI ()));
+			ByteArrayOutputStream out = new ByteArrayOutputStream ();
+			CellMLSnapshot.write (doc, out);
+			CellMLDocument copy = CellMLSnapshot.readDocument (new ByteArrayInputStream (out.toByteArray ()));
+			assertEquals ("snapshot should preserve the components of " + name, doc.getModel ().getComponents ().keySet (), copy.getModel ().getComponents ().keySet ());
+		}
+	}
+	
+	
+	/**
+	 * Test that a base unit imported through different imports is the same
+	 * dimension.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testImportedBaseUnits () throws Exception
+	{
+		write ("ph.cellml", HEADER + "ph\">\n"
+			+ "<units name=\"pH\" base_units=\"yes\"/>\n"
+			+ "<component name=\"probe\"><variable name=\"ph\" units=\"pH\" public_interface=\"out\"/></component>\n"
+			+ "</model>\n");
+		write ("two_probes.cellml", HEADER + "two_probes\">\n"
+			+ "<import xlink:href=\"ph.cellml\"><component name=\"probe_1\" component_ref=\"probe\"/></import>\n"
+			+ "<import xlink:href=\"ph.cellml\"><component name=\"probe_2\" component_ref=\"probe\"/></import>\n"
+			+ "</model>\n");
+		CellMLModel model = parse ("two_probes.cellml").getModel ();
+		CellMLUnitDimension a = model.getComponent ("probe_1").getVariable ("ph").getUnit ().getDimension ();
+		CellMLUnitDimension b = model.getComponent ("probe_2").getVariable ("ph").getUnit ().getDimension ();
+		assertTrue ("the same base unit should be compatible through both imports", a.isCompatible (b));
+		assertFalse ("imported base units aren't dimensionless", a.isDimensionless ());
+	}
+	
+	
+	/**
+	 * Test the import graph of a composite model.
+	 */
+	@Test
+	public void testImportGraph ()
+	{
+		CellMLImportCache.clear ();
+		CellMLImportGraph graph = parse ("composite.cellml").getImportGraph ();
+		
+		Set<URI> dependencies = graph.getDependencies ();
+		assertEquals ("composite depends on 3 models and the library", 4, dependencies.size ());
+		URI library = new File (dir, "library.cellml").toURI ().normalize ();
+		assertTrue ("library should be a dependency", dependencies.contains (library));
+		assertEquals ("library is imported by 3 models and the composite", 4, graph.getDependents (library).size ());
+		
+		List<URI> order = graph.getTopologicalOrder ();
+		assertEquals ("library should come first in bottom-up order", library, order.get (0));
+		assertEquals ("every distinct document should be parsed exactly once", 4, CellMLImportCache.getMisses () + CellMLImportCache.getHits ());
+	}
+	
+	
+	/**
+	 * Test detecting cyclic imports.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testCyclicImport () throws IOException
+	{
+		write ("cycle_a.cellml", importingModel ("cycle_a", "cycle_b.cellml"));
+		write ("cycle_b.cellml", importingModel ("cycle_b", "cycle_a.cellml"));
+		
+		CellMLValidator validator = new CellMLValidator ();
+		assertFalse ("cyclic import should be detected", validator.validate (new File (dir, "cycle_a.cellml")));
+		
+		String msg = "";
+		for (Throwable t = validator.getError (); t != null; t = t.getCause ())
+			msg += t.getMessage ();
+		assertTrue ("error should mention the cycle: " + msg, msg.contains ("cyclic import"));
+	}
+	
+	
+	/**
+	 * Test that the import cache parses a library only once.
+	 */
+	@Test
+	public void testImportCache ()
+	{
+		CellMLImportCache.clear ();
+		for (int i = 0; i < 3; i++)
+			assertNotNull ("component wasn't imported", parse ("model" + i + ".cellml").getModel ().getComponent ("imported_decay"));
+		
+		assertEquals ("library should be parsed exactly once", 1, CellMLImportCache.getMisses ());
+		assertEquals ("library should be served from cache", 2, CellMLImportCache.getHits ());
+		
+		// renaming the imported entities must not corrupt the cached copy
+		CellMLModel model = parse ("model0.cellml").getModel ();
+		assertNotNull ("cached library was modified", model.getComponent ("imported_decay"));
+		assertTrue ("library should be served from cache", CellMLImportCache.getHits () >= 3);
+	}
+	
+	
+	/**
+	 * Writes a tree of models importing each other. The model
+	 * <code>tree_0.cellml</code> encapsulates <code>fanOut</code> imports of the
+	 * component of <code>tree_1.cellml</code>, which encapsulates
+	 * <code>fanOut</code> imports of <code>tree_2.cellml</code>, and so on. The
+	 * component of the last level encapsulates a chain of <code>chain</code>
+	 * components. Every model defines its own <code>rate</code> unit.
+	 *
+	 * @param dir the directory
+	 * @param levels the number of levels of nested imports
+	 * @param fanOut the number of imports per level
+	 * @param chain the length of the chain in the last level
+	 * @return the model at the top of the tree
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	static File writeImportTree (File dir, int levels, int fanOut, int chain) throws IOException
+	{
+		String rate = "<units name=\"rate\"><unit units=\"second\" exponent=\"-1\"/></units>\n";
+		StringBuilder leaf = new StringBuilder (HEADER + "tree_" + levels + "\">\n" + rate);
+		leaf.append ("<component name=\"n\"><variable name=\"x\" units=\"rate\" public_interface=\"in\"" + (chain > 0 ? " private_interface=\"out\"" : "") + "/></component>\n");
+		for (int i = 1; i <= chain; i++)
+		{
+			String parent = i == 1 ? "n" : "l_" + (i - 1);
+			leaf.append ("<component name=\"l_" + i + "\"><variable name=\"x\" units=\"rate\" public_interface=\"in\"" + (i < chain ? " private_interface=\"out\"" : "") + "/></component>\n");
+			leaf.append ("<group><relationship_ref relationship=\"encapsulation\"/><component_ref component=\"" + parent + "\"><component_ref component=\"l_" + i + "\"/></component_ref></group>\n");
+			leaf.append ("<connection><map_components component_1=\"" + parent + "\" component_2=\"l_" + i + "\"/><map_variables variable_1=\"x\" variable_2=\"x\"/></connection>\n");
+		}
+		write (dir, "tree_" + levels + ".cellml", leaf.append ("</model>\n").toString ());
+		
+		for (int level = levels - 1; level >= 0; level--)
+		{
+			StringBuilder model = new StringBuilder (HEADER + "tree_" + level + "\">\n");
+			StringBuilder group = new StringBuilder ("<group><relationship_ref relationship=\"encapsulation\"/><component_ref component=\"n\">");
+			StringBuilder connections = new StringBuilder ();
+			for (int i = 0; i < fanOut; i++)
+			{
+				model.append ("<import xlink:href=\"tree_" + (level + 1) + ".cellml\"><component name=\"c_" + i + "\" component_ref=\"n\"/></import>\n");
+				group.append ("<component_ref component=\"c_" + i + "\"/>");
+				connections.append ("<connection><map_components component_1=\"n\" component_2=\"c_" + i + "\"/><map_variables variable_1=\"x\" variable_2=\"x\"/></connection>\n");
+			}
+			String iface = level == 0 ? " initial_value=\"1\"" : " public_interface=\"in\"";
+			model.append (rate).append ("<component name=\"n\"><variable name=\"x\" units=\"rate\"" + iface + " private_interface=\"out\"/></component>\n");
+			model.append (group).append ("</component_ref></group>\n").append (connections);
+			write (dir, "tree_" + level + ".cellml", model.append ("</model>\n").toString ());
+		}
+		return new File (dir, "tree_0.cellml");
+	}
+	
+	
+	/**
+	 * Test flattening a tree of nested imports.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testImportTree () throws Exception
+	{
+		final int levels = 3, fanOut = 2, chain = 2;
+		writeImportTree (dir, levels, fanOut, chain);
+		CellMLDocument doc = parse ("tree_0.cellml");
+		doc.flatten ();
+		
+		// the flattened model must be valid on its own
+		write ("tree_flat.cellml", XmlTools.prettyPrintDocument (DocumentTools.getDoc (doc.getTreeDocument ())));
+		CellMLDocument flat = parse ("tree_flat.cellml");
+		int components = 1, leaves = 1;
+		for (int level = 1; level <= levels; level++)
+		{
+			leaves *= fanOut;
+			components += leaves;
+		}
+		components += leaves * chain;
+		assertEquals ("every imported component should be written", components, flat.getModel ().getComponents ().size ());
+		assertEquals ("every component but the root should be connected to its parent", components - 1, flat.getTreeDocument ().getNodesByTag ("connection").size ());
+		assertEquals ("every model's unit should be written once", levels + 1, flat.getTreeDocument ().getNodesByTag ("units").size ());
+		assertNotNull ("imported component should keep its name", flat.getModel ().getComponent ("c_0"));
+	}
+	
+	
+	/**
+	 * Test flattening a model that imports a deep encapsulation hierarchy with
+	 * thousands of components and a chain of units.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testDeepImport () throws Exception
+	{
+		final int depth = 2000;
+		final int unitDepth = 50;
+		StringBuilder library = new StringBuilder (HEADER + "deep\">\n");
+		library.append ("<units name=\"u_0\"><unit units=\"second\" exponent=\"-1\"/></units>\n");
+		for (int i = 1; i < unitDepth; i++)
+			library.append ("<units name=\"u_" + i + "\"><unit units=\"u_" + (i - 1) + "\"/></units>\n");
+		for (int i = 0; i < depth; i++)
+		{
+			String iface = (i > 0 ? " public_interface=\"in\"" : " initial_value=\"1\"") + (i < depth - 1 ? " private_interface=\"out\"" : "");
+			library.append ("<component name=\"c_" + i + "\"><variable name=\"x\" units=\"u_" + i % unitDepth + "\"" + iface + "/></component>\n");
+		}
+		for (int i = 1; i < depth; i++)
+		{
+			library.append ("<group><relationship_ref relationship=\"encapsulation\"/><component_ref component=\"c_" + (i - 1) + "\"><component_ref component=\"c_" + i + "\"/></component_ref></group>\n");
+			library.append ("<connection><map_components component_1=\"c_" + (i - 1) + "\" component_2=\"c_" + i + "\"/><map_variables variable_1=\"x\" variable_2=\"x\"/></connection>\n");
+		}
+		write ("deep.cellml", library.append ("</model>\n").toString ());
+		
+		// names that collide with the imported ones
+		write ("deep_import.cellml", HEADER + "deep_import\">\n"
+			+ "<units name=\"u_0\"><unit units=\"metre\"/></units>\n"
+			+ "<component name=\"c_1\"><variable name=\"x\" units=\"u_0\"/></component>\n"
+			+ "<import xlink:href=\"deep.cellml\"><component name=\"root\" component_ref=\"c_0\"/></import>\n"
+			+ "</model>\n");
+		
+		CellMLDocument doc = parse ("deep_import.cellml");
+		doc.flatten ();
+		
+		// the flattened model must be valid on its own
+		write ("deep_flat.cellml", XmlTools.prettyPrintDocument (DocumentTools.getDoc (doc.getTreeDocument ())));
+		CellMLDocument flat = parse ("deep_flat.cellml");
+		assertEquals ("every unit should be written once", unitDepth + 1, flat.getTreeDocument ().getNodesByTag ("units").size ());
+		assertEquals ("every connection should be written once", depth - 1, flat.getTreeDocument ().getNodesByTag ("connection").size ());
+		assertEquals ("every component should be written once", depth + 1, flat.getModel ().getComponents ().size ());
+		assertNotNull ("imported root should keep its name", flat.getModel ().getComponent ("root"));
+		assertNotNull ("local component should keep its name", flat.getModel ().getComponent ("c_1"));
+		assertNotNull ("colliding component should be renamed", flat.getModel ().getComponent ("c_1_imported"));
+		assertNotNull ("colliding unit should be renamed", flat.getModel ().getUnits ().getUnit ("u_0_imported", null));
+	}
+	
+	/**
+	 * Test the allocation of names for colliding imports.
+	 */
+	@Test
+	public void testNameAllocator ()
+	{
+		CellMLNameAllocator names = new CellMLNameAllocator ("_imported");
+		assertTrue ("name should be free", names.reserve ("per_second"));
+		assertFalse ("name is already taken", names.reserve ("per_second"));
+		names.reserve ("per_second_imported_A");
+		
+		assertEquals ("first candidate", "per_second_imported", names.allocate ("per_second"));
+		assertEquals ("reserved names should be skipped", "per_second_imported_B", names.allocate ("per_second"));
+		assertEquals ("next candidate", "per_second_imported_C", names.allocate ("per_second"));
+		assertTrue ("allocated names should be reserved", names.isReserved ("per_second_imported_C"));
+		assertEquals ("bases are independent", "second_imported", names.allocate ("second"));
+		
+		Set<String> allocated = new HashSet<String> ();
+		for (int i = 0; i < 26 * 27; i++)
+			assertTrue ("names must be unique", allocated.add (names.allocate ("mV")));
+		assertTrue ("two-letter suffixes after Z", allocated.contains ("mV_imported_AA"));
+		assertTrue ("two-letter suffixes", allocated.contains ("mV_imported_ZY"));
+		assertEquals ("last two-letter suffix", "mV_imported_ZZ", names.allocate ("mV"));
+		assertEquals ("three-letter suffixes after ZZ", "mV_imported_AAA", names.allocate ("mV"));
+		
+		// same reservations and allocations yield the same names
+		CellMLNameAllocator again = new CellMLNameAllocator ("_imported");
+		again.reserve ("per_second");
+		again.reserve ("per_second_imported_A");
+		assertEquals ("allocation should be reproducible", "per_second_imported", again.allocate ("per_second"));
+		assertEquals ("allocation should be reproducible", "per_second_imported_B", again.allocate ("per_second"));
+	}
+
+}
@@ -7,6 +7,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -14,7 +15,13 @@ import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
+import java.net.URI;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.jdom2.JDOMException;
 import org.junit.Test;
@@ -24,7 +31,17 @@ import org.junit.runners.JUnit4;
 import de.unirostock.sems.bives.cellml.algorithm.CellMLValidator;
 import de.unirostock.sems.bives.cellml.api.CellMLDiff;
 import de.unirostock.sems.bives.cellml.exception.BivesCellMLParseException;
+import de.unirostock.sems.bives.cellml.parser.CellMLComponent;
+import de.unirostock.sems.bives.cellml.parser.CellMLConnectionGraph;
 import de.unirostock.sems.bives.cellml.parser.CellMLDocument;
+import de.unirostock.sems.bives.cellml.parser.CellMLDocumentCache;
+import de.unirostock.sems.bives.cellml.parser.CellMLHierarchy;
+import de.unirostock.sems.bives.cellml.parser.CellMLHierarchyIndex;
+import de.unirostock.sems.bives.cellml.parser.CellMLModel;
+import de.unirostock.sems.bives.cellml.parser.CellMLStringPool;
+import de.unirostock.sems.bives.cellml.parser.CellMLVariable;
+import de.unirostock.sems.bives.cellml.tools.CellMLMetrics;
+import de.unirostock.sems.bives.cellml.tools.CellMLMetricsListener;
 import de.unirostock.sems.bives.exception.BivesDocumentConsistencyException;
 import de.unirostock.sems.bives.exception.BivesFlattenException;
 import de.unirostock.sems.bives.exception.BivesImportException;
@@ -155,4 +172,358 @@ public class TestParser
 		}
 	}
 	
+	/**
+	 * Test the streaming front-end on the models on disk.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testStreamReader () throws Exception
+	{
+		String [] files = new String [] {"test/bhalla_model_1999-version1-from-budhat", "test/cloutier_2009-v1.cellml", "test/decker_2009-fixed-from-chastefc.cellml", "test/priebe_beuckelmann_1998-v1.cellml"};
+		for (String f : files)
+		{
+			CellMLValidator full = new CellMLValidator ();
+			CellMLValidator streaming = new CellMLValidator (true);
+			if (!full.validate (new File (f)))
+				fail ("validator fails on " + f + ": " + full.getError ());
+			if (!streaming.validate (new File (f)))
+				fail ("streaming validator fails on " + f + ": " + streaming.getError ());
+			
+			CellMLModel fullModel = full.getDocument ().getModel ();
+			CellMLModel streamedModel = streaming.getDocument ().getModel ();
+			assertEquals ("different components in " + f, fullModel.getComponents ().keySet (), streamedModel.getComponents ().keySet ());
+			for (CellMLComponent c : fullModel.getComponents ().values ())
+			{
+				CellMLComponent s = streamedModel.getComponent (c.getName ());
+				assertEquals ("different variables in " + f, c.getVariables ().keySet (), s.getVariables ().keySet ());
+				assertEquals ("different math in " + f, c.getMath ().size (), s.getMath ().size ());
+			}
+			assertTrue ("streamed tree should be smaller", streaming.getDocument ().getTreeDocument ().getNumNodes () <= full.getDocument ().getTreeDocument ().getNumNodes ());
+			
+			streaming.getDocument ().flatten ();
+		}
+	}
+	
+	/**
+	 * Test parsing the components of a model concurrently.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testParallelComponents () throws Exception
+	{
+		File f = new File ("test/decker_2009-fixed-from-chastefc.cellml");
+		CellMLModel serial = new CellMLDocument (new TreeDocument (XmlTools.readDocument (f), f.toURI ())).getModel ();
+		
+		ExecutorService pool = Executors.newFixedThreadPool (4);
+		CellMLModel.setComponentExecutor (pool);
+		try
+		{
+			CellMLModel parallel = new CellMLDocument (new TreeDocument (XmlTools.readDocument (f), f.toURI ())).getModel ();
+			assertEquals ("different components", serial.getComponents ().keySet (), parallel.getComponents ().keySet ());
+			for (CellMLComponent c : serial.getComponents ().values ())
+			{
+				CellMLComponent p = parallel.getComponent (c.getName ());
+				assertEquals ("different variables in " + c.getName (), c.getVariables ().keySet (), p.getVariables ().keySet ());
+				assertEquals ("different math in " + c.getName (), c.getMath ().size (), p.getMath ().size ());
+				assertEquals ("different local units in " + c.getName (), serial.getUnits ().getComponentUnits (c) == null, parallel.getUnits ().getComponentUnits (p) == null);
+				assertEquals ("different annotations of " + c.getName (), c.getRdfDescriptions ().size (), p.getRdfDescriptions ().size ());
+			}
+			parallel.getDocument ().flatten ();
+			
+			// errors are reported as if components were parsed serially
+			String broken = "<component name=\"a\"><variable name=\"x\" units=\"furlong\"/></component>\n"
+				+ "<component name=\"b\"><variable units=\"second\"/></component>\n";
+			try
+			{
+				TestUnits.parse (broken);
+				fail ("broken components should be detected");
+			}
+			catch (BivesDocumentConsistencyException e)
+			{
+				assertTrue ("first broken component should be reported: " + e.getMessage (), e.getMessage ().contains ("component a"));
+			}
+		}
+		finally
+		{
+			CellMLModel.setComponentExecutor (null);
+			pool.shutdown ();
+		}
+	}
+	
+	/**
+	 * Test reporting the durations of parse and diff phases.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testMetrics () throws Exception
+	{
+		final List<String> phases = new ArrayList<String> ();
+		CellMLMetrics.setListener (new CellMLMetricsListener ()
+		{
+			public void phaseFinished (URI document, String phase, long nanos, int count)
+			{
+				assertTrue ("negative duration for " + phase, nanos >= 0);
+				synchronized (phases)
+				{
+					phases.add (phase);
+				}
+			}
+		});
+		try
+		{
+			CellMLDiff diff = new CellMLDiff (new File ("test/bhalla_model_1999-version1-from-budhat"), new File ("test/bhalla_model_1999-version2-from-budhat"));
+			for (String phase : new String [] {CellMLMetrics.IMPORTS, CellMLMetrics.UNITS, CellMLMetrics.COMPONENTS, CellMLMetrics.GROUPS, CellMLMetrics.CONNECTIONS, CellMLMetrics.RDF})
+				assertEquals ("phase " + phase + " should be reported for both documents", 2, Collections.frequency (phases, phase));
+			
+			diff.mapTrees ();
+			assertTrue ("mapping should be reported", phases.contains (CellMLMetrics.DIFF_MAP_TREES));
+			diff.getHTMLReport ();
+			assertTrue ("report should be reported", phases.contains (CellMLMetrics.DIFF_REPORT));
+			diff.getReactionsDotGraph ();
+			assertTrue ("graph should be reported", phases.contains (CellMLMetrics.DIFF_GRAPH));
+		}
+		finally
+		{
+			CellMLMetrics.setListener (null);
+		}
+		
+		// without listener nothing is measured
+		assertEquals ("disabled metrics shouldn't read the clock", 0, CellMLMetrics.start ());
+	}
+	
+	/**
+	 * Test the cache of parsed documents.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testDocumentCache () throws Exception
+	{
+		File a = new File ("test/bhalla_model_1999-version1-from-budhat");
+		File b = new File ("test/bhalla_model_1999-version2-from-budhat");
+		CellMLDocumentCache.clear ();
+		try
+		{
+			CellMLDocument docA = CellMLDocumentCache.getDocument (a);
+			CellMLDocument docB = CellMLDocumentCache.getDocument (b);
+			assertEquals ("both documents should be parsed", 2, CellMLDocumentCache.getMisses ());
+			assertEquals ("budget should be spent on the sources", a.length () + b.length (), CellMLDocumentCache.getBytes ());
+			
+			// diffing modifies the trees, that mustn't affect the cache
+			CellMLDiff diff = new CellMLDiff (docA, docB);
+			diff.mapTrees ();
+			String expected = diff.getDiff ();
+			
+			CellMLDocument againA = CellMLDocumentCache.getDocument (a);
+			CellMLDocument againB = CellMLDocumentCache.getDocument (b);
+			assertEquals ("documents should be served from the cache", 2, CellMLDocumentCache.getHits ());
+			assertEquals ("hit ratio", .5, CellMLDocumentCache.getHitRatio (), 0);
+			assertTrue ("cached documents must not be shared", againA != docA && againA.getTreeDocument () != docA.getTreeDocument ());
+			diff = new CellMLDiff (againA, againB);
+			diff.mapTrees ();
+			assertEquals ("diff of cached documents should be the same", expected, diff.getDiff ());
+			diff = CellMLDiff.fromCache (a, b);
+			diff.mapTrees ();
+			assertEquals ("diff created from the cache should be the same", expected, diff.getDiff ());
+			assertEquals ("diff should use the cache", 4, CellMLDocumentCache.getHits ());
+			
+			// streamed documents are cached separately
+			CellMLDocumentCache.getDocument (a, true);
+			assertEquals ("options should be part of the key", 3, CellMLDocumentCache.size ());
+			
+			// evict the least recently used documents
+			CellMLDocumentCache.setMaxBytes (b.length ());
+			assertTrue ("cache exceeds its budget", CellMLDocumentCache.getBytes () <= b.length ());
+			assertEquals ("only one document fits into the cache", 1, CellMLDocumentCache.size ());
+		}
+		finally
+		{
+			CellMLDocumentCache.setMaxBytes (CellMLDocumentCache.DEFAULT_MAX_BYTES);
+			CellMLDocumentCache.clear ();
+		}
+	}
+	
+	/**
+	 * Test sharing names among models.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testStringPool () throws Exception
+	{
+		CellMLModel a = CellMLDocumentCache.getDocument (new File ("test/bhalla_model_1999-version1-from-budhat")).getModel ();
+		CellMLModel b = CellMLDocumentCache.getDocument (new File ("test/bhalla_model_1999-version2-from-budhat")).getModel ();
+		int shared = 0;
+		for (CellMLComponent c : a.getComponents ().values ())
+		{
+			CellMLComponent d = b.getComponent (c.getName ());
+			if (d == null)
+				continue;
+			assertSame ("component names should be pooled", c.getName (), d.getName ());
+			for (String v : c.getVariables ().keySet ())
+				if (d.getVariables ().containsKey (v))
+				{
+					assertSame ("variable names should be pooled", c.getVariable (v).getName (), d.getVariable (v).getName ());
+					shared++;
+				}
+		}
+		assertTrue ("models should share some variables", shared > 0);
+		
+		String s = new String ("time");
+		assertSame ("pool should hand out the canonical instance", CellMLStringPool.intern ("time"), CellMLStringPool.intern (s));
+		CellMLStringPool.setEnabled (false);
+		try
+		{
+			assertSame ("disabled pool shouldn't touch strings", s, CellMLStringPool.intern (s));
+		}
+		finally
+		{
+			CellMLStringPool.setEnabled (true);
+		}
+	}
+	
+	
+	/**
+	 * Test the index of the encapsulation hierarchy.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testHierarchyIndex () throws Exception
+	{
+		CellMLModel model = TestUnits.parse ("<component name=\"a\"/><component name=\"b\"/><component name=\"c\"/>\n"
+			+ "<component name=\"d\"/><component name=\"e\"/><component name=\"f\"/>\n"
+			+ "<group><relationship_ref relationship=\"encapsulation\"/>\n"
+			+ "<component_ref component=\"a\"><component_ref component=\"b\"><component_ref component=\"d\"/></component_ref><component_ref component=\"c\"/></component_ref>\n"
+			+ "<component_ref component=\"e\"><component_ref component=\"f\"/></component_ref>\n"
+			+ "</group>\n").getModel ();
+		CellMLComponent a = model.getComponent ("a"), b = model.getComponent ("b"), c = model.getComponent ("c");
+		CellMLComponent d = model.getComponent ("d"), e = model.getComponent ("e"), f = model.getComponent ("f");
+		CellMLHierarchyIndex index = model.getHierarchy ().getEncapsulationIndex ();
+		
+		assertEquals ("all components should be indexed", 6, index.size ());
+		assertSame ("parent of d", b, index.getParent (d));
+		assertNull ("a is a top-level component", index.getParent (a));
+		assertEquals ("depth of d", 2, index.getDepth (d));
+		assertEquals ("children of a", 2, index.getChildren (a).size ());
+		assertSame ("children should be in document order", c, index.getChildren (a).get (1));
+		assertEquals ("descendants of a", 3, index.getDescendants (a).size ());
+		assertSame ("descendants should be breadth-first", d, index.getDescendants (a).get (2));
+		assertTrue ("a encapsulates d", index.isAncestor (a, d));
+		assertFalse ("e doesn't encapsulate d", index.isAncestor (e, d));
+		assertFalse ("d doesn't encapsulate a", index.isAncestor (d, a));
+		
+		CellMLHierarchy hierarchy = model.getHierarchy ();
+		assertEquals ("b and c are siblings", CellMLHierarchy.RELATION_SIBLING, hierarchy.getEncapsulationRelationship (b, c));
+		assertEquals ("a and e are siblings", CellMLHierarchy.RELATION_SIBLING, hierarchy.getEncapsulationRelationship (a, e));
+		assertEquals ("a is parent of b", CellMLHierarchy.RELATION_PARENT, hierarchy.getEncapsulationRelationship (a, b));
+		assertEquals ("d is encapsulated in b", CellMLHierarchy.RELATION_ENCAPSULATED, hierarchy.getEncapsulationRelationship (d, b));
+		assertEquals ("d and f are hidden", CellMLHierarchy.RELATION_HIDDEN, hierarchy.getEncapsulationRelationship (d, f));
+		assertEquals ("a is not parent of d", CellMLHierarchy.RELATION_HIDDEN, hierarchy.getEncapsulationRelationship (a, d));
+		
+		// changes to the network are reflected by a new index
+		hierarchy.getEncapsulationHierarchyNetwork ().connectHierarchically (c, model.getComponent ("e"));
+		assertSame ("index should be rebuilt", c, hierarchy.getEncapsulationIndex ().getParent (e));
+		assertTrue ("a encapsulates f now", hierarchy.getEncapsulationIndex ().isAncestor (a, f));
+	}
+	
+	
+	/**
+	 * Test the analysis of the connections.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testConnectionGraph () throws Exception
+	{
+		CellMLModel model = TestUnits.parse ("<component name=\"src\">\n"
+			+ "<variable name=\"v\" units=\"second\" public_interface=\"out\" initial_value=\"1\"/>\n"
+			+ "<variable name=\"w\" units=\"second\" public_interface=\"out\" initial_value=\"2\"/>\n"
+			+ "</component>\n"
+			+ "<component name=\"a\"><variable name=\"v\" units=\"second\" public_interface=\"in\"/></component>\n"
+			+ "<component name=\"b\"><variable name=\"v\" units=\"second\" public_interface=\"in\"/><variable name=\"w\" units=\"second\" public_interface=\"in\"/></component>\n"
+			+ "<component name=\"lonely\"><variable name=\"x\" units=\"second\"/></component>\n"
+			+ "<connection><map_components component_1=\"src\" component_2=\"a\"/><map_variables variable_1=\"v\" variable_2=\"v\"/></connection>\n"
+			+ "<connection><map_components component_1=\"src\" component_2=\"b\"/><map_variables variable_1=\"v\" variable_2=\"v\"/><map_variables variable_1=\"w\" variable_2=\"w\"/></connection>\n").getModel ();
+		CellMLVariable v = model.getComponent ("src").getVariable ("v");
+		CellMLVariable w = model.getComponent ("src").getVariable ("w");
+		CellMLVariable bv = model.getComponent ("b").getVariable ("v");
+		
+		CellMLConnectionGraph graph = model.getConnectionGraph ();
+		assertSame ("graph should be cached", graph, model.getConnectionGraph ());
+		TestUnits.parse ("<component name=\"x\"><variable name=\"v\" units=\"second\" public_interface=\"out\" initial_value=\"1\"/></component>\n"
+			+ "<component name=\"y\"><variable name=\"v\" units=\"second\" public_interface=\"in\"/></component>\n"
+			+ "<connection><map_components component_1=\"x\" component_2=\"y\"/><map_variables variable_1=\"v\" variable_2=\"v\"/></connection>\n");
+		assertSame ("parsing another model shouldn't invalidate the graph", graph, model.getConnectionGraph ());
+		assertEquals ("number of variables", 6, graph.getVariableCount ());
+		assertEquals ("number of connections", 3, graph.getConnectionCount ());
+		assertEquals ("number of classes", 3, graph.getClassCount ());
+		assertEquals ("classes with more than one variable", 2, graph.getConnectedClasses ().size ());
+		assertEquals ("variables sharing the value of v", 3, graph.getConnectedVariables (v).size ());
+		assertTrue ("v and b.v should be connected", graph.isConnected (v, bv));
+		assertFalse ("v and w shouldn't be connected", graph.isConnected (v, w));
+		assertEquals ("fan-out of v", 2, graph.getFanOut (v));
+		assertEquals ("fan-out of b.v", 0, graph.getFanOut (bv));
+		assertEquals ("maximum fan-out", 2, graph.getMaxFanOut ());
+		assertEquals ("variables without fan-out", 4, graph.getFanOutHistogram ()[0]);
+		assertFalse ("there shouldn't be any cycles", graph.hasCycles ());
+		assertEquals ("connected components", 2, graph.getComponentClasses ().size ());
+		
+		// changing the connections invalidates the cached graph
+		bv.getPublicInterfaceConnections ().remove (0);
+		graph = model.getConnectionGraph ();
+		assertEquals ("fan-out of v after removing a connection", 1, graph.getFanOut (v));
+		assertFalse ("v and b.v shouldn't be connected anymore", graph.isConnected (v, bv));
+	}
+	
+	
+	/**
+	 * Test resolving root variables through a deep encapsulation hierarchy.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testRootVariables () throws Exception
+	{
+		int depth = 5000;
+		StringBuilder model = new StringBuilder ();
+		for (int i = 0; i < depth; i++)
+		{
+			model.append ("<component name=\"c" + i + "\"><variable name=\"v\" units=\"second\"");
+			if (i == 0)
+				model.append (" initial_value=\"0\"");
+			else
+				model.append (" public_interface=\"in\"");
+			if (i < depth - 1)
+				model.append (" private_interface=\"out\"");
+			model.append ("/></component>\n");
+			if (i > 0)
+			{
+				model.append ("<connection><map_components component_1=\"c" + (i - 1) + "\" component_2=\"c" + i + "\"/><map_variables variable_1=\"v\" variable_2=\"v\"/></connection>\n");
+				// one group per level keeps the XML shallow
+				model.append ("<group><relationship_ref relationship=\"encapsulation\"/><component_ref component=\"c" + (i - 1) + "\"><component_ref component=\"c" + i + "\"/></component_ref></group>\n");
+			}
+		}
+		
+		CellMLModel m = TestUnits.parse (model.toString ()).getModel ();
+		CellMLVariable top = m.getComponent ("c0").getVariable ("v");
+		for (int i = depth - 1; i >= 0; i--)
+			assertEquals ("root of c" + i, top, m.getComponent ("c" + i).getVariable ("v").getRootVariable ());
+		
+		// changing the connections invalidates the cached roots
+		CellMLVariable middle = m.getComponent ("c" + (depth / 2)).getVariable ("v");
+		middle.getPublicInterfaceConnections ().remove (0);
+		assertEquals ("middle variable is a root now", middle, m.getComponent ("c" + (depth - 1)).getVariable ("v").getRootVariable ());
+		assertEquals ("upper variables keep their root", top, m.getComponent ("c1").getVariable ("v").getRootVariable ());
+		
+		// other models don't affect the index of this model
+		TestUnits.parse ("<component name=\"c0\"><variable name=\"v\" units=\"second\" initial_value=\"0\" private_interface=\"out\"/></component>\n"
+			+ "<component name=\"c1\"><variable name=\"v\" units=\"second\" public_interface=\"in\"/></component>\n"
+			+ "<connection><map_components component_1=\"c0\" component_2=\"c1\"/><map_variables variable_1=\"v\" variable_2=\"v\"/></connection>\n"
+			+ "<group><relationship_ref relationship=\"encapsulation\"/><component_ref component=\"c0\"><component_ref component=\"c1\"/></component_ref></group>\n");
+		assertEquals ("roots of a model are independent of other models", middle, m.getComponent ("c" + (depth - 1)).getVariable ("v").getRootVariable ());
+	}
 }
@@ -0,0 +1,390 @@
+/**
+ *
+ */
+package de.unirostock.sems;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringReader;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.jdom2.input.SAXBuilder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import de.unirostock.sems.bives.cellml.algorithm.CellMLConnectorPreprocessor;
+import de.unirostock.sems.bives.cellml.algorithm.CellMLUnitChecker;
+import de.unirostock.sems.bives.cellml.algorithm.CellMLUnitChecker.Diagnostic;
+import de.unirostock.sems.bives.algorithm.SimpleConnectionManager;
+import de.unirostock.sems.bives.cellml.api.CellMLDiff;
+import de.unirostock.sems.bives.cellml.parser.CellMLComponent;
+import de.unirostock.sems.bives.cellml.parser.CellMLDocument;
+import de.unirostock.sems.bives.cellml.parser.CellMLModel;
+import de.unirostock.sems.bives.cellml.parser.CellMLUnit;
+import de.unirostock.sems.bives.cellml.parser.CellMLUnitDictionary;
+import de.unirostock.sems.bives.cellml.parser.CellMLUnitDimension;
+import de.unirostock.sems.bives.cellml.parser.CellMLVariable;
+import de.unirostock.sems.bives.exception.BivesDocumentConsistencyException;
+import de.unirostock.sems.xmlutils.ds.TreeDocument;
+
+/**
+ * Tests for units and variables.
+ *
+ * @author Martin Scharm
+ *
+ */
+@RunWith(JUnit4.class)
+public class TestUnits
+{
+	
+	/**
+	 * Parses a model from a string.
+	 *
+	 * @param body the content of the model element
+	 * @return the CellML document
+	 * @throws Exception the exception
+	 */
+	public static CellMLDocument parse (String body) throws Exception
+	{
+		String xml = TestImports.HEADER + "units_test\">\n" + body + "</model>\n";
+		TreeDocument td = new TreeDocument (new SAXBuilder ().build (new StringReader (xml)), new URI ("http://example.org/units_test.cellml"));
+		return new CellMLDocument (td);
+	}
+	
+	
+	/**
+	 * Test units that are defined after they are used.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testUnorderedUnits () throws Exception
+	{
+		CellMLModel model = parse (
+			"<units name=\"per_millisecond_squared\"><unit units=\"per_millisecond\" exponent=\"2\"/></units>\n"
+			+ "<units name=\"per_millisecond\"><unit units=\"millisecond\" exponent=\"-1\"/></units>\n"
+			+ "<units name=\"millisecond\"><unit units=\"second\" prefix=\"milli\"/></units>\n"
+			+ "<component name=\"c\">\n"
+			+ "<units name=\"local_b\"><unit units=\"local_a\"/></units>\n"
+			+ "<units name=\"local_a\"><unit units=\"per_millisecond_squared\"/></units>\n"
+			+ "<variable name=\"x\" units=\"local_b\"/>\n"
+			+ "</component>\n").getModel ();
+		
+		assertNotNull ("unit wasn't parsed", model.getUnits ().getUnit ("per_millisecond_squared", null));
+		assertNotNull ("local unit wasn't parsed", model.getUnits ().getUnit ("local_b", model.getComponent ("c")));
+	}
+	
+	
+	/**
+	 * Test reporting undefined and cyclic units.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testBrokenUnits () throws Exception
+	{
+		try
+		{
+			parse ("<units name=\"a\"><unit units=\"b\"/></units>\n"
+				+ "<units name=\"b\"><unit units=\"c\"/></units>\n"
+				+ "<units name=\"c\"><unit units=\"a\"/></units>\n");
+			fail ("cyclic units should be detected");
+		}
+		catch (BivesDocumentConsistencyException e)
+		{
+			assertTrue ("cycle should be reported: " + e.getMessage (), e.getMessage ().contains ("a -> b -> c -> a"));
+		}
+		
+		try
+		{
+			parse ("<units name=\"a\"><unit units=\"second\"/><unit units=\"furlong\"/></units>\n");
+			fail ("undefined units should be detected");
+		}
+		catch (BivesDocumentConsistencyException e)
+		{
+			assertTrue ("missing unit should be reported: " + e.getMessage (), e.getMessage ().contains ("furlong (used by a)"));
+		}
+	}
+	
+	
+	/**
+	 * Test variables whose initial value is given by a variable declared later.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testVariables () throws Exception
+	{
+		CellMLModel model = parse ("<component name=\"c\">\n"
+			+ "<variable name=\"x\" units=\"ms\" initial_value=\"x0\"/>\n"
+			+ "<variable name=\"x0\" units=\"ms\" initial_value=\"3.5\"/>\n"
+			+ "<units name=\"ms\"><unit units=\"second\" prefix=\"milli\"/></units>\n"
+			+ "</component>\n").getModel ();
+		CellMLComponent c = model.getComponent ("c");
+		assertEquals ("initial value should refer to x0", c.getVariable ("x0"), c.getVariable ("x").getInitialValueVariable ());
+		assertEquals ("initial value of x0", 3.5, c.getVariable ("x0").getInitialValue (), 0);
+		
+		try
+		{
+			parse ("<component name=\"c\">\n"
+				+ "<variable name=\"x\" units=\"furlong\"/>\n"
+				+ "<variable name=\"y\" units=\"second\" initial_value=\"z\"/>\n"
+				+ "<variable name=\"y\" units=\"second\"/>\n"
+				+ "</component>\n");
+			fail ("broken variables should be detected");
+		}
+		catch (BivesDocumentConsistencyException e)
+		{
+			assertTrue ("all problems should be reported: " + e.getMessage (), e.getMessage ().contains ("inconsistencies for 3 variables"));
+		}
+	}
+	
+	
+	/**
+	 * Test the connections of variables.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testConnections () throws Exception
+	{
+		CellMLModel model = parse ("<component name=\"src\">\n"
+			+ "<variable name=\"v\" units=\"second\" public_interface=\"out\" initial_value=\"1\"/>\n"
+			+ "</component>\n"
+			+ "<component name=\"a\"><variable name=\"v\" units=\"second\" public_interface=\"in\"/></component>\n"
+			+ "<component name=\"b\"><variable name=\"v\" units=\"second\" public_interface=\"in\"/></component>\n"
+			+ "<component name=\"c\"><variable name=\"v\" units=\"second\" public_interface=\"in\"/></component>\n"
+			+ "<connection><map_components component_1=\"src\" component_2=\"a\"/><map_variables variable_1=\"v\" variable_2=\"v\"/></connection>\n"
+			+ "<connection><map_components component_1=\"b\" component_2=\"src\"/><map_variables variable_1=\"v\" variable_2=\"v\"/></connection>\n"
+			+ "<connection><map_components component_1=\"src\" component_2=\"c\"/><map_variables variable_1=\"v\" variable_2=\"v\"/></connection>\n").getModel ();
+		CellMLVariable src = model.getComponent ("src").getVariable ("v");
+		CellMLVariable a = model.getComponent ("a").getVariable ("v");
+		CellMLVariable b = model.getComponent ("b").getVariable ("v");
+		CellMLVariable c = model.getComponent ("c").getVariable ("v");
+		
+		List<CellMLVariable> fanout = src.getPublicInterfaceConnections ();
+		assertEquals ("source should be connected to all variables", 3, fanout.size ());
+		assertEquals ("connections should be in document order", a, fanout.get (0));
+		assertEquals ("connections should be in document order", b, fanout.get (1));
+		assertEquals ("connections should be in document order", c, fanout.get (2));
+		assertEquals ("in interface should have a single connection", 1, b.getPublicInterfaceConnections ().size ());
+		assertEquals ("root variable of b", src, b.getRootVariable ());
+		assertEquals ("private interface shouldn't be connected", 0, src.getPrivateInterfaceConnections ().size ());
+		assertTrue ("source has a scalar initial value", src.hasInitialValue ());
+		assertTrue ("a doesn't have a scalar initial value", !a.hasInitialValue () && a.getInitialValue () == null);
+		
+		// removing connections through the view
+		fanout.remove (0);
+		assertEquals ("view should reflect the removal", 2, fanout.size ());
+		assertEquals ("connection to b should remain", b, src.getPublicInterfaceConnections ().get (0));
+		assertEquals ("connection to c should remain", c, src.getPublicInterfaceConnections ().get (1));
+		fanout.remove (1);
+		assertEquals ("connection to b should remain", b, src.getPublicInterfaceConnections ().get (0));
+		assertEquals ("connection to b should remain", 1, src.getPublicInterfaceConnections ().size ());
+		
+		a.getPublicInterfaceConnections ().remove (0);
+		assertEquals ("unconnected variable is its own root", a, a.getRootVariable ());
+		
+		src.unconnect ();
+		assertTrue ("unconnected variable shouldn't have connections", src.getPublicInterfaceConnections ().isEmpty ());
+	}
+	
+	
+	/**
+	 * Test that all models share the standard units.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testStandardUnits () throws Exception
+	{
+		CellMLModel a = parse ("<component name=\"c\"><variable name=\"t\" units=\"second\"/></component>\n").getModel ();
+		CellMLModel b = parse ("<component name=\"c\"><variable name=\"t\" units=\"second\"/></component>\n").getModel ();
+		CellMLUnit second = CellMLUnitDictionary.getStandardUnit ("second");
+		assertNotNull ("second is a standard unit", second);
+		assertTrue ("second is a standard unit", second.isStandardUnits ());
+		assertSame ("models should share the standard units", second, a.getUnits ().getUnit ("second", null));
+		assertSame ("models should share the standard units", second, b.getUnits ().getUnit ("second", a.getComponent ("c")));
+		assertEquals ("all standard units should be known", CellMLUnitDictionary.STANDARD_UNITS.length, CellMLUnitDictionary.getStandardUnits ().size ());
+		
+		try
+		{
+			second.setName ("minute");
+			fail ("shared standard units mustn't be renamed");
+		}
+		catch (UnsupportedOperationException e)
+		{
+			assertEquals ("name of standard unit should be unchanged", "second", second.getName ());
+		}
+		
+		try
+		{
+			parse ("<units name=\"second\"><unit units=\"metre\"/></units>\n");
+			fail ("standard units mustn't be redefined");
+		}
+		catch (BivesDocumentConsistencyException e)
+		{
+			assertTrue ("redefinition should be reported: " + e.getMessage (), e.getMessage ().contains ("second"));
+		}
+	}
+	
+	/**
+	 * Test the canonical forms of units.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testUnitDimensions () throws Exception
+	{
+		for (String name : CellMLUnitDictionary.STANDARD_UNITS)
+			assertNotNull ("standard unit " + name + " should have a dimension", CellMLUnitDictionary.getStandardUnit (name).getDimension ());
+		
+		CellMLModel model = parse (
+			"<units name=\"millivolt\"><unit units=\"volt\" prefix=\"milli\"/></units>\n"
+			+ "<units name=\"mM\"><unit units=\"mole\" prefix=\"milli\"/><unit units=\"litre\" exponent=\"-1\"/></units>\n"
+			+ "<units name=\"mol_per_m3\"><unit units=\"mole\"/><unit units=\"metre\" exponent=\"-3\"/></units>\n"
+			+ "<units name=\"root_metre\"><unit units=\"metre\" exponent=\"0.5\"/></units>\n"
+			+ "<units name=\"my_metre\"><unit units=\"root_metre\" exponent=\"2\"/></units>\n"
+			+ "<units name=\"pH\" base_units=\"yes\"/>\n"
+			+ "<units name=\"other\" base_units=\"yes\"/>\n"
+			+ "<units name=\"pH_per_other\"><unit units=\"pH\"/><unit units=\"other\" exponent=\"-1\"/><unit units=\"second\"/></units>\n").getModel ();
+		CellMLUnitDictionary units = model.getUnits ();
+		
+		CellMLUnitDimension volt = units.getUnit ("volt", null).getDimension ();
+		CellMLUnitDimension millivolt = units.getUnit ("millivolt", null).getDimension ();
+		assertEquals ("volt is m^2 kg s^-3 A^-1", 2, volt.getExponent ("metre"), 0);
+		assertEquals ("volt is m^2 kg s^-3 A^-1", -3, volt.getExponent ("second"), 0);
+		assertTrue ("millivolt should be compatible to volt", millivolt.isCompatible (volt));
+		assertFalse ("millivolt shouldn't be equivalent to volt", millivolt.isEquivalent (volt));
+		assertEquals ("millivolt should be a thousandth of a volt", 1e-3, millivolt.getConversionFactor (volt), 1e-15);
+		
+		CellMLUnitDimension mM = units.getUnit ("mM", null).getDimension ();
+		assertEquals ("mM should be the same as mol/m^3", units.getUnit ("mol_per_m3", null).getDimension (), mM);
+		assertEquals ("equal dimensions should have equal hashes", units.getUnit ("mol_per_m3", null).getDimension ().hashCode (), mM.hashCode ());
+		assertSame ("dimension should be cached", mM, units.getUnit ("mM", null).getDimension ());
+		
+		assertEquals ("root_metre has a rational exponent", .5, units.getUnit ("root_metre", null).getDimension ().getExponent ("metre"), 0);
+		assertEquals ("my_metre should be a metre", units.getUnit ("metre", null).getDimension (), units.getUnit ("my_metre", null).getDimension ());
+		
+		assertEquals ("celsius has an offset", 273.15, units.getUnit ("celsius", null).getDimension ().getOffset (), 1e-9);
+		assertTrue ("celsius should be compatible to kelvin", units.getUnit ("celsius", null).getDimension ().isCompatible (units.getUnit ("kelvin", null).getDimension ()));
+		
+		CellMLUnitDimension pH = units.getUnit ("pH", null).getDimension ();
+		assertFalse ("base units are not dimensionless", pH.isDimensionless ());
+		assertFalse ("base units are independent", pH.isCompatible (units.getUnit ("other", null).getDimension ()));
+		assertTrue ("radian is dimensionless", units.getUnit ("radian", null).getDimension ().isDimensionless ());
+		
+		// base dimensions are owned by their model, other models are compared by signature
+		CellMLUnitDictionary again = parse (
+			"<units name=\"pH\" base_units=\"yes\"/>\n"
+			+ "<units name=\"other\" base_units=\"yes\"/>\n"
+			+ "<units name=\"pH_per_other\"><unit units=\"second\"/><unit units=\"other\" exponent=\"-1\"/><unit units=\"pH\"/></units>\n").getModel ().getUnits ();
+		assertFalse ("base dimensions of unrelated models should be independent", pH.isCompatible (again.getUnit ("pH", null).getDimension ()));
+		assertSame ("base dimensions should be canonical within a model", pH, units.getUnit ("pH", null).getDimension ());
+		CellMLUnitDimension ratio = units.getUnit ("pH_per_other", null).getDimension ();
+		assertEquals ("signatures shouldn't depend on the model", ratio.getSignature (), again.getUnit ("pH_per_other", null).getDimension ().getSignature ());
+		assertEquals ("SI exponents are kept next to base dimensions", 1, ratio.getExponent ("second"), 0);
+		assertFalse ("base dimensions don't cancel out", ratio.isCompatible (units.getUnit ("second", null).getDimension ()));
+		
+		CellMLModel local = parse ("<component name=\"a\"><units name=\"x\" base_units=\"yes\"/></component>\n"
+			+ "<component name=\"b\"><units name=\"x\" base_units=\"yes\"/></component>\n").getModel ();
+		assertFalse ("local base units of different components are independent",
+			local.getComponent ("a").getUnit ("x").getDimension ().isCompatible (local.getComponent ("b").getUnit ("x").getDimension ()));
+	}
+	
+	/**
+	 * Test the unit checker.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testUnitChecker () throws Exception
+	{
+		String math = "<math xmlns=\"http://www.w3.org/1998/Math/MathML\">\n"
+			+ "<apply><eq/><apply><diff/><bvar><ci>t</ci></bvar><ci>v</ci></apply><apply><divide/><ci>x</ci><ci>t</ci></apply></apply>\n"
+			+ "<apply><eq/><ci>x</ci><apply><times/><ci>v</ci><cn cellml:units=\"second\">2</cn></apply></apply>\n"
+			+ "<apply><eq/><ci>y</ci><apply><plus/><ci>x</ci><ci>t</ci></apply></apply>\n"
+			+ "<apply><eq/><ci>z</ci><apply><exp/><ci>t</ci></apply></apply>\n"
+			+ "<apply><eq/><ci>w</ci><apply><plus/><ci>x</ci><ci>mm</ci></apply></apply>\n"
+			+ "</math>\n";
+		CellMLModel model = parse ("<units name=\"mps\"><unit units=\"metre\"/><unit units=\"second\" exponent=\"-1\"/></units>\n"
+			+ "<units name=\"millimetre\"><unit units=\"metre\" prefix=\"milli\"/></units>\n"
+			+ "<component name=\"env\"><variable name=\"t\" units=\"second\" public_interface=\"out\"/></component>\n"
+			+ "<component name=\"c\">\n"
+			+ "<variable name=\"t\" units=\"metre\" public_interface=\"in\"/>\n"
+			+ "<variable name=\"v\" units=\"mps\"/><variable name=\"x\" units=\"metre\"/><variable name=\"mm\" units=\"millimetre\"/>\n"
+			+ "<variable name=\"y\" units=\"metre\"/><variable name=\"z\" units=\"dimensionless\"/><variable name=\"w\" units=\"metre\"/>\n"
+			+ math + "</component>\n"
+			+ "<connection><map_components component_1=\"env\" component_2=\"c\"/><map_variables variable_1=\"t\" variable_2=\"t\"/></connection>\n").getModel ();
+		
+		List<Diagnostic> diagnostics = new CellMLUnitChecker (null).check (model);
+		int errors = 0, warnings = 0;
+		for (Diagnostic d : diagnostics)
+		{
+			assertEquals ("all findings are in component c", "c", d.getComponent ().getName ());
+			if (d.isError ())
+				errors++;
+			else
+				warnings++;
+		}
+		// connection t, diff of v per metre, exp of metre
+		assertEquals ("unexpected errors: " + diagnostics, 3, errors);
+		// x + mm
+		assertEquals ("unexpected warnings: " + diagnostics, 1, warnings);
+		
+		ExecutorService executor = Executors.newFixedThreadPool (2);
+		try
+		{
+			assertEquals ("parallel check should find the same issues", diagnostics.toString (), new CellMLUnitChecker (executor).check (model).toString ());
+		}
+		finally
+		{
+			executor.shutdown ();
+		}
+	}
+	
+	/**
+	 * Test that renamed but equivalent units are mapped.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testEquivalentUnits () throws Exception
+	{
+		CellMLDocument a = parse ("<units name=\"millisecond\"><unit units=\"second\" prefix=\"milli\"/></units>\n"
+			+ "<units name=\"per_metre\"><unit units=\"metre\" exponent=\"-1\"/></units>\n"
+			+ "<component name=\"c\"><units name=\"mV\"><unit units=\"volt\" prefix=\"milli\"/></units>\n"
+			+ "<variable name=\"t\" units=\"millisecond\"/><variable name=\"v\" units=\"mV\"/></component>\n");
+		CellMLDocument b = parse ("<units name=\"ms\"><unit units=\"second\" multiplier=\"0.001\"/></units>\n"
+			+ "<units name=\"per_metre\"><unit units=\"metre\" exponent=\"-1\"/></units>\n"
+			+ "<component name=\"c\"><units name=\"millivolt\"><unit units=\"volt\" prefix=\"-3\"/></units>\n"
+			+ "<variable name=\"t\" units=\"ms\"/><variable name=\"v\" units=\"millivolt\"/></component>\n");
+		CellMLModel modelA = a.getModel (), modelB = b.getModel ();
+		
+		CellMLConnectorPreprocessor pre = new CellMLConnectorPreprocessor (a, b);
+		pre.findConnections ();
+		SimpleConnectionManager conMgmt = pre.getConnections ();
+		assertSame ("renamed global unit should be mapped", modelB.getUnits ().getUnit ("ms", null).getDocumentNode (),
+			conMgmt.getConnectionForNode (modelA.getUnits ().getUnit ("millisecond", null).getDocumentNode ()).getPartnerOf (modelA.getUnits ().getUnit ("millisecond", null).getDocumentNode ()));
+		assertSame ("unit with the same name should be mapped", modelB.getUnits ().getUnit ("per_metre", null).getDocumentNode (),
+			conMgmt.getConnectionForNode (modelA.getUnits ().getUnit ("per_metre", null).getDocumentNode ()).getPartnerOf (modelA.getUnits ().getUnit ("per_metre", null).getDocumentNode ()));
+		CellMLUnit mV = modelA.getComponent ("c").getUnit ("mV");
+		assertSame ("renamed component unit should be mapped", modelB.getComponent ("c").getUnit ("millivolt").getDocumentNode (),
+			conMgmt.getConnectionForNode (mV.getDocumentNode ()).getPartnerOf (mV.getDocumentNode ()));
+		
+		CellMLDiff diff = new CellMLDiff (a, b);
+		diff.mapTrees ();
+		String report = diff.getMarkDownReport ();
+		assertFalse ("renamed units shouldn't be reported as deleted: " + report, report.contains ("deleted: "));
+		assertFalse ("renamed units shouldn't be reported as inserted: " + report, report.contains ("inserted: "));
+	}
+}